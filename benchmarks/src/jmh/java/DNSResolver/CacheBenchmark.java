@@ -0,0 +1,70 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cache probes against a cache holding size entries: hits, misses, and a hit written straight into a response
+// buffer as the event loop's fast path does. Each call moves on to the next question, so the probes walk the whole
+// cache rather than one hot entry
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CacheBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    private DNSCache cache;
+    private DNSQuestion[] present;
+    private DNSQuestion[] absent;
+    private DNSMessage[] requests;
+
+    @Setup
+    public void setup() throws IOException {
+        // Each name leaves two entries, its answer and its NS record set. Twice that again leaves room for the
+        // shards filling unevenly, so nothing is evicted
+        cache = new DNSCache(size * 4, Long.MAX_VALUE, 16);
+        present = new DNSQuestion[size];
+        absent = new DNSQuestion[size];
+        requests = new DNSMessage[size];
+        for (int i = 0; i < size; i++) {
+            String name = "host" + i + ".benchmark.example.com";
+            DNSMessage reply = DNSMessage.decodeMessage(Packets.compressedResponse(name, 2));
+            present[i] = reply.getQuestions()[0];
+            cache.addResponse(present[i], reply);
+            requests[i] = DNSMessage.decodeMessage(Packets.query(name, i));
+            absent[i] = DNSMessage.decodeMessage(Packets.query("missing" + i + ".benchmark.example.com", i)).getQuestions()[0];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        ByteBuffer output = ByteBuffer.allocateDirect(DNSMessage.MAX_UDP_SIZE);
+
+        int next(int size) {
+            int index = next;
+            next = index + 1 == size ? 0 : index + 1;
+            return index;
+        }
+    }
+
+    @Benchmark
+    public CacheEntry hit(Cursor cursor) throws IOException {
+        return cache.lookup(present[cursor.next(size)]);
+    }
+
+    @Benchmark
+    public CacheEntry miss(Cursor cursor) throws IOException {
+        return cache.lookup(absent[cursor.next(size)]);
+    }
+
+    @Benchmark
+    public boolean hitAndWrite(Cursor cursor) throws IOException {
+        int index = cursor.next(size);
+        CacheEntry entry = cache.lookup(present[index]);
+        cursor.output.clear();
+        return entry.writeResponse(requests[index], cursor.output, DNSMessage.MAX_UDP_SIZE, DNSMessage.MAX_UDP_SIZE);
+    }
+}
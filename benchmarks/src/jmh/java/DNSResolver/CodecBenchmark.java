@@ -0,0 +1,63 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Decoding and encoding single packets: a bare query, and responses of 1 to 16 A records plus an NS record, written
+// with or without compression pointers. Encoding always compresses, either into a reused buffer as the workers do
+// (writeTo, which should allocate nothing) or into a new array (toBytes)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecBenchmark {
+    @Param({"query", "compressed", "uncompressed"})
+    public String packet;
+
+    @Param({"1", "16"})
+    public int answers;
+
+    private byte[] bytes;
+    private DNSMessage message;
+    private ByteBuffer output = ByteBuffer.allocateDirect(TcpConnection.MAX_MESSAGE);
+
+    @Setup
+    public void setup() throws IOException {
+        String name = "www.benchmark.example.com";
+        switch (packet) {
+            case "query":
+                bytes = Packets.query(name, 0x1234);
+                break;
+            case "compressed":
+                bytes = Packets.compressedResponse(name, answers);
+                break;
+            default:
+                bytes = Packets.uncompressedResponse(name, answers);
+        }
+        message = DNSMessage.decodeMessage(bytes);
+    }
+
+    @Benchmark
+    public DNSMessage decode() throws IOException {
+        return DNSMessage.decodeMessage(bytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        output.clear();
+        message.writeTo(output);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] encodeToBytes() throws IOException {
+        return message.toBytes();
+    }
+
+    // Both ways, as the server does for every forwarded reply
+    @Benchmark
+    public byte[] decodeAndEncode() throws IOException {
+        return DNSMessage.decodeMessage(bytes).toBytes();
+    }
+}
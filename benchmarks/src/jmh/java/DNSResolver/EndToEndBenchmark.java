@@ -0,0 +1,110 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A whole server on loopback, forwarding to a StubUpstream in the same process that answers straight away.
+// Each benchmark thread is a client sending one query and waiting for its answer, so the scores are round trip
+// latency and, with more threads (-t), throughput. Cached queries cycle through names answered during setup;
+// uncached ones use a new name every time, so each one goes to the stub
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EndToEndBenchmark {
+    private static final int CACHED_NAMES = 1000;
+
+    @Param({"EVENT_LOOP", "THREAD_PER_QUERY"})
+    public String mode;
+
+    private StubUpstream stub;
+    private DNSServer server;
+    private Thread serverThread;
+    private InetSocketAddress serverAddress;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        stub = new StubUpstream(0, 0);
+        Thread stubThread = new Thread(stub, "stub-upstream");
+        stubThread.setDaemon(true);
+        stubThread.start();
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ServerConfig config = new ServerConfig()
+                .setClientPort(port)
+                .setUpstream(new InetSocketAddress("127.0.0.1", stub.getPort()))
+                .setMode(ServerConfig.Mode.valueOf(mode))
+                .setWorkerCount(1);
+        server = new DNSServer(config);
+        serverThread = new Thread(server::run, "dns-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        serverAddress = new InetSocketAddress("127.0.0.1", port);
+        Client warmer = new Client();
+        warmer.setup();
+        for (int i = 0; i < CACHED_NAMES; i++) {
+            warmer.ask(serverAddress, "cached" + i + ".benchmark.example.com");
+        }
+        warmer.tearDown();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        server.stop();
+        serverThread.join(5000);
+        stub.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static int clients = 0;
+
+        DatagramSocket socket;
+        int id;
+        int next;
+        String prefix;
+        byte[] receive = new byte[DNSMessage.MAX_UDP_SIZE];
+
+        @Setup
+        public void setup() throws IOException {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(2000);
+            synchronized (Client.class) {
+                prefix = "t" + clients++ + "x";
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            socket.close();
+        }
+
+        // Send a query and wait for its answer, skipping any late answer to an earlier query
+        int ask(InetSocketAddress server, String name) throws IOException {
+            id = (id + 1) & 0xffff;
+            byte[] query = Packets.query(name, id);
+            socket.send(new DatagramPacket(query, query.length, server));
+            DatagramPacket reply = new DatagramPacket(receive, receive.length);
+            do {
+                socket.receive(reply);
+            } while (((receive[0] & 0xff) << 8 | (receive[1] & 0xff)) != id);
+            return reply.getLength();
+        }
+    }
+
+    @Benchmark
+    public int cached(Client client) throws IOException {
+        client.next = client.next + 1 == CACHED_NAMES ? 0 : client.next + 1;
+        return client.ask(serverAddress, "cached" + client.next + ".benchmark.example.com");
+    }
+
+    @Benchmark
+    public int uncached(Client client) throws IOException {
+        return client.ask(serverAddress, client.prefix + client.next++ + ".benchmark.example.com");
+    }
+}
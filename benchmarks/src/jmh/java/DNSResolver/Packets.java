@@ -0,0 +1,97 @@
+package DNSResolver;
+
+import java.io.ByteArrayOutputStream;
+
+// Hand built wire format packets for the benchmarks, so they exercise the decoder on packets it didn't produce itself
+public class Packets {
+    // A query for one name, type A, class IN, with no OPT record
+    public static byte[] query(String name, int id) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        header(output, id, 0x0100, 1, 0, 0);
+        question(output, name);
+        return output.toByteArray();
+    }
+
+    // A response to query(name) with the given number of A records and one NS record. Every record names its owner
+    // with a compression pointer back to the question (c00c), as most servers send them
+    public static byte[] compressedResponse(String name, int answers) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        header(output, 0x1234, 0x8180, 1, answers, 1);
+        question(output, name);
+        for (int i = 0; i < answers; i++) {
+            output.write(0xc0);
+            output.write(0x0c);
+            aRecord(output, i);
+        }
+        output.write(0xc0);
+        output.write(0x0c);
+        nsRecord(output, "ns1." + name);
+        return output.toByteArray();
+    }
+
+    // The same response with every name written out in full, so the decoder never follows a pointer
+    public static byte[] uncompressedResponse(String name, int answers) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        header(output, 0x1234, 0x8180, 1, answers, 1);
+        question(output, name);
+        for (int i = 0; i < answers; i++) {
+            name(output, name);
+            aRecord(output, i);
+        }
+        name(output, name);
+        nsRecord(output, "ns1." + name);
+        return output.toByteArray();
+    }
+
+    private static void header(ByteArrayOutputStream output, int id, int flags, int qdCount, int anCount, int nsCount) {
+        writeShort(output, id);
+        writeShort(output, flags);
+        writeShort(output, qdCount);
+        writeShort(output, anCount);
+        writeShort(output, nsCount);
+        writeShort(output, 0);
+    }
+
+    private static void question(ByteArrayOutputStream output, String name) {
+        name(output, name);
+        writeShort(output, DNSRecord.TYPE_A);
+        writeShort(output, 1);
+    }
+
+    // Type, class, TTL 300 and an address in 10.0.0.0/8 taken from i
+    private static void aRecord(ByteArrayOutputStream output, int i) {
+        writeShort(output, DNSRecord.TYPE_A);
+        writeShort(output, 1);
+        writeShort(output, 0);
+        writeShort(output, 300);
+        writeShort(output, 4);
+        output.write(10);
+        output.write(i >> 16);
+        output.write(i >> 8);
+        output.write(i);
+    }
+
+    private static void nsRecord(ByteArrayOutputStream output, String server) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        name(data, server);
+        writeShort(output, DNSRecord.TYPE_NS);
+        writeShort(output, 1);
+        writeShort(output, 0);
+        writeShort(output, 3600);
+        writeShort(output, data.size());
+        output.writeBytes(data.toByteArray());
+    }
+
+    private static void name(ByteArrayOutputStream output, String name) {
+        for (String label : name.split("\\.")) {
+            output.write(label.length());
+            output.writeBytes(label.getBytes());
+        }
+        output.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream output, int value) {
+        output.write(value >> 8);
+        output.write(value);
+    }
+}
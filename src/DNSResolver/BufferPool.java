@@ -0,0 +1,47 @@
+package DNSResolver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Reusable direct buffers of one size, so sending or receiving a packet doesn't need a new buffer each time.
+// Safe to share between threads. At most maxPooled buffers are kept, any more given back are left to the
+// garbage collector.
+public class BufferPool {
+    private int bufferSize;
+    private int maxPooled;
+    private ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    // A cleared buffer, from the pool if it has one
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    // Give a buffer back once nothing refers to it any more
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
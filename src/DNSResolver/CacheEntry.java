@@ -0,0 +1,228 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A cached answer for one question, along with the whole response already encoded for it.
+// The answers are the complete answer section: every record of the record set, and for an alias the CNAME records
+// leading to it.
+// Negative answers (RFC 2308) are cached too: no answers, the rCode (3 for a name that doesn't exist, 0 for a name
+// without records of the type asked for) and the SOA record from the authority section, which sets how long the
+// negative answer can be kept.
+// A cache hit copies the encoded response and patches in the client's transaction ID, its Recursion Desired bit,
+// the question with the client's case and the TTLs counted down since caching, instead of building and encoding
+// a new DNSMessage. The encoded response has an ID of 0 and nothing in the additional section; a client using EDNS
+// gets our OPT record appended.
+public class CacheEntry {
+    // Encoded length of an OPT record with no options
+    private static final int OPT_LENGTH = 11;
+
+    private int rCode;
+    private DNSRecord[] answers;
+    private DNSRecord[] authority;
+
+    // Seconds the entry is valid for, no record is sent with a TTL longer than this
+    private int ttl;
+
+    // The encoded response
+    private byte[] encoded;
+
+    // Where the question ends in the encoded response, which is also where it ends in the request
+    private int questionEnd;
+
+    // Where each record's TTL is in the encoded response, and the TTL it was cached with
+    private int[] ttlOffsets;
+    private int[] ttls;
+
+    // The question the entry answers, its key in the cache
+    private DNSQuestion question;
+
+    // When the response was encoded, when the entry expires, and when it leaves the cache, in Clock milliseconds.
+    // An entry that may be served stale stays past its expiry until removeAt
+    private long createdMillis;
+    private long expiresAt;
+    private long removeAt;
+
+    // The entry's place in its shard's TimingWheel: the slot it is in, -1 if none, and its neighbours there
+    int wheelSlot = -1;
+    CacheEntry wheelPrevious;
+    CacheEntry wheelNext;
+
+    // How many times the entry has been served from the cache, for deciding whether it is worth refreshing
+    private int hits;
+
+    // Set while a background refresh of this entry is in flight, so only one is started
+    private AtomicBoolean refreshing = new AtomicBoolean();
+
+    public CacheEntry(DNSQuestion question, int rCode, DNSRecord[] answers, DNSRecord[] authority, int ttl) throws IOException {
+        this.question = question;
+        this.rCode = rCode;
+        this.answers = answers;
+        this.authority = authority;
+        this.ttl = ttl;
+        encoded = DNSMessage.buildCachedResponse(question, rCode, answers, authority).toBytes();
+        questionEnd = 12 + question.getqName().wireLength() + 4;
+        ttlOffsets = DNSMessage.ttlOffsets(encoded);
+        ttls = new int[ttlOffsets.length];
+        ByteBuffer packet = ByteBuffer.wrap(encoded);
+        for (int i = 0; i < ttls.length; i++) {
+            ttls[i] = Math.min(packet.getInt(ttlOffsets[i]), ttl);
+            packet.putInt(ttlOffsets[i], ttls[i]);
+        }
+        createdMillis = Clock.millis();
+        expiresAt = createdMillis + ttl * 1000L;
+        removeAt = expiresAt;
+    }
+
+    // Getters for Data
+    public DNSQuestion getQuestion() {
+        return question;
+    }
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+    public long getRemoveAt() {
+        return removeAt;
+    }
+    public int getRCode() {
+        return rCode;
+    }
+    public DNSRecord[] getAnswers() {
+        return answers;
+    }
+    public DNSRecord[] getAuthority() {
+        return authority;
+    }
+
+    // A negative answer has no records to give
+    public boolean isNegative() {
+        return answers.length == 0;
+    }
+
+    public boolean isValid() {
+        return Clock.millis() < expiresAt;
+    }
+
+    // Whether the entry has expired but can still be served stale
+    public boolean isStale() {
+        long now = Clock.millis();
+        return now >= expiresAt && now < removeAt;
+    }
+
+    // Keep the entry for staleMillis past its expiry. Set by the cache before the entry goes in its TimingWheel
+    void keepStaleFor(long staleMillis) {
+        removeAt = expiresAt + Math.max(0, staleMillis);
+    }
+
+    // The encoded response, for saving the entry to a snapshot. Not to be changed
+    byte[] getEncoded() {
+        return encoded;
+    }
+
+    // Milliseconds left before the entry expires
+    public long remainingMillis() {
+        return Math.max(0, expiresAt - Clock.millis());
+    }
+
+    // Seconds left before the entry expires
+    public int remainingTtl() {
+        return (int) (remainingMillis() / 1000);
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    // Called by the cache under its lock on every lookup that returns this entry
+    void recordHit() {
+        hits++;
+    }
+
+    // Whether the entry is popular enough and far enough through its TTL to fetch again before it expires
+    public boolean needsRefresh(int minHits, double fraction) {
+        if (hits < minHits || refreshing.get()) {
+            return false;
+        }
+        long elapsed = Clock.millis() - createdMillis;
+        return elapsed >= fraction * ttl * 1000;
+    }
+
+    // Claim the refresh of this entry, false if another refresh already has it
+    public boolean startRefresh() {
+        return refreshing.compareAndSet(false, true);
+    }
+
+    // Let the entry be refreshed again after a refresh failed
+    public void endRefresh() {
+        refreshing.set(false);
+    }
+
+    // Rough number of heap bytes this entry uses, for sizing the cache
+    public int estimateSize() {
+        int size = 64 + 2 * 16 + 16 + encoded.length + 2 * (16 + 4 * ttls.length);
+        for (DNSRecord record : answers) {
+            size += 4 + record.estimateSize();
+        }
+        for (DNSRecord record : authority) {
+            size += 4 + record.estimateSize();
+        }
+        return size;
+    }
+
+    // Write the response to a request for this entry's question into the buffer, ready to send.
+    // Only a plain query with a single question and nothing in the answer or authority sections can be answered
+    // this way. The response can be at most maxSize bytes, and a client using EDNS is told we take payloadSize.
+    // Returns false if the request doesn't qualify or the response doesn't fit, and nothing is written.
+    public boolean writeResponse(DNSMessage request, ByteBuffer output, int maxSize, int payloadSize) {
+        return write(request, output, maxSize, payloadSize, -1);
+    }
+
+    // The same for an entry served stale, every record's TTL being staleTtl instead of what is left of it
+    public boolean writeStaleResponse(DNSMessage request, ByteBuffer output, int maxSize, int payloadSize, int staleTtl) {
+        return write(request, output, maxSize, payloadSize, staleTtl);
+    }
+
+    private boolean write(DNSMessage request, ByteBuffer output, int maxSize, int payloadSize, int staleTtl) {
+        byte[] raw = request.getRawData();
+        DNSHeader header = request.getHeader();
+        if (header.getQdCount() != 1 || header.getAnCount() != 0 || header.getNsCount() != 0) {
+            return false;
+        }
+        // The request's question has to be uncompressed so it lines up with the encoded one
+        if (raw.length < questionEnd || raw[questionEnd - 5] != 0) {
+            return false;
+        }
+        DNSRecord opt = request.getOpt();
+        if (opt != null && opt.ednsVersion() != 0) {
+            return false;
+        }
+        int length = encoded.length + (opt != null ? OPT_LENGTH : 0);
+        if (length > maxSize || length > output.capacity()) {
+            return false;
+        }
+        output.clear();
+        output.put(encoded);
+        // Client's ID, and its Recursion Desired bit alongside the rest of the flags
+        output.put(0, raw[0]);
+        output.put(1, raw[1]);
+        output.put(2, (byte) ((encoded[2] & 0xfe) | (raw[2] & 0x01)));
+        // The question exactly as the client asked it
+        output.put(12, raw, 12, questionEnd - 12);
+        int elapsed = (int) ((Clock.millis() - createdMillis) / 1000);
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            output.putInt(ttlOffsets[i], staleTtl >= 0 ? staleTtl : Math.max(0, ttls[i] - elapsed));
+        }
+        if (opt != null) {
+            // Our OPT record: root name, type, payload size, no extended rCode or flags, no data
+            output.put((byte) 0);
+            output.putShort((short) DNSRecord.TYPE_OPT);
+            output.putShort((short) payloadSize);
+            output.putInt(0);
+            output.putShort((short) 0);
+            output.putShort(10, (short) 1);
+        }
+        output.flip();
+        return true;
+    }
+}
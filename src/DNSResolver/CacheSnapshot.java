@@ -0,0 +1,168 @@
+package DNSResolver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Saves the caches to a file and loads them back, so a restarted server starts warm instead of sending nearly every
+// query upstream.
+// File layout, numbers big endian:
+//   magic "DNSC" | version (int) | time written (long, ms since the epoch)
+//   then a frame per entry: body length (int) | CRC32 of the body (int) | body
+//   body: expiry time (long, ms since the epoch) | negative (byte) | the entry's encoded response
+// The encoded response is the wire format message the entry was built from, question, answers and authority, so
+// loading needs nothing but the DNSMessage decoder. Expiry is wall clock time, since System.nanoTime means nothing
+// after a restart.
+// A snapshot is written to a temporary file and renamed over the old one, so a crash while writing leaves the old
+// snapshot alone. Should the file still end early or be damaged, loading stops at the first frame that is cut short
+// or fails its CRC, and keeps everything before it. A file with another magic number or version is ignored.
+// The file is memory mapped for loading, so entries are decoded straight from the page cache. Every entry is copied
+// out of the mapping, which is released as soon as loading is done rather than whenever the buffer is collected.
+public class CacheSnapshot {
+    private static final int MAGIC = 0x444e5343;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+
+    // Expiry time, negative flag
+    private static final int BODY_PREFIX = 9;
+
+    private Path path;
+
+    public CacheSnapshot(Path path) {
+        this.path = path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Save every valid entry of both caches, returning how many were written
+    public int save(DNSCache cache, DNSCache negativeCache) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        int[] count = {0};
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(System.currentTimeMillis());
+            CRC32 crc = new CRC32();
+            IOException[] failure = {null};
+            for (DNSCache source : new DNSCache[] {cache, negativeCache}) {
+                boolean negative = source == negativeCache;
+                source.forEach((question, entry) -> {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    byte[] encoded = entry.getEncoded();
+                    ByteBuffer body = ByteBuffer.allocate(BODY_PREFIX + encoded.length);
+                    body.putLong(System.currentTimeMillis() + entry.remainingMillis());
+                    body.put((byte) (negative ? 1 : 0));
+                    body.put(encoded);
+                    crc.reset();
+                    crc.update(body.array());
+                    try {
+                        output.writeInt(body.capacity());
+                        output.writeInt((int) crc.getValue());
+                        output.write(body.array());
+                        count[0]++;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            output.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    // Load every entry that is still valid into the caches, returning how many were loaded. Entries the caches
+    // already have are kept, being newer. A missing file loads nothing
+    public int load(DNSCache cache, DNSCache negativeCache) throws IOException {
+        MappedByteBuffer input;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            input = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        try {
+            return load(input, cache, negativeCache);
+        } finally {
+            unmap(input);
+        }
+    }
+
+    private int load(ByteBuffer input, DNSCache cache, DNSCache negativeCache) {
+        if (input.remaining() < HEADER_LENGTH || input.getInt() != MAGIC || input.getInt() != VERSION) {
+            System.out.println("Ignoring cache snapshot " + path + " with an unknown format");
+            return 0;
+        }
+        input.getLong();
+        long now = System.currentTimeMillis();
+        CRC32 crc = new CRC32();
+        int loaded = 0;
+        while (input.remaining() >= 8) {
+            int length = input.getInt();
+            int expectedCrc = input.getInt();
+            if (length < BODY_PREFIX || length > input.remaining()) {
+                System.out.println("Cache snapshot " + path + " ends early, loaded what came before");
+                break;
+            }
+            ByteBuffer body = input.slice();
+            body.limit(length);
+            input.position(input.position() + length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != expectedCrc) {
+                System.out.println("Cache snapshot " + path + " is damaged, loaded what came before");
+                break;
+            }
+            long expiry = body.getLong();
+            boolean negative = body.get() == 1;
+            int ttl = (int) ((expiry - now) / 1000);
+            if (ttl <= 0) {
+                continue;
+            }
+            byte[] encoded = new byte[body.remaining()];
+            body.get(encoded);
+            try {
+                DNSMessage response = DNSMessage.decodeMessage(encoded);
+                DNSQuestion question = response.getQuestions()[0];
+                int rCode = response.getHeader().getRCode();
+                (negative ? negativeCache : cache).restore(question, rCode, response.getAnswers(), response.getNSRecords(), ttl);
+                loaded++;
+            } catch (IOException | RuntimeException e) {
+                // The CRC matched, so this is an entry the decoder can't handle rather than damage. Skip it
+            }
+        }
+        return loaded;
+    }
+
+    // Release the mapping now. Left to the garbage collector it would hold on to the pages of a file that the next
+    // save has already replaced. Nothing may read the buffer afterwards
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not available on this JVM, the mapping goes when the buffer is collected
+        }
+    }
+}
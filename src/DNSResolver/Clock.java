@@ -0,0 +1,35 @@
+package DNSResolver;
+
+import java.util.concurrent.locks.LockSupport;
+
+// A coarse monotonic clock in milliseconds, for TTLs and expiry.
+// Reading it is a single volatile read of a field that a daemon thread moves forward every TICK_MILLIS, instead of
+// a System.nanoTime call for every cache lookup and record written. Being based on System.nanoTime it never jumps
+// when the wall clock is set. Readings may be up to TICK_MILLIS behind, which doesn't matter for TTLs of seconds.
+// Readings count from when the class was loaded, so only differences between them mean anything.
+public class Clock {
+    private static final long TICK_MILLIS = 5;
+
+    private static final long ORIGIN = System.nanoTime();
+
+    private static volatile long now = 0;
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                LockSupport.parkNanos(TICK_MILLIS * 1_000_000);
+                now = (System.nanoTime() - ORIGIN) / 1_000_000;
+            }
+        }, "dns-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private Clock() {
+    }
+
+    // The time in milliseconds, to within TICK_MILLIS
+    public static long millis() {
+        return now;
+    }
+}
@@ -0,0 +1,174 @@
+package DNSResolver;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Name compression (RFC 1035 section 4.1.4) for the message being encoded: every name, and every suffix of a name,
+// written so far is remembered with its offset in the message, so a later name ending the same way is written as
+// its first labels and a pointer to the rest (mail.utah.edu after www.utah.edu becomes 4 m a i l then a pointer to
+// utah.edu). Names compare case insensitively.
+// The table is open addressed over primitive arrays holding only a hash and an offset for each suffix; a hash match
+// is confirmed by comparing against the bytes already in the output, following the pointers found there. Nothing
+// is allocated while encoding, and starting a new message only bumps a generation number, which marks every slot
+// from the last message empty at once.
+// Tables are pooled (acquire and release) rather than kept per thread, so a virtual thread that encodes one message
+// and ends doesn't cost a table of its own.
+public class CompressionTable {
+    // Slots in the table, a power of two, and the most suffixes remembered in one message. Later suffixes are
+    // written uncompressed, which only happens for messages with hundreds of names
+    private static final int SLOTS = 512;
+    private static final int MAX_ENTRIES = SLOTS / 2;
+
+    // Pointers only have 14 bits, names further into the message can't be pointed to
+    private static final int MAX_POINTER = 0x3FFF;
+
+    // A name is at most 255 bytes, so at most 127 labels
+    private static final int MAX_LABELS = 128;
+
+    // Tables not in use, shared by every thread. At most MAX_POOLED are kept, any more are left to the garbage collector
+    private static final int MAX_POOLED = 256;
+    private static final ConcurrentLinkedQueue<CompressionTable> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private int[] hashes = new int[SLOTS];
+    private int[] offsets = new int[SLOTS];
+    private int[] generations = new int[SLOTS];
+    private int generation = 0;
+    private int entries;
+
+    // Where the message starts in the output buffer, offsets are from here
+    private int base;
+
+    // Scratch space for the name being written: where each label starts, and the hash of the suffix starting there
+    private int[] labelStarts = new int[MAX_LABELS];
+    private int[] suffixHashes = new int[MAX_LABELS];
+
+    // A table from the pool, or a new one if every pooled table is in use
+    static CompressionTable acquire() {
+        CompressionTable table = POOL.poll();
+        if (table == null) {
+            return new CompressionTable();
+        }
+        POOLED.decrementAndGet();
+        return table;
+    }
+
+    // Give a table back once the message it was used for is written
+    static void release(CompressionTable table) {
+        if (POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        POOL.offer(table);
+    }
+
+    // Forget every name, for a new message starting at base in the output buffer
+    void reset(int base) {
+        this.base = base;
+        entries = 0;
+        generation++;
+        if (generation == 0) {
+            // Wrapped around, clear out slots that could look current again
+            Arrays.fill(generations, 0);
+            generation = 1;
+        }
+    }
+
+    // Write the uncompressed wire format name starting at offset in name, compressed against the names already
+    // written. Returns the offset just past the name in name
+    int writeName(ByteBuffer output, byte[] name, int offset) {
+        int labels = 0;
+        int position = offset;
+        while (name[position] != 0) {
+            labelStarts[labels++] = position;
+            position += (name[position] & 0xff) + 1;
+        }
+        int end = position + 1;
+        // Hash every suffix, from the shortest up, each from its first label and the hash of the rest
+        int hash = 0;
+        for (int i = labels - 1; i >= 0; i--) {
+            hash = labelHash(name, labelStarts[i]) + hash * 0x9E3779B1;
+            suffixHashes[i] = hash;
+        }
+        for (int i = 0; i < labels; i++) {
+            int pointer = find(output, suffixHashes[i], name, labelStarts[i]);
+            if (pointer >= 0) {
+                output.putShort((short) (0xC000 | pointer));
+                return end;
+            }
+            add(suffixHashes[i], output.position() - base);
+            int start = labelStarts[i];
+            output.put(name, start, (name[start] & 0xff) + 1);
+        }
+        output.put((byte) 0);
+        return end;
+    }
+
+    // Hash of a label, lowercased
+    private static int labelHash(byte[] name, int start) {
+        int hash = name[start];
+        for (int i = start + 1; i <= start + (name[start] & 0xff); i++) {
+            hash = 31 * hash + lower(name[i]);
+        }
+        return hash;
+    }
+
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & (SLOTS - 1);
+    }
+
+    // Offset in the message of an earlier copy of the suffix starting at start in name, or -1 if there is none
+    private int find(ByteBuffer output, int hash, byte[] name, int start) {
+        for (int slot = slot(hash); generations[slot] == generation; slot = (slot + 1) & (SLOTS - 1)) {
+            if (hashes[slot] == hash && matches(output, offsets[slot], name, start)) {
+                return offsets[slot];
+            }
+        }
+        return -1;
+    }
+
+    private void add(int hash, int offset) {
+        if (offset > MAX_POINTER || entries == MAX_ENTRIES) {
+            return;
+        }
+        int slot = slot(hash);
+        while (generations[slot] == generation) {
+            slot = (slot + 1) & (SLOTS - 1);
+        }
+        generations[slot] = generation;
+        hashes[slot] = hash;
+        offsets[slot] = offset;
+        entries++;
+    }
+
+    // Whether the name at offset in the message, which may end in a pointer, is the suffix starting at start in name
+    private boolean matches(ByteBuffer output, int offset, byte[] name, int start) {
+        int position = base + offset;
+        while (true) {
+            int length = output.get(position) & 0xff;
+            if ((length & 0xC0) == 0xC0) {
+                position = base + (((length & 0x3F) << 8) | (output.get(position + 1) & 0xff));
+                continue;
+            }
+            if (length != (name[start] & 0xff)) {
+                return false;
+            }
+            if (length == 0) {
+                return true;
+            }
+            for (int i = 1; i <= length; i++) {
+                if (lower(output.get(position + i)) != lower(name[start + i])) {
+                    return false;
+                }
+            }
+            position += length + 1;
+            start += length + 1;
+        }
+    }
+}
@@ -1,32 +1,414 @@
 package DNSResolver;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
-// Local Cache of DNSRecords
+// Local Cache of DNSRecords, each kept with its encoded response (see CacheEntry)
+// Entries are keyed by name, type and class. Besides the complete answer to each question asked, every record set on
+// the question's CNAME chain in a reply is cached on its own, so answers for aliases can be put together from cached
+// CNAME chains.
+// The cache is split into shards, each guarded by its own lock, so threads asking about different questions
+// rarely wait on each other. Each shard keeps its entries in least recently used order and evicts from the old end
+// once it is over its share of the entry count or the approximate byte limit.
+// Each shard also keeps its entries in a TimingWheel by expiry time, and expire(), called every second, removes the
+// ones whose TTL has run out, so dead entries don't sit taking up memory until they are asked for or evicted.
+// With a stale window, expired entries are kept that much longer: lookups no longer find them, but lookupStale() does,
+// for answering when the upstreams are slow or down (RFC 8767). They go once the window has passed.
 public class DNSCache {
-    private static HashMap<DNSQuestion, DNSRecord> cache;
+    // Approximate overhead of one LinkedHashMap entry (entry object, before/after links, table slot)
+    private static final int ENTRY_OVERHEAD = 56;
+
+    // Longest chain of CNAME records followed when putting an answer together
+    private static final int MAX_CHAIN = 8;
+
+    private Shard[] shards;
+    private int shardMask;
+
+    // How long expired entries are kept to be served stale, 0 for not at all
+    private long staleMillis;
+
+    // Counters for watching how well the cache is doing
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
 
     public DNSCache() {
-        cache = new HashMap<>();
+        this(100_000, 64L * 1024 * 1024, 16);
+    }
+
+    // maxEntries and maxBytes are limits for the whole cache, split evenly between the shards
+    // shardCount is rounded up to a power of two
+    public DNSCache(int maxEntries, long maxBytes, int shardCount) {
+        this(maxEntries, maxBytes, shardCount, 0);
+    }
+
+    public DNSCache(int maxEntries, long maxBytes, int shardCount, long staleMillis) {
+        this.staleMillis = staleMillis;
+        int count = 1;
+        while (count < shardCount) {
+            count <<= 1;
+        }
+        shards = new Shard[count];
+        shardMask = count - 1;
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(Math.max(1, maxEntries / count), Math.max(1, maxBytes / count));
+        }
+    }
+
+    // Getters for cache statistics
+    public long getHits() {
+        return hits.sum();
+    }
+    public long getMisses() {
+        return misses.sum();
+    }
+    public long getEvictions() {
+        return evictions.sum();
+    }
+    // Entries removed because their TTL, and stale window if any, ran out, whether found by a lookup or by expire()
+    public long getExpired() {
+        long expired = 0;
+        for (Shard shard : shards) {
+            expired += shard.expired();
+        }
+        return expired;
+    }
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+    public long byteSize() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            bytes += shard.byteSize();
+        }
+        return bytes;
+    }
+
+    // Find a valid entry for the question in a single probe, or null if there is none.
+    // An entry past its TTL counts as a miss, and is removed in the same step unless it is being kept stale.
+    // If there is no entry for the question but the name is an alias, whose chain of CNAME records is cached through to
+    // records of the type asked for, the answer is put together from the chain and cached for the question.
+    public CacheEntry lookup(DNSQuestion question) throws IOException {
+        CacheEntry entry = shardFor(question).get(question);
+        if (entry == null && question.getqType() != DNSRecord.TYPE_CNAME) {
+            entry = followAliases(question);
+        }
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    // An entry for the question that has expired but is still within the stale window, or null if there is none.
+    // Not counted as a hit or a miss, the lookup() before it already was
+    public CacheEntry lookupStale(DNSQuestion question) {
+        if (staleMillis <= 0) {
+            return null;
+        }
+        return shardFor(question).getStale(question);
+    }
+
+    // Remove every entry whose TTL and stale window have run out, returning how many were removed. Called every
+    // TimingWheel tick
+    public int expire() {
+        long now = Clock.millis();
+        int removed = 0;
+        for (Shard shard : shards) {
+            removed += shard.expire(now);
+        }
+        return removed;
+    }
+
+    // Cache the record as the answer to the question, encoding its response up front
+    public void addRecord(DNSQuestion question, DNSRecord record) throws IOException {
+        add(question, 0, new DNSRecord[] {record}, new DNSRecord[0], record.remainingTtl());
+    }
+
+    // Cache what a positive reply says about the question: the complete answer, and under its own name, type and
+    // class every record set on the chain of CNAME records from the question's name, and every NS record set in the
+    // authority section for a zone holding a name on that chain. Anything else in the reply has nothing to do with
+    // the question, and is left out so an upstream, or a spoofed reply, can't plant records for other names
+    public void addResponse(DNSQuestion question, DNSMessage reply) throws IOException {
+        LinkedHashMap<DNSQuestion, ArrayList<DNSRecord>> answerSets = new LinkedHashMap<>();
+        groupRecordSets(reply.getAnswers(), answerSets);
+        LinkedHashMap<DNSQuestion, ArrayList<DNSRecord>> recordSets = new LinkedHashMap<>();
+        ArrayList<DomainName> chain = new ArrayList<>();
+        DomainName name = question.getqName();
+        for (int i = 0; i <= MAX_CHAIN; i++) {
+            chain.add(name);
+            DNSQuestion key = new DNSQuestion(name, question.getqType(), question.getqClass());
+            if (answerSets.containsKey(key)) {
+                recordSets.put(key, answerSets.get(key));
+                break;
+            }
+            DNSQuestion aliasKey = new DNSQuestion(name, DNSRecord.TYPE_CNAME, question.getqClass());
+            if (!answerSets.containsKey(aliasKey) || recordSets.containsKey(aliasKey)) {
+                break;
+            }
+            recordSets.put(aliasKey, answerSets.get(aliasKey));
+            name = DomainName.fromWire(answerSets.get(aliasKey).get(0).getrData());
+        }
+        if (recordSets.isEmpty()) {
+            return;
+        }
+        ArrayList<DNSRecord> answers = new ArrayList<>();
+        for (ArrayList<DNSRecord> records : recordSets.values()) {
+            answers.addAll(records);
+        }
+        ArrayList<DNSRecord> authority = new ArrayList<>();
+        for (DNSRecord record : nameServers(reply.getNSRecords())) {
+            for (DomainName link : chain) {
+                if (link.isSubdomainOf(record.getName())) {
+                    authority.add(record);
+                    break;
+                }
+            }
+        }
+        DNSRecord[] answerRecords = answers.toArray(new DNSRecord[answers.size()]);
+        DNSRecord[] authorityRecords = authority.toArray(new DNSRecord[authority.size()]);
+        add(question, 0, answerRecords, authorityRecords, minTtl(answerRecords, authorityRecords));
+        LinkedHashMap<DNSQuestion, ArrayList<DNSRecord>> nameServerSets = new LinkedHashMap<>();
+        groupRecordSets(authorityRecords, nameServerSets);
+        for (Map.Entry<DNSQuestion, ArrayList<DNSRecord>> recordSet : nameServerSets.entrySet()) {
+            recordSets.putIfAbsent(recordSet.getKey(), recordSet.getValue());
+        }
+        for (Map.Entry<DNSQuestion, ArrayList<DNSRecord>> recordSet : recordSets.entrySet()) {
+            if (!recordSet.getKey().equals(question)) {
+                DNSRecord[] records = recordSet.getValue().toArray(new DNSRecord[recordSet.getValue().size()]);
+                add(recordSet.getKey(), 0, records, new DNSRecord[0], minTtl(records, new DNSRecord[0]));
+            }
+        }
+    }
+
+    // Cache a negative answer to the question, kept for as long as the SOA record allows up to maxTtl seconds
+    public void addNegative(DNSQuestion question, int rCode, DNSRecord soa, int maxTtl) throws IOException {
+        add(question, rCode, new DNSRecord[0], new DNSRecord[] {soa}, Math.min(soa.negativeTtl(), maxTtl));
+    }
+
+    public void add(DNSQuestion question, int rCode, DNSRecord[] answers, DNSRecord[] authority, int ttl) throws IOException {
+        if (ttl <= 0) {
+            return;
+        }
+        for (DNSRecord record : answers) {
+            record.internName();
+        }
+        DNSQuestion key = question.interned();
+        CacheEntry entry = new CacheEntry(key, rCode, answers, authority, ttl);
+        entry.keepStaleFor(staleMillis);
+        evictions.add(shardFor(key).put(key, entry));
+    }
+
+    // Cache an entry loaded from a snapshot (see CacheSnapshot), unless the question already has one, which is newer,
+    // or at least still good to serve stale
+    public void restore(DNSQuestion question, int rCode, DNSRecord[] answers, DNSRecord[] authority, int ttl) throws IOException {
+        if (ttl <= 0) {
+            return;
+        }
+        for (DNSRecord record : answers) {
+            record.internName();
+            record.limitTtl(ttl);
+        }
+        for (DNSRecord record : authority) {
+            record.limitTtl(ttl);
+        }
+        DNSQuestion key = question.interned();
+        CacheEntry entry = new CacheEntry(key, rCode, answers, authority, ttl);
+        entry.keepStaleFor(staleMillis);
+        evictions.add(shardFor(key).putIfAbsent(key, entry));
+    }
+
+    // Hand every valid entry to the action, one shard at a time. The action runs outside the shard's lock, so the
+    // cache can be used meanwhile, and it doesn't see entries added after their shard was copied
+    public void forEach(BiConsumer<DNSQuestion, CacheEntry> action) {
+        for (Shard shard : shards) {
+            for (Map.Entry<DNSQuestion, CacheEntry> entry : shard.validEntries()) {
+                action.accept(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // Walk a chain of cached CNAME records from the question's name until reaching a name with cached records of the
+    // type asked for. Returns null if any link is missing or the chain is too long.
+    private CacheEntry followAliases(DNSQuestion question) throws IOException {
+        ArrayList<DNSRecord> chain = new ArrayList<>();
+        int ttl = Integer.MAX_VALUE;
+        DomainName name = question.getqName();
+        for (int i = 0; i < MAX_CHAIN; i++) {
+            DNSQuestion aliasKey = new DNSQuestion(name, DNSRecord.TYPE_CNAME, question.getqClass());
+            CacheEntry alias = shardFor(aliasKey).get(aliasKey);
+            if (alias == null || alias.getAnswers().length == 0) {
+                return null;
+            }
+            DNSRecord cname = alias.getAnswers()[0];
+            chain.add(cname);
+            ttl = Math.min(ttl, alias.remainingTtl());
+            name = DomainName.fromWire(cname.getrData());
+            DNSQuestion targetKey = new DNSQuestion(name, question.getqType(), question.getqClass());
+            CacheEntry target = shardFor(targetKey).get(targetKey);
+            if (target != null && !target.isNegative()) {
+                Collections.addAll(chain, target.getAnswers());
+                ttl = Math.min(ttl, target.remainingTtl());
+                add(question, 0, chain.toArray(new DNSRecord[chain.size()]), target.getAuthority(), ttl);
+                return shardFor(question).get(question);
+            }
+        }
+        return null;
     }
 
-    public static boolean contains (DNSQuestion question) {
-        if (cache.containsKey(question)) {
-            if(cache.get(question).timestampValid()) {
-                return true;
-            } else {
-                cache.remove(question);
+    // Only the NS records of an authority section are kept with a positive answer
+    static DNSRecord[] nameServers(DNSRecord[] authority) {
+        ArrayList<DNSRecord> nameServers = new ArrayList<>();
+        for (DNSRecord record : authority) {
+            if (record.getType() == DNSRecord.TYPE_NS) {
+                nameServers.add(record);
             }
         }
-        return false;
+        return nameServers.toArray(new DNSRecord[nameServers.size()]);
+    }
+
+    // Sort records into record sets, all records with the same name, type and class
+    private static void groupRecordSets(DNSRecord[] records, LinkedHashMap<DNSQuestion, ArrayList<DNSRecord>> recordSets) {
+        for (DNSRecord record : records) {
+            DNSQuestion key = new DNSQuestion(record.getName(), record.getType(), record.getrClass());
+            recordSets.computeIfAbsent(key, k -> new ArrayList<>()).add(record);
+        }
+    }
+
+    // An answer can only be cached as long as its shortest lived record has left
+    private static int minTtl(DNSRecord[] answers, DNSRecord[] authority) {
+        int ttl = Integer.MAX_VALUE;
+        for (DNSRecord record : answers) {
+            ttl = Math.min(ttl, record.remainingTtl());
+        }
+        for (DNSRecord record : authority) {
+            ttl = Math.min(ttl, record.remainingTtl());
+        }
+        return ttl;
     }
 
-    public static DNSRecord getRecord(DNSQuestion question) {
-        return cache.get(question);
+    // Spread the hash so shards are picked from the high bits as well as the low ones
+    private Shard shardFor(DNSQuestion question) {
+        int hash = question.hashCode();
+        hash ^= hash >>> 16;
+        return shards[hash & shardMask];
     }
 
-    static void addRecord(DNSQuestion question, DNSRecord record) {
-        cache.put(question, record);
+    private static long entrySize(DNSQuestion question, CacheEntry entry) {
+        return ENTRY_OVERHEAD + question.estimateSize() + entry.estimateSize();
     }
 
+    // One stripe of the cache, an access ordered LinkedHashMap with its own limits, and its entries by expiry time
+    private static class Shard {
+        private LinkedHashMap<DNSQuestion, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private TimingWheel wheel = new TimingWheel(Clock.millis());
+        private int maxEntries;
+        private long maxBytes;
+        private long bytes;
+        // Entries found expired and removed
+        private long expired;
+
+        Shard(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+        synchronized long byteSize() {
+            return bytes;
+        }
+        synchronized long expired() {
+            return expired;
+        }
+
+        synchronized CacheEntry get(DNSQuestion question) {
+            CacheEntry entry = entries.get(question);
+            if (entry != null && !entry.isValid()) {
+                if (!entry.isStale()) {
+                    entries.remove(question);
+                    wheel.remove(entry);
+                    bytes -= entrySize(question, entry);
+                    expired++;
+                }
+                return null;
+            }
+            if (entry != null) {
+                entry.recordHit();
+            }
+            return entry;
+        }
+
+        synchronized CacheEntry getStale(DNSQuestion question) {
+            CacheEntry entry = entries.get(question);
+            return entry != null && entry.isStale() ? entry : null;
+        }
+
+        // Copy of the entries that haven't expired, without touching their order
+        synchronized ArrayList<Map.Entry<DNSQuestion, CacheEntry>> validEntries() {
+            ArrayList<Map.Entry<DNSQuestion, CacheEntry>> valid = new ArrayList<>(entries.size());
+            for (Map.Entry<DNSQuestion, CacheEntry> entry : entries.entrySet()) {
+                if (entry.getValue().isValid()) {
+                    valid.add(Map.entry(entry.getKey(), entry.getValue()));
+                }
+            }
+            return valid;
+        }
+
+        synchronized int putIfAbsent(DNSQuestion question, CacheEntry entry) {
+            if (entries.containsKey(question)) {
+                return 0;
+            }
+            return put(question, entry);
+        }
+
+        // Returns how many entries had to be evicted to make room
+        synchronized int put(DNSQuestion question, CacheEntry entry) {
+            CacheEntry old = entries.put(question, entry);
+            if (old != null) {
+                wheel.remove(old);
+                bytes -= entrySize(question, old);
+            }
+            wheel.add(entry);
+            bytes += entrySize(question, entry);
+            int evicted = 0;
+            Iterator<Map.Entry<DNSQuestion, CacheEntry>> eldest = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+                Map.Entry<DNSQuestion, CacheEntry> oldest = eldest.next();
+                if (oldest.getKey().equals(question)) {
+                    // Never evict the entry that was just added, even if it alone is over the byte limit
+                    continue;
+                }
+                bytes -= entrySize(oldest.getKey(), oldest.getValue());
+                wheel.remove(oldest.getValue());
+                eldest.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        // Remove the entries the wheel finds expired by now, returning how many
+        synchronized int expire(long now) {
+            long before = expired;
+            wheel.advance(now, entry -> {
+                if (entries.remove(entry.getQuestion(), entry)) {
+                    bytes -= entrySize(entry.getQuestion(), entry);
+                    expired++;
+                }
+            });
+            return (int) (expired - before);
+        }
+    }
 }
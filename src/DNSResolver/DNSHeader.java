@@ -1,8 +1,6 @@
 package DNSResolver;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 // This class stores the info from the first 12 bytes of an incoming DNS Request
 // Details as to what bits do what was obtained from:
@@ -72,6 +70,15 @@ public class DNSHeader {
     public int getId() {
         return id;
     }
+    public int getTc() {
+        return tc;
+    }
+    public int getRd() {
+        return rd;
+    }
+    public int getRCode() {
+        return rCode;
+    }
     public int getQdCount() {
         return qdCount;
     }
@@ -85,55 +92,51 @@ public class DNSHeader {
         return arCount;
     }
 
-    // Read header bites from input stream with ByteArrayInputStream
-    public static DNSHeader decodeHeader(ByteArrayInputStream input) throws IOException {
+    // Read header bites from the start of the buffer
+    public static DNSHeader decodeHeader(ByteBuffer input) {
         DNSHeader header = new DNSHeader();
         int mask = 0xf;
         // Pull out first two bytes for the ID
-        header.id = DNSMessage.getByteGroup(2, input);
-
-        // Third Byte contains a single bit, followed by a 4 bits opcode, followed by 3 single bit fields
-        int byteThree = DNSMessage.getByteGroup(1, input);
-        header.qr = DNSMessage.getSingleBit(byteThree, 0);
-        header.aa = DNSMessage.getSingleBit(byteThree, 5);
-        header.tc = DNSMessage.getSingleBit(byteThree, 6);
-        header.rd = DNSMessage.getSingleBit(byteThree, 7);
-        byteThree = byteThree >> 3; //remove last bits to get opCode
-        header.opCode = byteThree & mask;
-
-        // Fourth Byte contains single bit, 3 bits for the "z" space, 4 bits for the rCode
-        int byteFour = DNSMessage.getByteGroup(1, input);
-        header.ra = DNSMessage.getSingleBit(byteFour, 0);
-        header.z = DNSMessage.getSingleBit(byteFour, 1);
-        header.z = header.z << 1;
-        header.z = header.z & DNSMessage.getSingleBit(byteFour, 2);
-        header.z = header.z << 1;
-        header.z = header.z & DNSMessage.getSingleBit(byteFour, 3);
-        header.z = header.z & mask;
-        header.rCode = header.rCode | byteFour;
-        header.rCode = header.rCode & mask;
+        header.id = DNSMessage.getShort(input);
+
+        // Next two bytes are the flags
+        // QR|OPCODE|AA|TC|RD|RA|Z|RCODE = 1|4|1|1|1|1|3|4 bits
+        int flags = DNSMessage.getShort(input);
+        header.qr = (flags >> 15) & 1;
+        header.opCode = (flags >> 11) & mask;
+        header.aa = (flags >> 10) & 1;
+        header.tc = (flags >> 9) & 1;
+        header.rd = (flags >> 8) & 1;
+        header.ra = (flags >> 7) & 1;
+        header.z = (flags >> 4) & 0x7;
+        header.rCode = flags & mask;
 
         // Remaining header fields are 2 bytes each
-        header.qdCount = DNSMessage.getByteGroup(2, input);
-        header.anCount = DNSMessage.getByteGroup(2, input);
-        header.nsCount = DNSMessage.getByteGroup(2, input);
-        header.arCount = DNSMessage.getByteGroup(2, input);
+        header.qdCount = DNSMessage.getShort(input);
+        header.anCount = DNSMessage.getShort(input);
+        header.nsCount = DNSMessage.getShort(input);
+        header.arCount = DNSMessage.getShort(input);
 
         return header;
     }
 
     // Generate a Response Header object for sending back to client
     public static DNSHeader buildResponseHeader(DNSMessage request, DNSMessage response) {
+        return buildResponseHeader(request.getHeader().getId(), request.getHeader().getRd(), 0, response);
+    }
+
+    // Generate a Response Header from just the ID and Recursion Desired bit being echoed back, and the rCode
+    public static DNSHeader buildResponseHeader(int id, int rd, int rCode, DNSMessage response) {
         DNSHeader responseHeader = new DNSHeader();
-        responseHeader.id = request.getHeader().getId();
+        responseHeader.id = id;
         responseHeader.qr = 1;
         responseHeader.opCode = 0;
         responseHeader.aa = 0;
         responseHeader.tc = 0;
-        responseHeader.rd = 1;
+        responseHeader.rd = rd;
         responseHeader.ra = 1;
         responseHeader.z = 0;
-        responseHeader.rCode = 0;
+        responseHeader.rCode = rCode;
         responseHeader.qdCount = response.getQuestions().length;
         responseHeader.anCount = response.getAnswers().length;
         responseHeader.nsCount = response.getNSRecords().length;
@@ -142,16 +145,46 @@ public class DNSHeader {
         return responseHeader;
     }
 
+    // Generate a Header for a query of our own, asking for recursion or not
+    public static DNSHeader buildQueryHeader(int id, boolean recursionDesired, DNSMessage query) {
+        DNSHeader queryHeader = new DNSHeader();
+        queryHeader.id = id;
+        queryHeader.rd = recursionDesired ? 1 : 0;
+        queryHeader.qdCount = query.getQuestions().length;
+        queryHeader.anCount = query.getAnswers().length;
+        queryHeader.nsCount = query.getNSRecords().length;
+        queryHeader.arCount = query.getAddRecords().length;
+        return queryHeader;
+    }
+
+    // Generate a Response Header carrying an error code, e.g. 2 (Server Failure) when Google never answers
+    public static DNSHeader buildErrorHeader(DNSMessage request, DNSMessage response, int rCode) {
+        return buildResponseHeader(request.getHeader().getId(), request.getHeader().getRd(), rCode, response);
+    }
+
+    // Generate a Response Header with the Truncation bit set, for a response too large to send over UDP
+    public static DNSHeader buildTruncatedHeader(DNSMessage response, DNSMessage truncated) {
+        DNSHeader header = buildResponseHeader(response.getHeader().getId(), response.getHeader().getRd(), response.getHeader().getRCode(), truncated);
+        header.tc = 1;
+        return header;
+    }
+
+    // Set when an OPT record is added to a response after it was built
+    void setArCount(int arCount) {
+        this.arCount = arCount;
+    }
+
     // Encode the header to bytes to be sent back to the client.
-    void writeBytes(ByteArrayOutputStream output) throws IOException {
-        output.write(DNSMessage.intToByteArray(id));
+    void writeTo(ByteBuffer output) {
+        output.putShort((short) id);
         // QR|OPCODE|AA|TC|RD|RA|Z|RCODE = 16 bits
-        // 1|0000|0|0|1|1|000|0000 = 1000000110000000 = 33152 = 0x8180
-        output.write(DNSMessage.intToByteArray(33152));
-        output.write(DNSMessage.intToByteArray(qdCount));
-        output.write(DNSMessage.intToByteArray(anCount));
-        output.write(DNSMessage.intToByteArray(nsCount));
-        output.write(DNSMessage.intToByteArray(arCount));
+        // Usually 1|0000|0|0|1|1|000|0000 = 1000000110000000 = 33152 = 0x8180
+        int flags = qr << 15 | opCode << 11 | aa << 10 | tc << 9 | rd << 8 | ra << 7 | z << 4 | rCode;
+        output.putShort((short) flags);
+        output.putShort((short) qdCount);
+        output.putShort((short) anCount);
+        output.putShort((short) nsCount);
+        output.putShort((short) arCount);
     }
 
     // Return a human readable string version of a header object.
@@ -1,13 +1,20 @@
 package DNSResolver;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 
 public class DNSMessage {
+    // Largest response sent over UDP to a client that doesn't use EDNS (RFC 1035), anything larger is truncated
+    public static final int MAX_UDP_SIZE = 512;
+
+    // Buffers for toBytes to encode into, large enough for any message. Pooled rather than kept per thread, since in
+    // THREAD_PER_QUERY mode every request can be on a new virtual thread
+    private static final BufferPool ENCODE_BUFFERS = new BufferPool(TcpConnection.MAX_MESSAGE, 16);
+
     private byte[] rawData;
     private DNSHeader header = new DNSHeader();
     private DNSQuestion[] questions;
@@ -35,172 +42,222 @@ public class DNSMessage {
         return additionalRecords;
     }
 
-    // Helper Methods for reading and writing bits/bytes
-    // Pulls out specified number of Bytes (8 bits each)
-    public static int getByteGroup(int numBytes, ByteArrayInputStream input) {
-        int result = 0;
-        int mask = 0xff;
-        for (int i = numBytes - 1; i >= 0; i--){ // i is used to shift bits, needs to be 0 on last loop for no shifting
-            int tempByte = input.read();
-            tempByte = tempByte & mask;
-            tempByte = tempByte << (8 * i);
-            result = result | tempByte;
+    // The OPT record in the additional section, null if the sender doesn't use EDNS
+    public DNSRecord getOpt() {
+        for (DNSRecord record : additionalRecords) {
+            if (record.getType() == DNSRecord.TYPE_OPT) {
+                return record;
+            }
         }
+        return null;
+    }
 
-        return result;
+    // Largest response that can go back to the sender of this request over UDP: the payload size its OPT record
+    // advertises, but no more than maxPayloadSize, and 512 without EDNS
+    public int udpPayloadSize(int maxPayloadSize) {
+        DNSRecord opt = getOpt();
+        if (opt == null) {
+            return MAX_UDP_SIZE;
+        }
+        return Math.max(MAX_UDP_SIZE, Math.min(opt.getrClass(), maxPayloadSize));
     }
 
-    // Pulls out single bit for use
-    public static int getSingleBit(int inputByte, int bitLocation) {
-        int result = 0;
-        int mask = 0xff;
-        int temp = 0;
-        temp = inputByte << bitLocation;
-        result = result | temp;
-        result = result & mask;
-        result = result >> 7;
+    // Put an OPT record of our own in the additional section, in place of any other OPT record
+    public void setOpt(DNSRecord opt) {
+        ArrayList<DNSRecord> records = new ArrayList<>(additionalRecords.length + 1);
+        for (DNSRecord record : additionalRecords) {
+            if (record.getType() != DNSRecord.TYPE_OPT) {
+                records.add(record);
+            }
+        }
+        records.add(opt);
+        setAdditional(records.toArray(new DNSRecord[records.size()]));
+    }
 
-        return result;
+    // Replace the additional section, e.g. with glue for the name servers of a referral
+    public void setAdditional(DNSRecord[] records) {
+        additionalRecords = records;
+        header.setArCount(records.length);
     }
 
-    // Converts 16 bit ints to byte[]
-    public static byte [] intToByteArray(int n) {
-        byte [] bytes = new byte [2];
-        bytes[0] = (byte) (n >> 8 & 0xff);
-        bytes[1] = (byte) (n & 0xff);
-        return bytes;
+    // Helper Methods for reading and writing bits/bytes
+    // Reads an unsigned 16 bit value at the buffer's position
+    public static int getShort(ByteBuffer input) {
+        return input.getShort() & 0xffff;
     }
 
+    // Decodes a whole packet. Every field is read straight out of the packet bytes through a ByteBuffer,
+    // with compression pointers followed by absolute offset rather than by copying the packet again.
+    // A packet that ends before its header, questions or records do is an IOException
     public static DNSMessage decodeMessage(byte[] bytes) throws IOException {
+        try {
+            return decode(bytes);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Packet of " + bytes.length + " bytes ends early", e);
+        }
+    }
+
+    private static DNSMessage decode(byte[] bytes) throws IOException {
         DNSMessage message = new DNSMessage();
 
         message.rawData = bytes;
-        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+        ByteBuffer input = ByteBuffer.wrap(bytes);
         message.header = DNSHeader.decodeHeader(input);
         message.questions = new DNSQuestion[message.header.getQdCount()];
         for (int i = 0; i < message.questions.length; i++) {
-            message.questions[i] = DNSQuestion.decodeQuestion(input, message);
+            message.questions[i] = DNSQuestion.decodeQuestion(input);
         }
         message.answers = new DNSRecord[message.header.getAnCount()];
         for (int i = 0; i < message.answers.length; i++) {
-            message.answers[i] = DNSRecord.decodeRecord(input, message);
+            message.answers[i] = DNSRecord.decodeRecord(input);
         }
         message.nsRecords = new DNSRecord[message.header.getNsCount()];
         for (int i = 0; i < message.nsRecords.length; i++) {
-            message.nsRecords[i] = DNSRecord.decodeRecord(input, message);
+            message.nsRecords[i] = DNSRecord.decodeRecord(input);
         }
         message.additionalRecords = new DNSRecord[message.header.getArCount()];
         for (int i = 0; i < message.additionalRecords.length; i++) {
-            message.additionalRecords[i] = DNSRecord.decodeRecord(input, message);
+            message.additionalRecords[i] = DNSRecord.decodeRecord(input);
         }
 
         return message;
     }
 
-    // Read the pieces of a domain name starting from the current position of the input stream
-    public String[] readDomainName(ByteArrayInputStream input){
-        ArrayList<String> sections = new ArrayList<>();
-        while (true) {
-            byte length = (byte) input.read();
-            if (length < 0) {
-                int mask = 0x3F;
-                length = (byte) (length & mask);
-                length = (byte) (length << 8);
-                length = (byte) (length | input.read());
-                return readDomainName(length);
-            }
-            if (length == 0) {
-                break;
-            }
-            String section = "";
-            for (int i = 0; i < length; i++) {
-                section += (char) input.read();
-            }
-            sections.add(section);
-        }
-        String[] domain = new String[sections.size()];
-        for (int i = 0; i < domain.length; i++) {
-            domain[i] = sections.get(i);
-        }
-        return domain;
-    }
-
-    // Same, but used when there's compression and we need to find the domain from earlier in the message.
-    // This method should make a ByteArrayInputStream that starts at the specified byte and call the other version of this method
-    public String[] readDomainName(int firstByte){
-        ByteArrayInputStream input = new ByteArrayInputStream(rawData);
-        input.skip(firstByte);
-        return readDomainName(input);
-    }
-
     // Build a response based on the request and the answers you intend to send back.
+    // The request's additional section is not sent back: a client using EDNS gets our OPT record instead (setOpt)
     public static DNSMessage buildResponse(DNSMessage request, DNSRecord[] answers){
         DNSMessage response = new DNSMessage();
         response.questions = request.getQuestions();
         response.answers = answers;
         response.nsRecords = request.getNSRecords();
-        response.additionalRecords = request.getAddRecords();
+        response.additionalRecords = new DNSRecord[0];
         response.header = DNSHeader.buildResponseHeader(request, response);
         return response;
     }
 
-    // Get the bytes to put in a packet and send back.
-    public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        HashMap<String, Integer> dnLocations = new HashMap<>();
-        header.writeBytes(output);
-        for (DNSQuestion question : questions) {
-            question.writeBytes(output, dnLocations);
-        }
-        for (DNSRecord record : answers) {
-            record.writeBytes(output, dnLocations);
-        }
-        for (DNSRecord record : nsRecords) {
-            record.writeBytes(output, dnLocations);
+    // Build a query of our own for a single question, advertising with EDNS that replies up to payloadSize bytes
+    // can come over UDP
+    public static DNSMessage buildQuery(DNSQuestion question, int id, int payloadSize) throws IOException {
+        return buildQuery(question, id, payloadSize, true);
+    }
+
+    // The same, asking for recursion or not: queries to authoritative servers when resolving iteratively don't
+    public static DNSMessage buildQuery(DNSQuestion question, int id, int payloadSize, boolean recursionDesired) throws IOException {
+        DNSMessage query = new DNSMessage();
+        query.questions = new DNSQuestion[] {question};
+        query.answers = new DNSRecord[0];
+        query.nsRecords = new DNSRecord[0];
+        query.additionalRecords = new DNSRecord[] {DNSRecord.buildOpt(payloadSize, 0)};
+        query.header = DNSHeader.buildQueryHeader(id, recursionDesired, query);
+        query.rawData = query.toBytes();
+        return query;
+    }
+
+    // Build an answerless response carrying only an error code, echoing the request's questions
+    public static DNSMessage buildErrorResponse(DNSMessage request, int rCode){
+        DNSMessage response = new DNSMessage();
+        response.questions = request.getQuestions();
+        response.answers = new DNSRecord[0];
+        response.nsRecords = new DNSRecord[0];
+        response.additionalRecords = new DNSRecord[0];
+        response.header = DNSHeader.buildErrorHeader(request, response, rCode);
+        return response;
+    }
+
+    // Build a response with an authority section and rCode of its own, e.g. the SOA record of a negative answer
+    public static DNSMessage buildResponse(DNSMessage request, DNSRecord[] answers, DNSRecord[] authority, int rCode){
+        DNSMessage response = new DNSMessage();
+        response.questions = request.getQuestions();
+        response.answers = answers;
+        response.nsRecords = authority;
+        response.additionalRecords = new DNSRecord[0];
+        response.header = DNSHeader.buildResponseHeader(request.getHeader().getId(), request.getHeader().getRd(), rCode, response);
+        return response;
+    }
+
+    // Build the response to send over UDP in place of one too large for it: just the header and questions, with the
+    // Truncation bit set so the client asks again over TCP
+    public static DNSMessage buildTruncatedResponse(DNSMessage response){
+        DNSMessage truncated = new DNSMessage();
+        truncated.questions = response.getQuestions();
+        truncated.answers = new DNSRecord[0];
+        truncated.nsRecords = new DNSRecord[0];
+        truncated.additionalRecords = new DNSRecord[0];
+        truncated.header = DNSHeader.buildTruncatedHeader(response, truncated);
+        return truncated;
+    }
+
+    // Build the response for a single question as it is kept in the cache, with an ID of 0 to be patched in later
+    public static DNSMessage buildCachedResponse(DNSQuestion question, int rCode, DNSRecord[] answers, DNSRecord[] authority){
+        DNSMessage response = new DNSMessage();
+        response.questions = new DNSQuestion[] {question};
+        response.answers = answers;
+        response.nsRecords = authority;
+        response.additionalRecords = new DNSRecord[0];
+        response.header = DNSHeader.buildResponseHeader(0, 1, rCode, response);
+        return response;
+    }
+
+    // Find where the TTL of every record in an encoded packet is, so it can be rewritten without decoding again
+    public static int[] ttlOffsets(byte[] packet) throws IOException {
+        ByteBuffer input = ByteBuffer.wrap(packet);
+        DNSHeader header = DNSHeader.decodeHeader(input);
+        for (int i = 0; i < header.getQdCount(); i++) {
+            DomainName.skip(input);
+            input.position(input.position() + 4);
         }
-        for (DNSRecord record : additionalRecords) {
-            record.writeBytes(output, dnLocations);
+        int[] offsets = new int[header.getAnCount() + header.getNsCount() + header.getArCount()];
+        for (int i = 0; i < offsets.length; i++) {
+            DomainName.skip(input);
+            // Type and class come before the TTL, the data length after
+            offsets[i] = input.position() + 4;
+            input.position(offsets[i] + 4);
+            int rLength = getShort(input);
+            input.position(input.position() + rLength);
         }
+        return offsets;
+    }
 
-        return output.toByteArray();
-    }
-
-    // If this is the first time we've seen this domain name in the packet,
-    // write it using the DNS encoding (each segment of the domain prefixed with its length,
-    // 0 at the end), and add it to the hash map. Otherwise, write a back pointer to where the domain has been seen previously.
-    public static void writeDomainName(ByteArrayOutputStream output, HashMap<String,Integer> domainLocations, String[] domainPieces){
-        String fullDomain = octetsToString(domainPieces);
-        if (domainLocations.containsKey(fullDomain)) {
-            int pointer = domainLocations.get(fullDomain);
-            byte secondByte = (byte) pointer;
-            pointer = pointer >> 8;
-            byte firstByte = (byte) pointer;
-            byte mask = (byte) 0xC0;
-            firstByte = (byte) (firstByte | mask);
-            output.write(firstByte);
-            output.write(secondByte);
-        } else {
-            domainLocations.put(fullDomain, output.size());
-            for (int i = 0; i < domainPieces.length; i++) {
-                output.write(domainPieces[i].length());
-                for (char c : domainPieces[i].toCharArray()) {
-                    output.write(c);
-                }
-            }
-            output.write(0);
+    // Get the bytes to put in a packet and send back. Throws if the message is too large for any packet
+    public byte[] toBytes() throws IOException {
+        ByteBuffer output = ENCODE_BUFFERS.acquire();
+        try {
+            writeTo(output);
+            byte[] bytes = new byte[output.position()];
+            output.flip();
+            output.get(bytes);
+            return bytes;
+        } catch (BufferOverflowException e) {
+            throw new IOException("Message longer than " + TcpConnection.MAX_MESSAGE + " bytes");
+        } finally {
+            ENCODE_BUFFERS.release(output);
         }
     }
 
-    // Join the pieces of a domain name with dots ([ "utah", "edu"] -> "utah.edu" )
-    public static String octetsToString(String[] octets) {
-        String result = "";
-        for(int i = 0; i < octets.length; i++) {
-            result += octets[i];
-            if (i < octets.length - 1) {
-                result += ".";
+    // Encode the message into the buffer at its position, leaving the position just after it. Names, including
+    // those in the data of NS, CNAME, PTR, MX and SOA records, are compressed with a pooled CompressionTable, and
+    // nothing is allocated. Throws BufferOverflowException if the message doesn't fit before the buffer's limit,
+    // with part of it written
+    public void writeTo(ByteBuffer output) {
+        CompressionTable names = CompressionTable.acquire();
+        try {
+            names.reset(output.position());
+            header.writeTo(output);
+            for (DNSQuestion question : questions) {
+                question.writeTo(output, names);
+            }
+            for (DNSRecord record : answers) {
+                record.writeTo(output, names);
+            }
+            for (DNSRecord record : nsRecords) {
+                record.writeTo(output, names);
+            }
+            for (DNSRecord record : additionalRecords) {
+                record.writeTo(output, names);
             }
+        } finally {
+            CompressionTable.release(names);
         }
-        return result;
     }
 
     // Return a human readable string version of a message object.
@@ -1,11 +1,7 @@
 package DNSResolver;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Objects;
+import java.nio.ByteBuffer;
 
 // This creates the "Question" section of a DNS Message.
 // This stays constant in requests and responses, does not need to be edited once created.
@@ -13,7 +9,7 @@ import java.util.Objects;
 // https://www.ietf.org/rfc/rfc1035.txt and https://www.zytrax.com/books/dns/ch15/#question
 public class DNSQuestion {
     // qName is the domain name being requested
-    private String[] qName;
+    private DomainName qName;
 
     //qType is the resource records being requested
     private int qType;
@@ -22,16 +18,32 @@ public class DNSQuestion {
     // internet for the purposes of our assignment = 1
     private int qClass;
 
-    // Getter for question name
-    public String[] getqName() {
+    private DNSQuestion() {
+    }
+
+    // Build a question of our own, e.g. for looking up another record set in the cache
+    public DNSQuestion(DomainName qName, int qType, int qClass) {
+        this.qName = qName;
+        this.qType = qType;
+        this.qClass = qClass;
+    }
+
+    // Getters for Data
+    public DomainName getqName() {
         return qName;
     }
+    public int getqType() {
+        return qType;
+    }
+    public int getqClass() {
+        return qClass;
+    }
 
     // Return a human readable string version of a question object.
     // IDE Generated
     @Override
     public String toString() {
-        return "DNSQuestion{" + "qName=" + Arrays.toString(qName) +
+        return "DNSQuestion{" + "qName=" + qName +
                 ", qType=" + qType + ", qClass=" + qClass + '}';
     }
 
@@ -44,33 +56,45 @@ public class DNSQuestion {
         DNSQuestion that = (DNSQuestion) o;
         return qType == that.qType &&
                 qClass == that.qClass &&
-                Arrays.equals(qName, that.qName);
+                qName.equals(that.qName);
     }
 
-    // Creates a hashCode
-    // IDE Generated
+    // Creates a hashCode, the name's hash is cached so this is cheap
     @Override
     public int hashCode() {
-        int result = Objects.hash(qType, qClass);
-        result = 31 * result + Arrays.hashCode(qName);
+        // Not Objects.hash, which boxes both ints into a new array on every cache probe
+        int result = qName.hashCode();
+        result = 31 * result + qType;
+        result = 31 * result + qClass;
         return result;
     }
 
-    // Read a question from the input stream. Due to compression,
-    public static DNSQuestion decodeQuestion(ByteArrayInputStream input , DNSMessage message){
+    // Rough number of heap bytes this question uses, for sizing the cache
+    public int estimateSize() {
+        return 24 + qName.estimateSize();
+    }
+
+    // A copy of this question sharing one copy of the name with every cache entry and record that refers to it.
+    // A copy, since the original may still be written back to the client with the case the client used
+    DNSQuestion interned() {
+        return new DNSQuestion(qName.intern(), qType, qClass);
+    }
+
+    // Read a question from the buffer. The name may be compressed, with pointers to earlier in the buffer
+    public static DNSQuestion decodeQuestion(ByteBuffer input) throws IOException {
         DNSQuestion question = new DNSQuestion();
-        question.qName = message.readDomainName(input);
-        question.qType = DNSMessage.getByteGroup(2, input);
-        question.qClass = DNSMessage.getByteGroup(2, input);
+        question.qName = DomainName.read(input);
+        question.qType = DNSMessage.getShort(input);
+        question.qClass = DNSMessage.getShort(input);
         return question;
     }
 
     // Write the question bytes which will be sent to the client
-    // The hash map is used for us to compress the message
-    void writeBytes(ByteArrayOutputStream output, HashMap<String,Integer> domainNameLocations) throws IOException {
-        DNSMessage.writeDomainName(output, domainNameLocations, qName);
-        output.write(DNSMessage.intToByteArray(qType));
-        output.write(DNSMessage.intToByteArray(qClass));
+    // The compression table is used for us to compress the message
+    void writeTo(ByteBuffer output, CompressionTable names) {
+        qName.writeTo(output, names);
+        output.putShort((short) qType);
+        output.putShort((short) qClass);
     }
 
 }
\ No newline at end of file
@@ -1,11 +1,9 @@
 package DNSResolver;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.HashMap;
 
 // DNS Records contain the needed to respond to a DNS Question
 // These have a Time To Live built in, as records can update
@@ -15,7 +13,7 @@ import java.util.HashMap;
 // https://www.ietf.org/rfc/rfc1035.txt and https://www.zytrax.com/books/dns/ch15/#answer
 public class DNSRecord {
     // Name of the record
-    private String[] name;
+    private DomainName name;
 
     // 16 bit indicator per DNS protocol
     private int type;
@@ -32,67 +30,261 @@ public class DNSRecord {
     // The record data
     private byte[] rData;
 
-    // Time the record will no longer be valid, based in TTL
-    // This is not sent or received, but calculated and stored when record is created
-    private Calendar deathTime;
+    // Time the record will no longer be valid, based on the TTL, in Clock milliseconds
+    // This is not sent or received, but calculated and stored when record is decoded. 0 for a record that doesn't
+    // age, one of our own (OPT) or built from a zone file, which is always sent with its TTL as it is
+    private long expiresAt;
 
-    public void setName(String[] name) {
+    // Record types referred to by the server
+    public static final int TYPE_A = 1;
+    public static final int TYPE_NS = 2;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_PTR = 12;
+    public static final int TYPE_MX = 15;
+    public static final int TYPE_TXT = 16;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_OPT = 41;
+
+    // Extended rCode for an EDNS version we don't support (RFC 6891)
+    public static final int RCODE_BADVERS = 16;
+
+    // Shortest data an SOA record can have: two root names and five 32 bit fields
+    private static final int MIN_SOA_LENGTH = 22;
+
+    public void setName(DomainName name) {
         this.name = name;
     }
+    public DomainName getName() {
+        return name;
+    }
+    public int getType() {
+        return type;
+    }
+    public int getrClass() {
+        return rClass;
+    }
+    public int getTtl() {
+        return ttl;
+    }
+    public byte[] getrData() {
+        return rData;
+    }
+
+    // Seconds left of the TTL, counting down from when the record was received
+    public int remainingTtl() {
+        if (expiresAt == 0) {
+            return ttl;
+        }
+        return (int) Math.max(0, (expiresAt - Clock.millis()) / 1000);
+    }
+
+    // Make the record expire within ttl seconds from now, if it would otherwise live longer. For records loaded
+    // from a snapshot, whose TTL is as it was when first received
+    void limitTtl(int ttl) {
+        long limit = Clock.millis() + ttl * 1000L;
+        if (expiresAt == 0 || expiresAt > limit) {
+            expiresAt = limit;
+        }
+    }
+
+    // Share one copy of the name between every cache entry and record that refers to it
+    void internName() {
+        name = name.intern();
+    }
 
-    public static DNSRecord decodeRecord(ByteArrayInputStream input, DNSMessage message){
+    public static DNSRecord decodeRecord(ByteBuffer input) throws IOException {
         DNSRecord record = new DNSRecord();
-        record.name = message.readDomainName(input);
-        record.type = DNSMessage.getByteGroup(2, input);
-        record.rClass = DNSMessage.getByteGroup(2, input);
-        record.ttl = DNSMessage.getByteGroup(4, input);
-        record.rLength = DNSMessage.getByteGroup(2, input);
-        record.rData = new byte[record.rLength];
-        for (int i = 0; i < record.rLength; i++) {
-            record.rData[i] = (byte) input.read();
+        record.name = DomainName.read(input);
+        record.type = DNSMessage.getShort(input);
+        record.rClass = DNSMessage.getShort(input);
+        record.ttl = input.getInt();
+        record.rData = readData(input, record.type, DNSMessage.getShort(input));
+        record.rLength = record.rData.length;
+        // An OPT record's TTL holds flags, not a time
+        if (record.type != TYPE_OPT) {
+            record.expiresAt = Clock.millis() + record.ttl * 1000L;
         }
-        record.deathTime = Calendar.getInstance();
-        record.deathTime.add(Calendar.SECOND, record.ttl);
 
         return record;
     }
 
-    public void writeBytes(ByteArrayOutputStream output, HashMap<String, Integer> domainNameLocations) throws IOException {
-        DNSMessage.writeDomainName(output, domainNameLocations, name);
-        writeAnswer(2, output, type);
-        writeAnswer(2, output, rClass);
-        writeAnswer(4, output, ttl);
-        writeAnswer(2, output, rLength);
-        for (byte b : rData) {
-            output.write(b);
+    // Read the record data. Some types hold domain names, which may be compressed with pointers to elsewhere in the
+    // packet. Those names are written out in full, so the data still makes sense once copied into another packet.
+    private static byte[] readData(ByteBuffer input, int type, int length) throws IOException {
+        int end = input.position() + length;
+        // Bytes before the first name, and how many names there are
+        int prefix = 0;
+        int names;
+        switch (type) {
+            case TYPE_NS:
+            case TYPE_CNAME:
+            case TYPE_PTR:
+                names = 1;
+                break;
+            case TYPE_MX:
+                // 16 bit preference, then the mail exchange
+                prefix = 2;
+                names = 1;
+                break;
+            case TYPE_SOA:
+                // Primary name server and responsible mailbox, then five 32 bit numbers
+                names = 2;
+                break;
+            default:
+                names = 0;
+        }
+        if (names == 0) {
+            byte[] data = new byte[length];
+            input.get(data);
+            return data;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(length + 32);
+        for (int i = 0; i < prefix; i++) {
+            output.write(input.get());
         }
+        for (int i = 0; i < names; i++) {
+            DomainName.read(input).writeTo(output);
+        }
+        if (input.position() > end) {
+            throw new IOException("Record data runs past its length");
+        }
+        while (input.position() < end) {
+            output.write(input.get());
+        }
+        return output.toByteArray();
     }
 
-    // Return whether the creation date + the time to live is after the current time.
-    // The Date and Calendar classes will be useful for this.
+    // Build a record of class IN from its parts, e.g. one read from a zone file. Names in rData must be uncompressed
+    public static DNSRecord build(DomainName name, int type, int ttl, byte[] rData) {
+        DNSRecord record = new DNSRecord();
+        record.name = name;
+        record.type = type;
+        record.rClass = 1;
+        record.ttl = ttl;
+        record.rData = rData;
+        record.rLength = rData.length;
+        return record;
+    }
+
+    // The mnemonic for a record type (1 -> "A"), or TYPEn for one without a name here (RFC 3597)
+    public static String typeName(int type) {
+        switch (type) {
+            case TYPE_A: return "A";
+            case TYPE_NS: return "NS";
+            case TYPE_CNAME: return "CNAME";
+            case TYPE_SOA: return "SOA";
+            case TYPE_PTR: return "PTR";
+            case TYPE_MX: return "MX";
+            case TYPE_TXT: return "TXT";
+            case TYPE_AAAA: return "AAAA";
+            case TYPE_OPT: return "OPT";
+            default: return "TYPE" + type;
+        }
+    }
+
+    // The record type for a mnemonic or TYPEn, case insensitive, or -1 if it isn't one
+    public static int typeFromName(String name) {
+        String upper = name.toUpperCase();
+        if (upper.startsWith("TYPE") && upper.length() > 4) {
+            try {
+                return Integer.parseInt(upper.substring(4));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        for (int type : new int[] {TYPE_A, TYPE_NS, TYPE_CNAME, TYPE_SOA, TYPE_PTR, TYPE_MX, TYPE_TXT, TYPE_AAAA}) {
+            if (typeName(type).equals(upper)) {
+                return type;
+            }
+        }
+        return -1;
+    }
+
+    // Build the OPT pseudo-record (RFC 6891) for the additional section of our queries and responses.
+    // It has the root as its name, and its class is the largest UDP payload we take. Its TTL holds the upper 8 bits
+    // of a 12 bit rCode, then the EDNS version (0) and flags (none)
+    public static DNSRecord buildOpt(int payloadSize, int rCode) {
+        DNSRecord record = new DNSRecord();
+        record.name = DomainName.ROOT;
+        record.type = TYPE_OPT;
+        record.rClass = payloadSize;
+        record.ttl = (rCode >> 4) << 24;
+        record.rData = new byte[0];
+        record.rLength = 0;
+        return record;
+    }
+
+    // For an OPT record, the EDNS version of whoever sent it
+    public int ednsVersion() {
+        return (ttl >> 16) & 0xff;
+    }
+
+    // For an SOA record, how long a negative answer may be cached: the smaller of the record's own TTL and the
+    // MINIMUM field, the last 32 bits of its data (RFC 2308 section 5). 0, so the answer isn't cached, if the data is
+    // too short to be an SOA record's
+    public int negativeTtl() {
+        if (rData.length < MIN_SOA_LENGTH) {
+            return 0;
+        }
+        int minimum = ByteBuffer.wrap(rData).getInt(rData.length - 4);
+        return Math.min(remainingTtl(), minimum);
+    }
+
+    // Write the record into a message, with the TTL it has left. Names in the data of the types RFC 1035 defines with names in them are
+    // compressed like any other (RFC 3597 section 4), so the data length is only known once they are written
+    void writeTo(ByteBuffer output, CompressionTable names) {
+        name.writeTo(output, names);
+        output.putShort((short) type);
+        output.putShort((short) rClass);
+        output.putInt(remainingTtl());
+        int lengthAt = output.position();
+        output.putShort((short) 0);
+        switch (type) {
+            case TYPE_NS:
+            case TYPE_CNAME:
+            case TYPE_PTR:
+                names.writeName(output, rData, 0);
+                break;
+            case TYPE_MX:
+                output.put(rData, 0, 2);
+                names.writeName(output, rData, 2);
+                break;
+            case TYPE_SOA: {
+                int next = names.writeName(output, rData, 0);
+                next = names.writeName(output, rData, next);
+                output.put(rData, next, rData.length - next);
+                break;
+            }
+            default:
+                output.put(rData);
+        }
+        output.putShort(lengthAt, (short) (output.position() - lengthAt - 2));
+    }
+
+    // Return whether the time the record was received + the time to live is after the current time.
     public boolean timestampValid(){
-        Calendar currentTime = Calendar.getInstance();
-        return currentTime.before(deathTime);
+        return expiresAt == 0 || Clock.millis() < expiresAt;
+    }
+
+    // Rough number of heap bytes this record uses, for sizing the cache
+    public int estimateSize() {
+        return 48 + name.estimateSize() + 16 + rData.length;
     }
 
     // Return a human readable string version of a record object.
     // IDE Generated
     @Override
     public String toString() {
-        return "DNSRecord{" + "name=" + Arrays.toString(name) + ", type=" + type +
+        return "DNSRecord{" + "name=" + name + ", type=" + type +
                 ", rClass=" + rClass + ", ttl=" + ttl + ", rLength=" + rLength +
                 ", rData=" + Arrays.toString(rData) + '}';
     }
 
-    // Helper for outputting correct answer fields
+    // Helper for outputting correct answer fields, big endian
     public static void writeAnswer(int numberBytes, ByteArrayOutputStream output, int input) {
-        byte temp[] = new byte[numberBytes];
         for (int i = numberBytes - 1; i >= 0; i--) {
-            temp[i] = (byte) input;
-            input >>= 8;
-        }
-        for (byte b : temp) {
-            output.write(b);
+            output.write(input >> (8 * i));
         }
     }
 }
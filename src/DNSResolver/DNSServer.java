@@ -2,94 +2,489 @@ package DNSResolver;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
-// A DNS Server opens a UDP socket (DatagramSocket) and listens for incoming DNS requests
+// A DNS Server opens a UDP socket (DatagramChannel) and listens for incoming DNS requests
 // It will evaluate the DNS question in the request, and compare it to the stored answers in the DNS Cache
 // If an answer matches, and its time to live (TTL) is still valid, it will generate the reply and return to requestor
-// If no answer matches, it forwards the request to Google at 8.8.8.8
+// If no answer matches, it forwards the request to Google at 8.8.8.8, or to the fastest of the configured upstreams
 // Google's response is parsed and stored as a DNS Answer inside the server cache, and the reply is generated using that
+// DNSServer holds what the workers share (the caches, the upstreams, the questions in flight) and starts them: one
+// ServerWorker event loop per core by default, or a ThreadPerQueryWorker
 // Use 'dig url.com @127.0.0.1 -p 8053' to send a DNS request for specific URLS
 // Data can also be seen via Wireshark - filter 'udp.port == 8053 || udp.port == 53'
 
 public class DNSServer {
-    private DatagramSocket clientSocket;
-    private DatagramSocket googleSocket;
     private DNSCache cache;
-    private boolean isRunning = true;
+    // Negative answers are kept apart, so they can't push real answers out of the cache
+    private DNSCache negativeCache;
+    private ServerConfig config;
+    // Where misses are forwarded, shared by every worker
+    private UpstreamPool upstreams;
+    private Worker[] workers;
+    // Questions being asked upstream by any of the ServerWorkers, so a miss on one worker follows another's query
+    // for the same question rather than sending its own
+    private ConcurrentHashMap<DNSQuestion, PendingQuery> inFlight = new ConcurrentHashMap<>();
     private int clientPort = 8053;
-    private int googlePort = 53;
+    // Null unless a snapshot path is configured
+    private CacheSnapshot snapshot;
+    private Metrics metrics;
+    private QueryLog queryLog;
+    // Null unless a rate limit is configured
+    private RateLimiter rateLimiter;
+    // Null unless resolving iteratively, when it takes the place of the upstreams
+    private IterativeResolver resolver;
+    // Names answered locally, replaced whole when the files change. Null until they are first loaded
+    private volatile LocalZones localZones;
+    // The newest modification time among the files the local zones were loaded from
+    private long localZonesModified = 0;
+
+    // Background refreshes of popular cache entries, shared by all workers: how many are in flight, and how many
+    // have been started this second against the per second budget
+    private int refreshesInFlight = 0;
+    private int refreshesThisSecond = 0;
+    private long refreshSecond = 0;
+
+    // Counters for watching refresh ahead
+    private long refreshesStarted = 0;
+    private long refreshesCompleted = 0;
+    private long refreshesSkipped = 0;
 
     // Server Constructor
-    public DNSServer() throws SocketException {
-        clientSocket = new DatagramSocket(clientPort);
-        googleSocket = new DatagramSocket(googlePort);
-        cache = new DNSCache();
+    public DNSServer() throws IOException {
+        this(new ServerConfig());
+    }
+
+    // Server Constructor with a custom client port, upstream and upstream timeout, e.g. for a local stub upstream
+    public DNSServer(int clientPort, InetSocketAddress google, long timeoutMillis) throws IOException {
+        this(new ServerConfig().setClientPort(clientPort).setUpstream(google).setTimeoutMillis(timeoutMillis));
+    }
+
+    public DNSServer(ServerConfig config) throws IOException {
+        this.config = config;
+        this.clientPort = config.getClientPort();
+        cache = new DNSCache(config.getCacheMaxEntries(), config.getCacheMaxBytes(), config.getCacheShards(), config.getServeStaleMillis());
+        negativeCache = new DNSCache(config.getNegativeCacheMaxEntries(), config.getNegativeCacheMaxBytes(), config.getCacheShards(),
+                config.getServeStaleMillis());
+        upstreams = new UpstreamPool(config);
+        metrics = new Metrics(this);
+        queryLog = new QueryLog(config.getQueryLogLevel(), config.getQueryLogSampleEvery(), config.getQueryLogPath(), config.getQueryLogRingSize());
+        if (config.isIterative()) {
+            resolver = new IterativeResolver(config);
+        }
+        if (config.getRateLimitPerSecond() > 0) {
+            rateLimiter = new RateLimiter(config);
+        }
+        if (config.getSnapshotPath() != null) {
+            snapshot = new CacheSnapshot(Paths.get(config.getSnapshotPath()));
+        }
+        if (config.getMode() == ServerConfig.Mode.THREAD_PER_QUERY) {
+            workers = new Worker[] {new ThreadPerQueryWorker(this, config)};
+            return;
+        }
+        int workerCount = Math.max(1, config.getWorkerCount());
+        if (workerCount > 1 && !reusePortSupported()) {
+            System.out.println("SO_REUSEPORT is not supported here, running a single worker");
+            workerCount = 1;
+        }
+        workers = new ServerWorker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new ServerWorker(this, config, workerCount > 1);
+        }
+    }
+
+    private static boolean reusePortSupported() throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
     }
 
     // Server running driver
+    // Every worker but the first gets its own thread, the first runs on the calling thread
     public void run() {
-        while (isRunning) {
-            byte[] buffer = new byte[512];
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            ArrayList<DNSRecord> outputAnswers = new ArrayList<>();
+        queryLog.start();
+        metrics.register();
+        StatsServer stats = null;
+        if (config.getStatsPort() != 0) {
             try {
-                clientSocket.receive(packet);
-                DNSMessage message = DNSMessage.decodeMessage(buffer);
-                System.out.println("Received DNS Request");
-                for (DNSQuestion question : message.getQuestions()) {
-                    System.out.println("Client port: " + packet.getPort() +" requesting: " + DNSMessage.octetsToString(question.getqName()));
-                    if(cache.contains(question)) {
-                        System.out.println("Answer found in cache");
-                        DNSRecord answer = cache.getRecord(question);
-                        outputAnswers.add(answer);
-                    } else {
-                        System.out.println("Answer NOT found in cache");
-                        sendToGoogle(message);
-                        System.out.println("Waiting for Google...");
-                        byte[] googleBuffer = new byte[512];
-                        DatagramPacket googlePacket = new DatagramPacket(googleBuffer, googleBuffer.length);
-                        googleSocket.receive(googlePacket);
-                        DNSMessage googleMessage = DNSMessage.decodeMessage(googleBuffer);
-                        System.out.println("Response Received, adding to cache");
-                        if(googleMessage.getAnswers().length != 0) {
-                            cache.addRecord(question, googleMessage.getAnswers()[0]);
-                            outputAnswers.add(googleMessage.getAnswers()[0]);
-                        }
-                    }
-                }
-                DNSMessage response = DNSMessage.buildResponse(message, outputAnswers.toArray(new DNSRecord[outputAnswers.size()]));
-                byte[] responseBytes = response.toBytes();
-                System.out.println("Sending response to client at port: " + packet.getPort());
-                sendToClient(responseBytes, packet);
-                System.out.println(message.toString());
-                System.out.println(response.toString());
+                stats = new StatsServer(metrics, config.getStatsPort());
+                Thread thread = new Thread(stats, "dns-stats");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                System.out.println("Could not serve stats on port " + config.getStatsPort() + ": " + e.getMessage());
+            }
+        }
+        ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "dns-cache-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiry.scheduleAtFixedRate(this::expireCaches, TimingWheel.TICK_MILLIS, TimingWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        ScheduledExecutorService localZoneChecker = null;
+        if (!config.getLocalZoneFiles().isEmpty()) {
+            localZoneChecker = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "dns-local-zones");
+                thread.setDaemon(true);
+                return thread;
+            });
+            localZoneChecker.scheduleWithFixedDelay(this::loadLocalZones, 0, config.getLocalZoneCheckMillis(), TimeUnit.MILLISECONDS);
+        }
+        ScheduledExecutorService saver = null;
+        if (snapshot != null) {
+            Thread loader = new Thread(this::loadSnapshot, "dns-snapshot-loader");
+            loader.setDaemon(true);
+            loader.start();
+            saver = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "dns-snapshot-saver");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = config.getSnapshotIntervalMillis();
+            saver.scheduleWithFixedDelay(this::saveSnapshot, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        Thread[] threads = new Thread[workers.length];
+        for (int i = 1; i < workers.length; i++) {
+            threads[i] = new Thread(workers[i], "dns-worker-" + i);
+            threads[i].start();
+        }
+        workers[0].run();
+        for (int i = 1; i < workers.length; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        expiry.shutdownNow();
+        if (localZoneChecker != null) {
+            localZoneChecker.shutdownNow();
+        }
+        if (saver != null) {
+            saver.shutdown();
+            try {
+                saver.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            saveSnapshot();
+        }
+        if (stats != null) {
+            stats.close();
+        }
+        metrics.unregister();
+        queryLog.close();
+    }
+
+    // Remove the entries whose TTL has run out from both caches
+    private void expireCaches() {
+        cache.expire();
+        negativeCache.expire();
+    }
+
+    // Load the local zone files if any has changed since they were last loaded. Lookups go on using the old set until
+    // the new one is swapped in, and a file that can't be read or parsed leaves the old set in place, to be tried
+    // again on the next check
+    private void loadLocalZones() {
+        long modified = 0;
+        long start = System.nanoTime();
+        try {
+            for (String file : config.getLocalZoneFiles()) {
+                modified = Math.max(modified, Files.getLastModifiedTime(Paths.get(file)).toMillis());
+            }
+            if (modified == localZonesModified) {
+                return;
+            }
+            LocalZones zones = LocalZones.load(config.getLocalZoneFiles());
+            localZones = zones;
+            localZonesModified = modified;
+            System.out.println("Loaded " + zones.getNameCount() + " local names (" + zones.getByteSize() + " bytes) in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not load local zones: " + e.getMessage());
+        }
+    }
+
+    private void loadSnapshot() {
+        long start = System.nanoTime();
+        try {
+            int loaded = snapshot.load(cache, negativeCache);
+            System.out.println("Loaded " + loaded + " cache entries from " + snapshot.getPath() + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.out.println("Could not load cache snapshot: " + e.getMessage());
+        }
+    }
 
+    // Locked so the final save can't overlap a periodic one writing the same temporary file
+    private void saveSnapshot() {
+        synchronized (snapshot) {
+            try {
+                snapshot.save(cache, negativeCache);
             } catch (IOException e) {
-                System.out.println("IO Exception: " + e.getMessage());
-                e.printStackTrace();
+                System.out.println("Could not save cache snapshot: " + e.getMessage());
             }
         }
-        clientSocket.close();
     }
 
-    private void sendToGoogle(DNSMessage message) throws UnknownHostException, IOException {
-        InetAddress google = InetAddress.getByName("8.8.8.8");
-        DatagramPacket output = new DatagramPacket(message.getRawData(), message.getRawData().length, google, googlePort);
-        googleSocket.send(output);
+    // Stop the server from another thread, run() returns once every worker has finished its current loop
+    public void stop() {
+        for (Worker worker : workers) {
+            worker.stop();
+        }
     }
 
-    private void sendToClient(byte[] responseBytes, DatagramPacket packet) throws IOException {
-        DatagramPacket output = new DatagramPacket(responseBytes, responseBytes.length, packet.getAddress(), packet.getPort());
-        clientSocket.send(output);
+    public int getClientPort() {
+        return clientPort;
+    }
+    public int getWorkerCount() {
+        return workers.length;
+    }
+    public DNSCache getCache() {
+        return cache;
+    }
+    public DNSCache getNegativeCache() {
+        return negativeCache;
+    }
+    ConcurrentHashMap<DNSQuestion, PendingQuery> getInFlight() {
+        return inFlight;
+    }
+    public UpstreamPool getUpstreams() {
+        return upstreams;
+    }
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    public QueryLog getQueryLog() {
+        return queryLog;
+    }
+    // Null unless resolving iteratively
+    public IterativeResolver getResolver() {
+        return resolver;
+    }
+    // Null if there is no rate limit
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+    // Null until the local zones are loaded, or if there are none
+    public LocalZones getLocalZones() {
+        return localZones;
+    }
+    public synchronized long getRefreshesStarted() {
+        return refreshesStarted;
+    }
+    public synchronized long getRefreshesCompleted() {
+        return refreshesCompleted;
+    }
+    public synchronized long getRefreshesSkipped() {
+        return refreshesSkipped;
+    }
+
+    // The response for a request with a single question about a local name, or null if it goes on to the cache
+    DNSMessage answerLocally(DNSMessage request) {
+        LocalZones zones = localZones;
+        if (zones == null || request.getQuestions().length != 1) {
+            return null;
+        }
+        DNSMessage response = zones.answer(request);
+        if (response != null) {
+            metrics.localAnswer();
+        }
+        return response;
+    }
+
+    // Look for a positive answer first, then a negative one
+    CacheEntry lookup(DNSQuestion question) throws IOException {
+        CacheEntry entry = cache.lookup(question);
+        if (entry == null) {
+            entry = negativeCache.lookup(question);
+        }
+        if (entry == null) {
+            metrics.cacheMiss();
+        } else {
+            metrics.cacheHit();
+        }
+        return entry;
+    }
+
+    // An expired answer that can still be served stale, positive or negative, or null if there is none or serving
+    // stale is off
+    CacheEntry lookupStale(DNSQuestion question) {
+        CacheEntry entry = cache.lookupStale(question);
+        if (entry == null) {
+            entry = negativeCache.lookupStale(question);
+        }
+        return entry;
+    }
+
+    // Decode a request or reply, counting it in the metrics if it can't be
+    DNSMessage decode(byte[] data) throws IOException {
+        try {
+            return DNSMessage.decodeMessage(data);
+        } catch (IOException | RuntimeException e) {
+            metrics.decodeError();
+            throw e;
+        }
+    }
+
+    // Encode a response into the buffer at its position, counting it in the metrics if it can't be encoded.
+    // Returns false, leaving the position where it was, if the response is longer than maxSize
+    boolean encode(DNSMessage response, ByteBuffer output, int maxSize) {
+        int start = output.position();
+        int limit = output.limit();
+        output.limit(Math.min(limit, start + maxSize));
+        try {
+            response.writeTo(output);
+            return true;
+        } catch (BufferOverflowException e) {
+            output.position(start);
+            return false;
+        } catch (RuntimeException e) {
+            output.position(start);
+            metrics.encodeError();
+            throw e;
+        } finally {
+            output.limit(limit);
+        }
+    }
+
+    // Cache what can be cached from Google's reply to the question, and return the authority records to send
+    // back with the answers
+    DNSRecord[] cacheReply(DNSQuestion question, DNSMessage reply) throws IOException {
+        int rCode = reply.getHeader().getRCode();
+        if (reply.getAnswers().length != 0) {
+            cache.addResponse(question, reply);
+        } else if (rCode == 0 || rCode == 3) {
+            // No records of the type asked for, or no such name. Either can be cached if Google sent the zone's SOA
+            // record, which says for how long (RFC 2308). Without one the answer must not be cached.
+            DNSRecord soa = findSoa(reply.getNSRecords());
+            if (soa != null) {
+                negativeCache.addNegative(question, rCode, soa, config.getNegativeMaxTtl());
+            }
+        }
+        return authorityOf(reply);
+    }
+
+    // The authority records to send back with the answers in Google's reply: the NS records of a positive answer,
+    // and the SOA record of a negative one
+    static DNSRecord[] authorityOf(DNSMessage reply) {
+        int rCode = reply.getHeader().getRCode();
+        if (reply.getAnswers().length != 0) {
+            return DNSCache.nameServers(reply.getNSRecords());
+        }
+        DNSRecord soa = findSoa(reply.getNSRecords());
+        if (soa != null && (rCode == 0 || rCode == 3)) {
+            return new DNSRecord[] {soa};
+        }
+        return new DNSRecord[0];
+    }
+
+    private static DNSRecord findSoa(DNSRecord[] records) {
+        for (DNSRecord record : records) {
+            if (record.getType() == DNSRecord.TYPE_SOA) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    // Claim a background refresh against the concurrency limit and the per second budget
+    synchronized boolean tryStartRefresh() {
+        long second = System.nanoTime() / 1_000_000_000;
+        if (second != refreshSecond) {
+            refreshSecond = second;
+            refreshesThisSecond = 0;
+        }
+        if (refreshesInFlight >= config.getMaxConcurrentRefreshes() || refreshesThisSecond >= config.getRefreshesPerSecond()) {
+            refreshesSkipped++;
+            return false;
+        }
+        refreshesInFlight++;
+        refreshesThisSecond++;
+        refreshesStarted++;
+        return true;
+    }
+
+    synchronized void endRefresh(boolean completed) {
+        refreshesInFlight--;
+        if (completed) {
+            refreshesCompleted++;
+        }
     }
 
     // Main Server Runner
+    // Optional arguments: client port, upstream host, upstream port, e.g. '8053 127.0.0.1 5353' for a StubUpstream,
+    // then the mode, e.g. '8053 127.0.0.1 5353 THREAD_PER_QUERY' to compare it against the event loops.
+    // Several upstreams can be given as host:port pairs separated by commas, e.g. '8053 127.0.0.1:5353,127.0.0.1:5354 0'
+    // (the upstream port argument is then ignored). An upstream host of 'iterative' resolves from the root servers
+    // instead, and 'iterative:' followed by addresses separated by commas from those root hints, the upstream port
+    // then being the port name servers are asked on, e.g. '8053 iterative:127.0.0.1 5300' for StubUpstreams.
+    // A fifth argument is a file to keep a cache snapshot in, '-' for none, a sixth a localhost port to serve stats
+    // on, 0 for none, a seventh local zone files separated by commas, '-' for none, and an eighth a rate limit in
+    // requests a second for each client network
     public static void main(String[] args) throws IOException {
-        DNSServer server = new DNSServer();
-        System.out.println("DNS Server is running on Port " + server.clientPort);
+        ServerConfig config = new ServerConfig();
+        if (args.length >= 3) {
+            config.setClientPort(Integer.parseInt(args[0]));
+            if (args[1].startsWith("iterative")) {
+                config.setIterative(true);
+                config.setNameServerPort(Integer.parseInt(args[2]));
+                if (args[1].startsWith("iterative:")) {
+                    config.setRootHints(IterativeResolver.rootHints(config.getNameServerPort(), args[1].substring(10).split(",")));
+                }
+            } else if (args[1].contains(":")) {
+                ArrayList<InetSocketAddress> upstreams = new ArrayList<>();
+                for (String upstream : args[1].split(",")) {
+                    int colon = upstream.lastIndexOf(':');
+                    upstreams.add(new InetSocketAddress(upstream.substring(0, colon), Integer.parseInt(upstream.substring(colon + 1))));
+                }
+                config.setUpstreams(upstreams);
+            } else {
+                config.setUpstream(new InetSocketAddress(args[1], Integer.parseInt(args[2])));
+            }
+        }
+        if (args.length >= 4) {
+            config.setMode(ServerConfig.Mode.valueOf(args[3]));
+        }
+        if (args.length >= 5 && !args[4].equals("-")) {
+            config.setSnapshotPath(args[4]);
+        }
+        if (args.length >= 6) {
+            config.setStatsPort(Integer.parseInt(args[5]));
+        }
+        if (args.length >= 7 && !args[6].equals("-")) {
+            config.setLocalZoneFiles(Arrays.asList(args[6].split(",")));
+        }
+        if (args.length >= 8) {
+            config.setRateLimitPerSecond(Integer.parseInt(args[7]));
+        }
+        DNSServer server = new DNSServer(config);
+        System.out.println("DNS Server is running on Port " + server.clientPort + " in " + config.getMode() + " mode with "
+                + server.getWorkerCount() + " workers");
         System.out.println("Listening for DNS requests...");
+        if (config.getSnapshotPath() != null) {
+            // Stop cleanly on Ctrl-C, so the caches are saved one last time
+            Thread main = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                try {
+                    main.join(10_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
         server.run();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,146 @@
+package DNSResolver;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The infrastructure cache of IterativeResolver, kept apart from the answer caches: for every zone whose delegation
+// has been followed, the names of its name servers; for name servers, their addresses; and for every server address,
+// how quickly it has been answering. A lookup starts at the deepest delegation known for the name rather than at
+// the root, and asks the fastest of the zone's servers first.
+// Safe to use from many threads at once. Entries expire with the TTLs of the NS and address records they came from,
+// capped at MAX_TTL. Once full, everything is dropped and lookups start from the root again while it fills back up.
+public class DelegationCache {
+    private static final int MAX_TTL = 24 * 60 * 60;
+
+    // Round trip times are smoothed over the last few replies: each new one counts for 1/SMOOTHING. A server that
+    // doesn't answer has its time doubled, up to MAX_RTT_MICROS, so the others are tried first until it recovers
+    private static final int SMOOTHING = 8;
+    private static final long MAX_RTT_MICROS = 10_000_000;
+
+    // A zone's name servers, as the parent zone's referral gave them
+    public static class Delegation {
+        private DomainName zone;
+        private DomainName[] nameServers;
+        private long expiresAt;
+
+        Delegation(DomainName zone, DomainName[] nameServers, long expiresAt) {
+            this.zone = zone;
+            this.nameServers = nameServers;
+            this.expiresAt = expiresAt;
+        }
+
+        public DomainName getZone() {
+            return zone;
+        }
+        public DomainName[] getNameServers() {
+            return nameServers;
+        }
+    }
+
+    private static class Addresses {
+        private InetAddress[] addresses;
+        private long expiresAt;
+
+        Addresses(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private ConcurrentHashMap<DomainName, Delegation> delegations = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<DomainName, Addresses> addresses = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<InetSocketAddress, AtomicLong> roundTrips = new ConcurrentHashMap<>();
+    private int maxEntries;
+
+    public DelegationCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    // Zones and name servers held
+    public int size() {
+        return delegations.size() + addresses.size();
+    }
+
+    public Delegation addDelegation(DomainName zone, DomainName[] nameServers, int ttl) {
+        makeRoom();
+        Delegation delegation = new Delegation(zone, nameServers, expiresAt(ttl));
+        delegations.put(zone, delegation);
+        return delegation;
+    }
+
+    public void addAddresses(DomainName nameServer, InetAddress[] serverAddresses, int ttl) {
+        makeRoom();
+        addresses.put(nameServer, new Addresses(serverAddresses, expiresAt(ttl)));
+    }
+
+    // The deepest delegation at or above the name that hasn't expired, or null to start from the root
+    public Delegation closest(DomainName name) {
+        long now = Clock.millis();
+        for (DomainName zone = name; !zone.isRoot(); zone = zone.parent()) {
+            Delegation delegation = delegations.get(zone);
+            if (delegation != null) {
+                if (delegation.expiresAt > now) {
+                    return delegation;
+                }
+                delegations.remove(zone, delegation);
+            }
+        }
+        return null;
+    }
+
+    // Forget a delegation none of whose servers could be reached, so the next lookup asks the parent zone again
+    public void removeDelegation(Delegation delegation) {
+        delegations.remove(delegation.zone, delegation);
+    }
+
+    // The addresses of a name server, or null if they aren't known
+    public InetAddress[] addressesOf(DomainName nameServer) {
+        Addresses known = addresses.get(nameServer);
+        if (known == null) {
+            return null;
+        }
+        if (known.expiresAt <= Clock.millis()) {
+            addresses.remove(nameServer, known);
+            return null;
+        }
+        return known.addresses;
+    }
+
+    // The smoothed round trip time to a server in microseconds, 0 for one not asked yet so every server gets tried
+    public long roundTripOf(InetSocketAddress server) {
+        AtomicLong time = roundTrips.get(server);
+        return time == null ? 0 : time.get();
+    }
+
+    public void recordRoundTrip(InetSocketAddress server, long micros) {
+        AtomicLong time = roundTrips.computeIfAbsent(server, key -> new AtomicLong(micros));
+        time.getAndUpdate(smoothed -> smoothed + (micros - smoothed) / SMOOTHING);
+    }
+
+    public void recordTimeout(InetSocketAddress server, long timeoutMicros) {
+        AtomicLong time = roundTrips.computeIfAbsent(server, key -> new AtomicLong(timeoutMicros));
+        time.getAndUpdate(smoothed -> Math.min(MAX_RTT_MICROS, Math.max(smoothed * 2, timeoutMicros)));
+    }
+
+    private static long expiresAt(int ttl) {
+        return Clock.millis() + Math.min(Math.max(ttl, 0), MAX_TTL) * 1000L;
+    }
+
+    private void makeRoom() {
+        if (size() < maxEntries) {
+            return;
+        }
+        long now = Clock.millis();
+        delegations.values().removeIf(delegation -> delegation.expiresAt <= now);
+        addresses.values().removeIf(known -> known.expiresAt <= now);
+        if (size() >= maxEntries) {
+            delegations.clear();
+            addresses.clear();
+        }
+        if (roundTrips.size() >= maxEntries) {
+            roundTrips.clear();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package DNSResolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// An immutable domain name stored the way it is sent on the wire: each label prefixed with its length, ending in 0
+// e.g. www.utah.edu = 3 w w w 4 u t a h 3 e d u 0
+// Names compare case insensitively, so the bytes used for equals and hashCode are lowercased, and the hash is only
+// computed once. The name as it was received is kept for writing back to clients, sharing the same array when it
+// was already lowercase. A suffix of a name (utah.edu of www.utah.edu) is a view onto the same bytes, which makes
+// walking up a name for compression or delegation lookups cheap.
+public class DomainName {
+    // The root name, a single 0 byte
+    public static final DomainName ROOT = new DomainName(new byte[] {0}, new byte[] {0}, 0);
+
+    // Names are only interned up to this many, so a flood of random names can't grow the table forever
+    private static final int INTERN_LIMIT = 100_000;
+    private static final ConcurrentHashMap<DomainName, DomainName> interned = new ConcurrentHashMap<>();
+
+    // Lowercased wire format bytes, compared and hashed
+    private final byte[] wire;
+
+    // Wire format bytes with their original case, written back out
+    private final byte[] original;
+
+    // Where this name starts in the arrays, non-zero for suffix views
+    private final int offset;
+
+    // Cached hash, 0 until first computed
+    private int hash;
+
+    private DomainName(byte[] wire, byte[] original, int offset) {
+        this.wire = wire;
+        this.original = original;
+        this.offset = offset;
+    }
+
+    // Build a name from wire format bytes, which must be a complete uncompressed name
+    public static DomainName fromWire(byte[] bytes) {
+        byte[] lower = null;
+        for (int position = 0; bytes[position] != 0; position += (bytes[position] & 0xff) + 1) {
+            for (int i = position + 1; i <= position + (bytes[position] & 0xff); i++) {
+                if (bytes[i] >= 'A' && bytes[i] <= 'Z') {
+                    if (lower == null) {
+                        lower = bytes.clone();
+                    }
+                    lower[i] = (byte) (bytes[i] + ('a' - 'A'));
+                }
+            }
+        }
+        return new DomainName(lower == null ? bytes : lower, bytes, 0);
+    }
+
+    // Build a name from its labels ([ "utah", "edu"] -> utah.edu)
+    public static DomainName fromLabels(String... labels) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (String label : labels) {
+            output.write(label.length());
+            for (int i = 0; i < label.length(); i++) {
+                output.write(label.charAt(i));
+            }
+        }
+        output.write(0);
+        return fromWire(output.toByteArray());
+    }
+
+    // Build a name from its dotted form ("utah.edu" -> utah.edu), a trailing dot is allowed
+    public static DomainName parse(String dotted) {
+        if (dotted.isEmpty() || dotted.equals(".")) {
+            return ROOT;
+        }
+        if (dotted.endsWith(".")) {
+            dotted = dotted.substring(0, dotted.length() - 1);
+        }
+        return fromLabels(dotted.split("\\."));
+    }
+
+    // Read a possibly compressed name starting at the buffer's position, leaving the position just after it.
+    // Compression pointers (top two bits set, remaining 14 bits an offset into the packet) are followed by jumping
+    // to the offset. A pointer must point before the labels it was reached from, so a malicious packet can't make us
+    // loop, and a name cut off by the end of the packet is an IOException like any other malformed name.
+    public static DomainName read(ByteBuffer input) throws IOException {
+        // First pass checks the name and works out how long it is, second pass copies the labels
+        int start = input.position();
+        int length = 0;
+        int position = start;
+        int resume = -1;
+        // Where the labels being read began, the name's start or the last pointer's target
+        int labelsStart = start;
+        while (true) {
+            if (position >= input.limit()) {
+                throw new IOException("Name runs past the end of the packet");
+            }
+            int labelLength = input.get(position) & 0xff;
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (position + 1 >= input.limit()) {
+                    throw new IOException("Compression pointer runs past the end of the packet");
+                }
+                int pointer = ((labelLength & 0x3F) << 8) | (input.get(position + 1) & 0xff);
+                if (pointer >= labelsStart) {
+                    throw new IOException("Compression pointer at " + position + " does not point backwards");
+                }
+                if (resume < 0) {
+                    resume = position + 2;
+                }
+                position = pointer;
+                labelsStart = pointer;
+                continue;
+            }
+            if ((labelLength & 0xC0) != 0) {
+                throw new IOException("Unsupported label type at " + position);
+            }
+            if (position + 1 + labelLength > input.limit()) {
+                throw new IOException("Label runs past the end of the packet");
+            }
+            length += labelLength + 1;
+            if (length > 255) {
+                throw new IOException("Domain name longer than 255 bytes");
+            }
+            position += labelLength + 1;
+            if (labelLength == 0) {
+                break;
+            }
+        }
+        input.position(resume < 0 ? position : resume);
+
+        byte[] bytes = new byte[length];
+        int written = 0;
+        position = start;
+        while (written < length) {
+            int labelLength = input.get(position) & 0xff;
+            if ((labelLength & 0xC0) == 0xC0) {
+                position = ((labelLength & 0x3F) << 8) | (input.get(position + 1) & 0xff);
+                continue;
+            }
+            for (int i = 0; i <= labelLength; i++) {
+                bytes[written++] = input.get(position + i);
+            }
+            position += labelLength + 1;
+        }
+        return fromWire(bytes);
+    }
+
+    // Move the buffer past a possibly compressed name without building it
+    public static void skip(ByteBuffer input) {
+        while (true) {
+            int labelLength = input.get() & 0xff;
+            if ((labelLength & 0xC0) == 0xC0) {
+                input.get();
+                return;
+            }
+            if (labelLength == 0) {
+                return;
+            }
+            input.position(input.position() + labelLength);
+        }
+    }
+
+    // Return the shared copy of an equal name if there is one, saving memory on names held for a long time
+    public DomainName intern() {
+        DomainName existing = interned.get(this);
+        if (existing != null) {
+            return existing;
+        }
+        if (interned.size() >= INTERN_LIMIT) {
+            return this;
+        }
+        existing = interned.putIfAbsent(this, this);
+        return existing == null ? this : existing;
+    }
+
+    // Number of labels, 0 for the root
+    public int labelCount() {
+        int count = 0;
+        for (int position = offset; wire[position] != 0; position += (wire[position] & 0xff) + 1) {
+            count++;
+        }
+        return count;
+    }
+
+    // The name with its first label removed (www.utah.edu -> utah.edu), a view onto the same bytes
+    public DomainName parent() {
+        if (isRoot()) {
+            return this;
+        }
+        return new DomainName(wire, original, offset + (wire[offset] & 0xff) + 1);
+    }
+
+    public boolean isRoot() {
+        return wire[offset] == 0;
+    }
+
+    // Whether this name is the given name or somewhere below it
+    public boolean isSubdomainOf(DomainName ancestor) {
+        DomainName suffix = this;
+        while (suffix.wireLength() > ancestor.wireLength()) {
+            suffix = suffix.parent();
+        }
+        return suffix.equals(ancestor);
+    }
+
+    // The lowercased wire format bytes and where the name starts in them, for walking its labels without copying.
+    // Not to be changed
+    byte[] lowercaseWire() {
+        return wire;
+    }
+    int wireOffset() {
+        return offset;
+    }
+
+    // Number of bytes the name takes on the wire uncompressed
+    public int wireLength() {
+        return wire.length - offset;
+    }
+
+    // The labels of the name, with their original case
+    public String[] getLabels() {
+        ArrayList<String> labels = new ArrayList<>(4);
+        for (int position = offset; original[position] != 0; position += (original[position] & 0xff) + 1) {
+            labels.add(new String(original, position + 1, original[position] & 0xff, StandardCharsets.ISO_8859_1));
+        }
+        return labels.toArray(new String[labels.size()]);
+    }
+
+    // Write the uncompressed name with its original case
+    public void writeTo(ByteArrayOutputStream output) {
+        output.write(original, offset, wireLength());
+    }
+
+    // Write the name with its original case, compressed against the names already written to the message
+    void writeTo(ByteBuffer output, CompressionTable names) {
+        names.writeName(output, original, offset);
+    }
+
+    // Rough number of heap bytes used by the name, for sizing the cache
+    public int estimateSize() {
+        int size = 32 + 16 + wire.length;
+        if (original != wire) {
+            size += 16 + original.length;
+        }
+        return size;
+    }
+
+    // Compares the lowercased bytes, so names differing only in case are equal
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DomainName that = (DomainName) o;
+        return hashCode() == that.hashCode() &&
+                Arrays.equals(wire, offset, wire.length, that.wire, that.offset, that.wire.length);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = hash;
+        if (result == 0) {
+            result = 1;
+            for (int i = offset; i < wire.length; i++) {
+                result = 31 * result + wire[i];
+            }
+            hash = result;
+        }
+        return result;
+    }
+
+    // Join the labels with dots ([ "utah", "edu"] -> "utah.edu" ), the root is "."
+    @Override
+    public String toString() {
+        if (isRoot()) {
+            return ".";
+        }
+        StringBuilder result = new StringBuilder(wireLength());
+        for (int position = offset; original[position] != 0; position += (original[position] & 0xff) + 1) {
+            if (result.length() > 0) {
+                result.append('.');
+            }
+            for (int i = 1; i <= (original[position] & 0xff); i++) {
+                result.append((char) (original[position + i] & 0xff));
+            }
+        }
+        return result.toString();
+    }
+}
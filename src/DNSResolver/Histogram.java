@@ -0,0 +1,80 @@
+package DNSResolver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A histogram of durations in nanoseconds that any number of threads can record into at once without locking.
+// Values are counted in log-linear buckets: every power of two is split into SUB_BUCKETS equal buckets, so a value
+// is known to within 1/SUB_BUCKETS (12.5%) whatever its size, from nanoseconds to hours, in a fixed 496 buckets.
+// Recording is a few shifts and one atomic increment, and never allocates. Reading walks the buckets, so percentiles
+// are approximate while values are being recorded.
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private LongAdder count = new LongAdder();
+    private LongAdder sum = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    // Mean in nanoseconds, 0 before anything is recorded
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // The value in nanoseconds that the given fraction of recorded values are at or below, rounded up to the top of
+    // its bucket. 0 before anything is recorded
+    public long percentile(double fraction) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(BUCKETS - 1);
+    }
+
+    // Values below SUB_BUCKETS get a bucket each, larger ones go by their highest bit and the bits after it
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,398 @@
+package DNSResolver;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Resolves questions itself, in place of forwarding them to a recursive upstream: starting from the root servers
+// (the root hints), each server is asked the question without recursion, and either answers it or refers the
+// resolver to the name servers of a zone closer to the name (NS records in the authority section, with their
+// addresses as glue in the additional section), until a server for the name's own zone answers. CNAMEs leading out
+// of the zone are resolved the same way, and name servers given without glue have their addresses resolved first.
+// Every referral is kept in a DelegationCache, so later lookups start at the deepest zone already known instead of
+// the root, and the servers of a zone are asked in order of how quickly they have been answering. Only glue for
+// names inside the zone of the server that gave it (in bailiwick) is believed, and only answers for names inside
+// that zone, so a server can't plant records for zones it isn't responsible for.
+// Each query goes out from a socket of its own, on a random port with a random ID, and is retried over TCP when
+// truncated. A lookup blocks its thread; the event loop workers hand theirs to resolveAsync.
+// Root hints and the port name servers are asked on are configurable, so a lookup can be run entirely against
+// local StubUpstreams serving a made up hierarchy: 'java DNSResolver.StubUpstream 127.0.0.1:5300 0 root.zone 0 0 0
+// AUTHORITATIVE', one per zone on its own loopback address, then DNSServer with '8053 iterative:127.0.0.1 5300'.
+public class IterativeResolver {
+    // The root servers, a.root-servers.net to m.root-servers.net
+    public static final List<InetSocketAddress> ROOT_HINTS = rootHints(53, "198.41.0.4", "170.247.170.2",
+            "192.33.4.12", "199.7.91.13", "192.203.230.10", "192.5.5.241", "192.112.36.4", "198.97.190.53",
+            "192.36.148.17", "192.58.128.30", "193.0.14.129", "199.7.83.42", "202.12.27.33");
+
+    // Limits against delegation loops and long chains: referrals followed for one name, CNAMEs followed for one
+    // question, lookups of name server addresses nested within each other, and servers of a zone tried in turn
+    private static final int MAX_REFERRALS = 16;
+    private static final int MAX_CNAMES = 8;
+    private static final int MAX_DEPTH = 4;
+    private static final int MAX_SERVERS_TRIED = 3;
+
+    private List<InetSocketAddress> rootHints;
+    private int nameServerPort;
+    private long attemptTimeoutMillis;
+    private int payloadSize;
+    private DelegationCache delegations;
+    private ExecutorService executor;
+
+    // Queries sent to name servers, and questions that couldn't be resolved
+    private LongAdder queries = new LongAdder();
+    private LongAdder failures = new LongAdder();
+
+    // A server's reply, with the zone the server was asked as an authority for
+    private static class Reply {
+        private DNSMessage message;
+        private DomainName zone;
+
+        Reply(DNSMessage message, DomainName zone) {
+            this.message = message;
+            this.zone = zone;
+        }
+    }
+
+    public IterativeResolver(ServerConfig config) {
+        rootHints = config.getRootHints();
+        nameServerPort = config.getNameServerPort();
+        attemptTimeoutMillis = config.getAttemptTimeoutMillis();
+        payloadSize = config.getUdpPayloadSize();
+        delegations = new DelegationCache(config.getDelegationCacheMaxEntries());
+        executor = Executors.newFixedThreadPool(config.getResolverThreads(), task -> {
+            Thread thread = new Thread(task, "dns-resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static List<InetSocketAddress> rootHints(int port, String... addresses) {
+        ArrayList<InetSocketAddress> hints = new ArrayList<>();
+        for (String address : addresses) {
+            hints.add(new InetSocketAddress(address, port));
+        }
+        return hints;
+    }
+
+    public DelegationCache getDelegations() {
+        return delegations;
+    }
+    public long getQueries() {
+        return queries.sum();
+    }
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    // Resolve the question on one of the resolver's own threads. Completes with null if it couldn't be resolved
+    public CompletableFuture<DNSMessage> resolveAsync(DNSQuestion question, long deadline) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return resolve(question, deadline);
+            } catch (IOException | RuntimeException e) {
+                failures.increment();
+                return null;
+            }
+        }, executor);
+    }
+
+    // The answer to the question as a recursive upstream would have replied, with the CNAMEs leading to it and for
+    // a negative answer the zone's SOA record, or null if it couldn't be resolved by the deadline (in milliseconds,
+    // System.nanoTime based)
+    public DNSMessage resolve(DNSQuestion question, long deadline) throws IOException {
+        DNSMessage request = DNSMessage.buildQuery(question, 0, payloadSize);
+        int type = question.getqType();
+        ArrayList<DNSRecord> answers = new ArrayList<>();
+        DomainName name = question.getqName();
+        for (int link = 0; link <= MAX_CNAMES; link++) {
+            Reply reply = query(name, type, deadline, 0);
+            if (reply == null) {
+                failures.increment();
+                return null;
+            }
+            // Follow the answers as far as they go: records of the type asked for end it, a CNAME leads on
+            DomainName target = name;
+            for (int i = 0; i <= MAX_CNAMES; i++) {
+                DomainName next = null;
+                boolean found = false;
+                for (DNSRecord record : reply.message.getAnswers()) {
+                    if (!record.getName().equals(target) || !record.getName().isSubdomainOf(reply.zone)) {
+                        continue;
+                    }
+                    if (record.getType() == type || type == 255) {
+                        answers.add(record);
+                        found = true;
+                    } else if (record.getType() == DNSRecord.TYPE_CNAME && next == null) {
+                        answers.add(record);
+                        next = DomainName.fromWire(record.getrData());
+                    }
+                }
+                if (found) {
+                    return DNSMessage.buildResponse(request, toArray(answers), new DNSRecord[0], 0);
+                }
+                if (next == null) {
+                    break;
+                }
+                target = next;
+            }
+            int rCode = reply.message.getHeader().getRCode();
+            if (target.equals(name) || rCode == 3) {
+                // Nothing more to follow: no such name, or no records of the type
+                return DNSMessage.buildResponse(request, toArray(answers), soaOf(reply), rCode);
+            }
+            // The CNAME leads somewhere the server didn't answer for, look that up from the start
+            name = target;
+        }
+        failures.increment();
+        return null;
+    }
+
+    private static DNSRecord[] toArray(List<DNSRecord> records) {
+        return records.toArray(new DNSRecord[records.size()]);
+    }
+
+    // The SOA record of a negative reply, if the server sent one for its own zone
+    private static DNSRecord[] soaOf(Reply reply) {
+        for (DNSRecord record : reply.message.getNSRecords()) {
+            if (record.getType() == DNSRecord.TYPE_SOA && record.getName().isSubdomainOf(reply.zone)) {
+                return new DNSRecord[] {record};
+            }
+        }
+        return new DNSRecord[0];
+    }
+
+    // Ask the name servers for the name, starting at the deepest known delegation and following referrals down
+    // until a server answers for the name's own zone. Null if no server could be reached in time
+    private Reply query(DomainName name, int type, long deadline, int depth) throws IOException {
+        DelegationCache.Delegation delegation = delegations.closest(name);
+        for (int referral = 0; referral < MAX_REFERRALS; referral++) {
+            DomainName zone = delegation == null ? DomainName.ROOT : delegation.getZone();
+            List<InetSocketAddress> servers = delegation == null ? rootHints : serversOf(delegation, deadline, depth);
+            DNSMessage reply = ask(servers, name, type, deadline);
+            if (reply == null) {
+                if (delegation == null || System.nanoTime() / 1_000_000 >= deadline) {
+                    return null;
+                }
+                // Every server of the zone failed, perhaps the delegation is stale: ask its parent again
+                delegations.removeDelegation(delegation);
+                delegation = delegations.closest(zone.parent());
+                continue;
+            }
+            if (reply.getAnswers().length != 0 || reply.getHeader().getRCode() != 0) {
+                return new Reply(reply, zone);
+            }
+            DelegationCache.Delegation child = followReferral(reply, zone, name);
+            if (child == null) {
+                // No records of the type, the authority section holds the SOA if anything
+                return new Reply(reply, zone);
+            }
+            delegation = child;
+        }
+        return null;
+    }
+
+    // Cache the referral in a reply from a server for zone, if it is one: NS records for a zone below it that holds
+    // the name, with glue for those of the name servers inside zone. Returns the new delegation, or null if the
+    // reply isn't a referral
+    private DelegationCache.Delegation followReferral(DNSMessage reply, DomainName zone, DomainName name) {
+        DomainName child = null;
+        ArrayList<DomainName> nameServers = new ArrayList<>();
+        int ttl = Integer.MAX_VALUE;
+        for (DNSRecord record : reply.getNSRecords()) {
+            if (record.getType() != DNSRecord.TYPE_NS || record.getName().equals(zone)
+                    || !record.getName().isSubdomainOf(zone) || !name.isSubdomainOf(record.getName())) {
+                continue;
+            }
+            if (child == null) {
+                child = record.getName();
+            } else if (!child.equals(record.getName())) {
+                continue;
+            }
+            nameServers.add(DomainName.fromWire(record.getrData()));
+            ttl = Math.min(ttl, record.getTtl());
+        }
+        if (child == null) {
+            return null;
+        }
+        LinkedHashMap<DomainName, ArrayList<InetAddress>> glue = new LinkedHashMap<>();
+        for (DNSRecord record : reply.getAddRecords()) {
+            if ((record.getType() == DNSRecord.TYPE_A || record.getType() == DNSRecord.TYPE_AAAA)
+                    && nameServers.contains(record.getName()) && record.getName().isSubdomainOf(zone)) {
+                try {
+                    glue.computeIfAbsent(record.getName(), key -> new ArrayList<>()).add(InetAddress.getByAddress(record.getrData()));
+                } catch (IOException e) {
+                    // Not an address, skip it
+                }
+            }
+        }
+        for (DomainName nameServer : glue.keySet()) {
+            List<InetAddress> addresses = glue.get(nameServer);
+            delegations.addAddresses(nameServer, addresses.toArray(new InetAddress[addresses.size()]), ttl);
+        }
+        return delegations.addDelegation(child, nameServers.toArray(new DomainName[nameServers.size()]), ttl);
+    }
+
+    // The addresses of a zone's name servers, fastest first. If none are known, the addresses of the name servers
+    // are looked up in turn until one has some, as long as the lookups aren't nested too deep
+    private List<InetSocketAddress> serversOf(DelegationCache.Delegation delegation, long deadline, int depth) throws IOException {
+        ArrayList<InetSocketAddress> servers = new ArrayList<>();
+        for (DomainName nameServer : delegation.getNameServers()) {
+            addServers(servers, delegations.addressesOf(nameServer));
+        }
+        if (servers.isEmpty() && depth < MAX_DEPTH) {
+            for (DomainName nameServer : delegation.getNameServers()) {
+                // A name server inside the zone without glue can't be found through the zone itself
+                if (nameServer.isSubdomainOf(delegation.getZone())) {
+                    continue;
+                }
+                addServers(servers, lookUpAddresses(nameServer, deadline, depth + 1));
+                if (!servers.isEmpty()) {
+                    break;
+                }
+            }
+        }
+        servers.sort(Comparator.comparingLong(delegations::roundTripOf));
+        return servers;
+    }
+
+    private void addServers(List<InetSocketAddress> servers, InetAddress[] addresses) {
+        if (addresses != null) {
+            for (InetAddress address : addresses) {
+                servers.add(new InetSocketAddress(address, nameServerPort));
+            }
+        }
+    }
+
+    // The IPv4 addresses of a name server, resolved and cached, or null if it has none
+    private InetAddress[] lookUpAddresses(DomainName nameServer, long deadline, int depth) throws IOException {
+        Reply reply = query(nameServer, DNSRecord.TYPE_A, deadline, depth);
+        if (reply == null) {
+            return null;
+        }
+        ArrayList<InetAddress> addresses = new ArrayList<>();
+        int ttl = Integer.MAX_VALUE;
+        for (DNSRecord record : reply.message.getAnswers()) {
+            if (record.getType() == DNSRecord.TYPE_A && record.getName().equals(nameServer)) {
+                addresses.add(InetAddress.getByAddress(record.getrData()));
+                ttl = Math.min(ttl, record.getTtl());
+            }
+        }
+        if (addresses.isEmpty()) {
+            return null;
+        }
+        InetAddress[] found = addresses.toArray(new InetAddress[addresses.size()]);
+        delegations.addAddresses(nameServer, found, ttl);
+        return found;
+    }
+
+    // Ask the servers in turn until one replies with an answer, a referral or a negative answer. Server Failure
+    // and Refused count as no reply. Null if none of them replied by the deadline
+    private DNSMessage ask(List<InetSocketAddress> servers, DomainName name, int type, long deadline) throws IOException {
+        DNSQuestion question = new DNSQuestion(name, type, 1);
+        int tried = 0;
+        for (InetSocketAddress server : servers) {
+            long timeout = Math.min(attemptTimeoutMillis, deadline - System.nanoTime() / 1_000_000);
+            if (timeout <= 0 || tried++ == MAX_SERVERS_TRIED) {
+                return null;
+            }
+            long start = System.nanoTime();
+            DNSMessage reply = exchange(server, question, timeout);
+            if (reply == null) {
+                delegations.recordTimeout(server, timeout * 1000);
+                continue;
+            }
+            delegations.recordRoundTrip(server, (System.nanoTime() - start) / 1000);
+            int rCode = reply.getHeader().getRCode();
+            if (rCode == 0 || rCode == 3) {
+                return reply;
+            }
+        }
+        return null;
+    }
+
+    // Send one query to a server and wait for its reply, over TCP if the UDP reply is truncated. Null if there was
+    // no matching reply within the timeout
+    private DNSMessage exchange(InetSocketAddress server, DNSQuestion question, long timeoutMillis) throws IOException {
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        byte[] query = DNSMessage.buildQuery(question, id, payloadSize, false).getRawData();
+        queries.increment();
+        long deadline = System.nanoTime() / 1_000_000 + timeoutMillis;
+        DNSMessage reply = null;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            // Connected, so only datagrams from the server are received
+            socket.connect(server);
+            socket.send(new DatagramPacket(query, query.length));
+            byte[] buffer = new byte[Math.max(payloadSize, 512)];
+            while (reply == null) {
+                long remaining = deadline - System.nanoTime() / 1_000_000;
+                if (remaining <= 0) {
+                    return null;
+                }
+                socket.setSoTimeout((int) remaining);
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                reply = matching(Arrays.copyOf(buffer, packet.getLength()), id, question);
+            }
+        } catch (SocketTimeoutException e) {
+            return null;
+        } catch (IOException e) {
+            // e.g. the port is unreachable
+            return null;
+        }
+        if (reply.getHeader().getTc() == 1) {
+            queries.increment();
+            return exchangeTcp(server, query, id, question, deadline);
+        }
+        return reply;
+    }
+
+    private DNSMessage exchangeTcp(InetSocketAddress server, byte[] query, int id, DNSQuestion question, long deadline) {
+        try (Socket socket = new Socket()) {
+            int remaining = (int) (deadline - System.nanoTime() / 1_000_000);
+            if (remaining <= 0) {
+                return null;
+            }
+            socket.connect(server, remaining);
+            socket.setSoTimeout(remaining);
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            output.writeShort(query.length);
+            output.write(query);
+            output.flush();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            byte[] reply = new byte[input.readUnsignedShort()];
+            input.readFully(reply);
+            return matching(reply, id, question);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // The reply decoded if it answers the query, null if it is for something else or can't be decoded
+    private static DNSMessage matching(byte[] data, int id, DNSQuestion question) {
+        try {
+            DNSMessage reply = DNSMessage.decodeMessage(data);
+            if (reply.getHeader().getId() == id && reply.getQuestions().length == 1 && reply.getQuestions()[0].equals(question)) {
+                return reply;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Garbage, ignore it
+        }
+        return null;
+    }
+}
@@ -0,0 +1,295 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Sends queries to a DNS server over UDP and reports throughput and latency percentiles, to measure the server
+// without real clients. With a StubUpstream behind the server no network is needed at all.
+// Queries come from a file with a name and optionally a type on each line ('www.example.com AAAA', type A if left
+// out), e.g. names and types pulled out of a packet capture with
+//   tshark -r capture.pcap -Y 'dns.flags.response == 0' -T fields -e dns.qry.name -e dns.qry.type
+// and are sent in the file's order, starting over at the end.
+// Two ways of loading the server:
+//   open loop, --rate N: N queries a second on a fixed schedule, however slowly the server answers. Latency is measured
+//     from when each query was due to be sent rather than when it was, so a stall in the server or in this program
+//     counts against every query it held up (correcting for coordinated omission)
+//   closed loop, --concurrency N: N queries outstanding at all times, each answer or timeout letting the next go.
+//     The server sets the pace, so this finds its capacity, and latency is measured from the actual send
+// Usage: java DNSResolver.LoadGenerator host:port queryFile (--rate N | --concurrency N) [--duration seconds]
+//        [--timeout ms]
+public class LoadGenerator {
+    // Queries are matched to answers by transaction ID, so at most this many can be outstanding
+    private static final int IDS = 0x10000;
+
+    private InetSocketAddress server;
+    private byte[][] queries;
+    private DatagramChannel channel;
+    private long timeoutNanos;
+
+    // When the query now using each ID was due to be sent (System.nanoTime), 0 for an ID not in use
+    private AtomicLongArray sentAt = new AtomicLongArray(IDS);
+
+    private Histogram latency = new Histogram();
+    private LongAdder sent = new LongAdder();
+    private LongAdder answered = new LongAdder();
+    private LongAdder timedOut = new LongAdder();
+    private LongAdder truncated = new LongAdder();
+    private AtomicLongArray rCodes = new AtomicLongArray(16);
+    private volatile boolean sending = true;
+
+    // Closed loop only: the position in the query list of the next query to send
+    private long nextQuery = 0;
+
+    public LoadGenerator(InetSocketAddress server, byte[][] queries, long timeoutMillis) throws IOException {
+        this.server = server;
+        this.queries = queries;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        channel = DatagramChannel.open();
+        channel.connect(server);
+    }
+
+    public Histogram getLatency() {
+        return latency;
+    }
+    public long getSent() {
+        return sent.sum();
+    }
+    public long getAnswered() {
+        return answered.sum();
+    }
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    // Encode every query in the file once up front, so sending only has to set the ID
+    public static byte[][] readQueries(String path) throws IOException {
+        ArrayList<byte[]> queries = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].isEmpty() || fields[0].startsWith("#")) {
+                continue;
+            }
+            int type = DNSRecord.TYPE_A;
+            if (fields.length > 1) {
+                type = Character.isDigit(fields[1].charAt(0)) ? Integer.parseInt(fields[1]) : DNSRecord.typeFromName(fields[1]);
+                if (type < 0) {
+                    throw new IOException("Unknown type " + fields[1] + " for " + fields[0]);
+                }
+            }
+            DNSQuestion question = new DNSQuestion(DomainName.parse(fields[0]), type, 1);
+            queries.add(DNSMessage.buildQuery(question, 0, 1232).getRawData());
+        }
+        if (queries.isEmpty()) {
+            throw new IOException("No queries in " + path);
+        }
+        return queries.toArray(new byte[queries.size()][]);
+    }
+
+    // Open loop: send ratePerSecond queries a second for durationNanos, then wait out the timeout for the last answers
+    public void runOpenLoop(double ratePerSecond, long durationNanos) throws InterruptedException {
+        Thread receiver = startReceiver(false);
+        ByteBuffer output = ByteBuffer.allocateDirect(TcpConnection.MAX_MESSAGE);
+        long interval = (long) (1e9 / ratePerSecond);
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        for (long i = 0; ; i++) {
+            long due = start + i * interval;
+            if (due >= end) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 50_000) {
+                LockSupport.parkNanos(wait - 50_000);
+            }
+            while (System.nanoTime() < due) {
+                Thread.onSpinWait();
+            }
+            send(output, (int) (i % queries.length), (int) (i & (IDS - 1)), due);
+        }
+        finish(receiver);
+    }
+
+    // Closed loop: keep concurrency queries outstanding for durationNanos, then wait out the timeout for the last
+    // answers. The receiving thread sends the next query as each answer arrives; this one looks for timeouts
+    public void runClosedLoop(int concurrency, long durationNanos) throws InterruptedException {
+        concurrency = Math.min(concurrency, IDS);
+        Thread receiver = startReceiver(true);
+        ByteBuffer output = ByteBuffer.allocateDirect(TcpConnection.MAX_MESSAGE);
+        for (int id = 0; id < concurrency; id++) {
+            sendNext(output, id);
+        }
+        long end = System.nanoTime() + durationNanos;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos) / 10));
+            long now = System.nanoTime();
+            for (int id = 0; id < concurrency; id++) {
+                long at = sentAt.get(id);
+                if (at != 0 && now - at > timeoutNanos && sentAt.compareAndSet(id, at, 0)) {
+                    timedOut.increment();
+                    sendNext(output, id);
+                }
+            }
+        }
+        finish(receiver);
+    }
+
+    // Closed loop: send the next query in the list under the given ID
+    private void sendNext(ByteBuffer output, int id) {
+        if (!sending) {
+            return;
+        }
+        int index;
+        synchronized (this) {
+            index = (int) (nextQuery++ % queries.length);
+        }
+        send(output, index, id, System.nanoTime());
+    }
+
+    private void send(ByteBuffer output, int index, int id, long due) {
+        if (sentAt.getAndSet(id, due) != 0) {
+            // The query last sent with this ID was never answered
+            timedOut.increment();
+        }
+        byte[] query = queries[index];
+        output.clear();
+        output.put(query);
+        output.putShort(0, (short) id);
+        output.flip();
+        try {
+            channel.write(output);
+            sent.increment();
+        } catch (IOException e) {
+            // The server isn't listening (ICMP port unreachable), the query counts as unanswered
+        }
+    }
+
+    // Stop sending, give the last queries the timeout to be answered, and count the ones that weren't
+    private void finish(Thread receiver) throws InterruptedException {
+        sending = false;
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+        receiver.join();
+        for (int id = 0; id < IDS; id++) {
+            if (sentAt.getAndSet(id, 0) != 0) {
+                timedOut.increment();
+            }
+        }
+    }
+
+    // Receive answers on a thread of its own, recording their latency, and in closed loop send the next query
+    private Thread startReceiver(boolean closedLoop) {
+        Thread receiver = new Thread(() -> {
+            ByteBuffer input = ByteBuffer.allocateDirect(TcpConnection.MAX_MESSAGE);
+            ByteBuffer output = ByteBuffer.allocateDirect(TcpConnection.MAX_MESSAGE);
+            while (channel.isOpen()) {
+                try {
+                    input.clear();
+                    channel.receive(input);
+                    long now = System.nanoTime();
+                    if (input.position() < 12) {
+                        continue;
+                    }
+                    int id = input.getShort(0) & 0xffff;
+                    long due = sentAt.getAndSet(id, 0);
+                    if (due == 0) {
+                        // Late answer to a query already counted as timed out
+                        continue;
+                    }
+                    latency.record(now - due);
+                    answered.increment();
+                    rCodes.incrementAndGet(input.get(3) & 0xf);
+                    if ((input.get(2) & 0x02) != 0) {
+                        truncated.increment();
+                    }
+                    if (closedLoop) {
+                        sendNext(output, id);
+                    }
+                } catch (AsynchronousCloseException e) {
+                    break;
+                } catch (IOException e) {
+                    // ICMP port unreachable from an earlier send, keep receiving
+                }
+            }
+        }, "load-receiver");
+        receiver.start();
+        return receiver;
+    }
+
+    // The results, in milliseconds
+    public String report(long durationNanos) {
+        StringBuilder text = new StringBuilder();
+        double seconds = durationNanos / 1e9;
+        text.append(String.format("sent %d, answered %d, timed out %d, truncated %d%n", getSent(), getAnswered(), getTimedOut(), truncated.sum()));
+        text.append(String.format("throughput %.1f answers/s%n", getAnswered() / seconds));
+        text.append("rcodes");
+        for (int rCode = 0; rCode < 16; rCode++) {
+            if (rCodes.get(rCode) != 0) {
+                text.append(' ').append(rCode == 0 ? "NOERROR" : rCode == 2 ? "SERVFAIL" : rCode == 3 ? "NXDOMAIN" : "RCODE" + rCode)
+                        .append('=').append(rCodes.get(rCode));
+            }
+        }
+        text.append(String.format("%nlatency ms: mean %.3f", latency.getMean() / 1e6));
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999, 1.0}) {
+            text.append(String.format(" p%s %.3f", quantile == 1.0 ? "100" : String.valueOf(quantile * 100).replaceAll("\\.0$", ""),
+                    latency.percentile(quantile) / 1e6));
+        }
+        return text.append(System.lineSeparator()).toString();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 4) {
+            System.out.println("Usage: java DNSResolver.LoadGenerator host:port queryFile (--rate N | --concurrency N) [--duration seconds] [--timeout ms]");
+            return;
+        }
+        int colon = args[0].lastIndexOf(':');
+        InetSocketAddress server = new InetSocketAddress(args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon + 1)));
+        double rate = 0;
+        int concurrency = 0;
+        long durationSeconds = 10;
+        long timeoutMillis = 2000;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--rate":
+                    rate = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--duration":
+                    durationSeconds = Long.parseLong(args[i + 1]);
+                    break;
+                case "--timeout":
+                    timeoutMillis = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        LoadGenerator generator = new LoadGenerator(server, readQueries(args[1]), timeoutMillis);
+        long duration = TimeUnit.SECONDS.toNanos(durationSeconds);
+        if (rate > 0) {
+            System.out.println("Open loop at " + rate + " queries/s for " + durationSeconds + "s against " + server);
+            generator.runOpenLoop(rate, duration);
+        } else {
+            System.out.println("Closed loop with " + concurrency + " outstanding for " + durationSeconds + "s against " + server);
+            generator.runClosedLoop(Math.max(1, concurrency), duration);
+        }
+        System.out.print(generator.report(duration));
+    }
+}
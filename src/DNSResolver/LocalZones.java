@@ -0,0 +1,620 @@
+package DNSResolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Names answered by the server itself, ahead of the cache: internal hostnames, and sinkhole or block lists of
+// millions of names. Read from any mix of
+//   zone files (*.zone, see ZoneFile): records answered as they are, and for a zone with an SOA record, Name Error
+//     or an empty answer with that SOA for names and types in the zone without records
+//   hosts files: 'address name...' lines, answered with A or AAAA records (0.0.0.0 for a sinkhole)
+//   block lists: a bare name per line, answered with Name Error
+// A name starting with '*.' covers names below it, in any of them. Wildcard records answer as RFC 4592 has it, only
+// for names that don't exist right below the wildcard's parent: not for a name with names of its own below it (an
+// empty non-terminal), nor below such a name. A blocked wildcard blocks every name below it that isn't answered by
+// records of its own or a closer wildcard, unless a local zone below it is closer to the name. A blocked name wins
+// over records for it.
+// Everything is compiled into one immutable image, a trie over the labels of the names from the right (com, then
+// example, then www), so a lookup is a binary search among the children of one node per label, O(name length).
+// Each node is its label, flags, the offsets of its record sets and the offsets of its children sorted by label;
+// names share the nodes of their common suffix and hold no objects, a few tens of bytes each against hundreds in a
+// HashMap<String, ...>. Lookups of names that aren't local allocate nothing.
+// Image layout, numbers big endian:
+//   magic "DNSZ" | version (int) | root node offset (int) | name count (int)
+//   node: label length | label, lowercase | flags | exact record set (int)? | wildcard record set (int)? |
+//         SOA record set (int)? | child count (int) | child node offsets (int each)
+//   record set: count (short), then for each record type (short) | TTL (int) | data length (short) | data
+// An image can be saved to a file (*.dnsz) and memory mapped instead of compiled again, e.g. for a block list too
+// large to compile on every start: 'java DNSResolver.LocalZones blocked.dnsz blocklist.txt'.
+// The server swaps in a new LocalZones whenever its files change, without pausing lookups of the old one.
+public class LocalZones {
+    private static final int MAGIC = 0x444e535a;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+
+    // Node flags
+    private static final int EXACT_BLOCK = 1;
+    private static final int EXACT_RECORDS = 2;
+    private static final int WILDCARD_BLOCK = 4;
+    private static final int WILDCARD_RECORDS = 8;
+    private static final int APEX = 16;
+
+    // Hosts file entries have no TTL of their own
+    private static final int HOSTS_TTL = 300;
+
+    // Longest chain of CNAME records followed through local names
+    private static final int MAX_CHAIN = 8;
+
+    // What a walk down the trie found for a name
+    private static final int NOT_LOCAL = 0;
+    private static final int BLOCKED = 1;
+    // Records at the node, for the name itself or, with WILDCARD, for the names below it
+    private static final int RECORDS = 2;
+    private static final int WILDCARD = 3;
+    // In a local zone, a name that doesn't exist, or exists without records
+    private static final int NO_SUCH_NAME = 4;
+    private static final int NO_RECORDS = 5;
+
+    private static final ThreadLocal<Walk> WALKS = ThreadLocal.withInitial(Walk::new);
+
+    private ByteBuffer image;
+    private int root;
+    private int nameCount;
+
+    private LocalZones(ByteBuffer image) throws IOException {
+        if (image.limit() < HEADER_LENGTH || image.getInt(0) != MAGIC || image.getInt(4) != VERSION) {
+            throw new IOException("Not a local zone image");
+        }
+        this.image = image;
+        root = image.getInt(8);
+        nameCount = image.getInt(12);
+    }
+
+    // Names with records or blocked, wildcards included
+    public int getNameCount() {
+        return nameCount;
+    }
+    public int getByteSize() {
+        return image.limit();
+    }
+
+    // Compile the files, or map the image if given a single *.dnsz file
+    public static LocalZones load(List<String> files) throws IOException {
+        if (files.size() == 1 && files.get(0).endsWith(".dnsz")) {
+            return map(Paths.get(files.get(0)));
+        }
+        Builder builder = new Builder();
+        for (String file : files) {
+            if (file.endsWith(".dnsz")) {
+                throw new IOException("A compiled image (" + file + ") must be the only local zone file");
+            }
+            builder.read(Paths.get(file));
+        }
+        return builder.build();
+    }
+
+    // Map an image saved with save()
+    public static LocalZones map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new LocalZones(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Write the image to a file, through a temporary file so a reader never maps half of one
+    public void save(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = image.duplicate();
+            bytes.clear();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The response to a request with a single question for a local name, or null if the name isn't local and the
+    // request goes on to the cache
+    public DNSMessage answer(DNSMessage request) {
+        DNSQuestion question = request.getQuestions()[0];
+        if (question.getqClass() != 1) {
+            return null;
+        }
+        DomainName name = question.getqName();
+        Walk walk = walk(name);
+        switch (walk.code) {
+            case NOT_LOCAL:
+                return null;
+            case BLOCKED:
+                return DNSMessage.buildResponse(request, new DNSRecord[0], new DNSRecord[0], 3);
+            case NO_SUCH_NAME:
+                return DNSMessage.buildResponse(request, new DNSRecord[0], soa(name, walk), 3);
+            case NO_RECORDS:
+                return DNSMessage.buildResponse(request, new DNSRecord[0], soa(name, walk), 0);
+            default:
+                break;
+        }
+        ArrayList<DNSRecord> answers = new ArrayList<>();
+        DomainName owner = name;
+        DNSRecord[] authority = new DNSRecord[0];
+        for (int link = 0; link < MAX_CHAIN; link++) {
+            int set = image.getInt(fieldAt(walk.node, walk.code == RECORDS ? EXACT_RECORDS : WILDCARD_RECORDS));
+            int answered = answers.size();
+            byte[] alias = readRecords(set, owner, question.getqType(), answers);
+            if (answers.size() == answered) {
+                // No records of the type asked for
+                authority = soa(owner, walk);
+                break;
+            }
+            if (alias == null) {
+                break;
+            }
+            // Follow the alias while it stays local, the client asks about the rest of the chain itself
+            owner = DomainName.fromWire(alias);
+            walk = walk(owner);
+            if (walk.code != RECORDS && walk.code != WILDCARD) {
+                break;
+            }
+        }
+        return DNSMessage.buildResponse(request, answers.toArray(new DNSRecord[answers.size()]), authority, 0);
+    }
+
+    // Scratch space for walking the trie, one per thread so a lookup allocates nothing
+    private static class Walk {
+        int[] labelStarts = new int[128];
+        int labels;
+        int code;
+        int node;
+        // The closest local zone holding the name, -1 for none, and how many labels its name has
+        int apexNode;
+        int apexDepth;
+    }
+
+    // Walk down the trie as far as the name goes, working out what answers it
+    private Walk walk(DomainName name) {
+        Walk walk = WALKS.get();
+        byte[] wire = name.lowercaseWire();
+        int labels = 0;
+        for (int position = name.wireOffset(); wire[position] != 0; position += (wire[position] & 0xff) + 1) {
+            walk.labelStarts[labels++] = position;
+        }
+        walk.labels = labels;
+        walk.apexNode = -1;
+        int node = root;
+        int depth = 0;
+        int blockNode = -1;
+        int blockDepth = -1;
+        while (true) {
+            int flags = flags(node);
+            if ((flags & APEX) != 0) {
+                walk.apexNode = node;
+                walk.apexDepth = depth;
+            }
+            if (depth == labels) {
+                break;
+            }
+            if ((flags & WILDCARD_BLOCK) != 0) {
+                blockNode = node;
+                blockDepth = depth;
+            }
+            int child = findChild(node, wire, walk.labelStarts[labels - 1 - depth]);
+            if (child < 0) {
+                break;
+            }
+            node = child;
+            depth++;
+        }
+        if (depth == labels) {
+            int flags = flags(node);
+            if ((flags & EXACT_BLOCK) != 0) {
+                return found(walk, BLOCKED, node);
+            }
+            if ((flags & EXACT_RECORDS) != 0) {
+                return found(walk, RECORDS, node);
+            }
+        }
+        // Wildcard records only answer for a name that doesn't exist, from the closest name that does (RFC 4592)
+        boolean wildcard = depth < labels && (flags(node) & WILDCARD_RECORDS) != 0;
+        if (blockNode >= 0 && (!wildcard || blockDepth == depth) && (walk.apexNode < 0 || blockDepth >= walk.apexDepth)) {
+            return found(walk, BLOCKED, blockNode);
+        }
+        if (wildcard) {
+            return found(walk, WILDCARD, node);
+        }
+        if (walk.apexNode >= 0) {
+            // A name with nothing of its own but names below it exists, just without records
+            return found(walk, depth == labels ? NO_RECORDS : NO_SUCH_NAME, node);
+        }
+        return found(walk, NOT_LOCAL, node);
+    }
+
+    private static Walk found(Walk walk, int code, int node) {
+        walk.code = code;
+        walk.node = node;
+        return walk;
+    }
+
+    // The child of the node for the label at start in wire, or -1 if there is none
+    private int findChild(int node, byte[] wire, int start) {
+        int children = fieldAt(node, 0);
+        int low = 0;
+        int high = image.getInt(children) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int child = image.getInt(children + 4 + middle * 4);
+            int compare = compareLabel(child, wire, start);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    // Compare the label a node starts with to the label at start in wire: unsigned bytes, then length
+    private int compareLabel(int node, byte[] wire, int start) {
+        int nodeLength = image.get(node) & 0xff;
+        int length = wire[start] & 0xff;
+        for (int i = 1; i <= Math.min(nodeLength, length); i++) {
+            int difference = (image.get(node + i) & 0xff) - (wire[start + i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return nodeLength - length;
+    }
+
+    private int flags(int node) {
+        return image.get(node + 1 + (image.get(node) & 0xff));
+    }
+
+    // Where a field of the node is: EXACT_RECORDS, WILDCARD_RECORDS or APEX for the offsets of its record sets, 0 for
+    // its child count. Fields a node's flags don't have take no space
+    private int fieldAt(int node, int field) {
+        int position = node + 2 + (image.get(node) & 0xff);
+        int flags = image.get(position - 1);
+        if (field == EXACT_RECORDS) {
+            return position;
+        }
+        if ((flags & EXACT_RECORDS) != 0) {
+            position += 4;
+        }
+        if (field == WILDCARD_RECORDS) {
+            return position;
+        }
+        if ((flags & WILDCARD_RECORDS) != 0) {
+            position += 4;
+        }
+        if (field == APEX) {
+            return position;
+        }
+        if ((flags & APEX) != 0) {
+            position += 4;
+        }
+        return position;
+    }
+
+    // Add the records of the set with the type asked for to answers, owned by owner. With none of that type but a
+    // CNAME, add that instead and return its data, the name it points to. Otherwise return null
+    private byte[] readRecords(int set, DomainName owner, int type, ArrayList<DNSRecord> answers) {
+        int count = image.getShort(set) & 0xffff;
+        int position = set + 2;
+        DNSRecord alias = null;
+        boolean found = false;
+        for (int i = 0; i < count; i++) {
+            int recordType = image.getShort(position) & 0xffff;
+            int length = image.getShort(position + 6) & 0xffff;
+            if (recordType == type || type == 255 || recordType == DNSRecord.TYPE_CNAME) {
+                byte[] data = new byte[length];
+                image.get(position + 8, data);
+                DNSRecord record = DNSRecord.build(owner, recordType, image.getInt(position + 2), data);
+                if (recordType == type || type == 255) {
+                    answers.add(record);
+                    found = true;
+                } else {
+                    alias = record;
+                }
+            }
+            position += 8 + length;
+        }
+        if (found || alias == null) {
+            return null;
+        }
+        answers.add(alias);
+        return alias.getrData();
+    }
+
+    // The SOA record of the local zone the walk found the name in, for a negative answer. Empty outside local zones
+    private DNSRecord[] soa(DomainName name, Walk walk) {
+        if (walk.apexNode < 0) {
+            return new DNSRecord[0];
+        }
+        DomainName apex = name;
+        for (int i = walk.apexDepth; i < walk.labels; i++) {
+            apex = apex.parent();
+        }
+        int set = image.getInt(fieldAt(walk.apexNode, APEX));
+        int length = image.getShort(set + 8) & 0xffff;
+        byte[] data = new byte[length];
+        image.get(set + 10, data);
+        // Negative answers live as long as the SOA record or its minimum field, whichever is less (RFC 2308)
+        int ttl = Math.min(image.getInt(set + 4), image.getInt(set + 10 + length - 4));
+        return new DNSRecord[] {DNSRecord.build(apex, DNSRecord.TYPE_SOA, ttl, data)};
+    }
+
+    // Collects names from files and compiles them into an image.
+    // Each name is kept as a key: its labels lowercased from the right, each prefixed with its length, then 0, what
+    // the key is for (a block, or a record and its index in records), and whether it is a wildcard. Sorting the keys
+    // label by label puts them in the order the trie's nodes and children are written in
+    public static class Builder {
+        private static final byte BLOCK = 1;
+        private static final byte RECORD = 2;
+
+        private ArrayList<byte[]> keys = new ArrayList<>();
+        private ArrayList<DNSRecord> records = new ArrayList<>();
+
+        // While compiling: the sorted keys, and for each where its next label starts
+        private byte[][] sorted;
+        private int[] positions;
+        private DataOutputStream output;
+        private ByteArrayOutputStream bytes;
+        private int names;
+
+        // Read a zone file (*.zone), or else a hosts file or block list
+        public Builder read(Path path) throws IOException {
+            if (path.toString().endsWith(".zone")) {
+                for (DNSRecord record : ZoneFile.read(path, DomainName.ROOT)) {
+                    addRecord(record);
+                }
+            } else {
+                readHosts(path);
+            }
+            return this;
+        }
+
+        // Lines of 'address name...' or just a name to block, comments starting with '#'
+        private void readHosts(Path path) throws IOException {
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].isEmpty()) {
+                    continue;
+                }
+                try {
+                    if (fields.length == 1) {
+                        addBlock(DomainName.parse(fields[0]));
+                        continue;
+                    }
+                    if (!fields[0].contains(":") && !fields[0].matches("[0-9.]+")) {
+                        throw new IllegalArgumentException("not an address: " + fields[0]);
+                    }
+                    // A literal address, so this never looks anything up
+                    byte[] address = InetAddress.getByName(fields[0]).getAddress();
+                    int type = address.length == 4 ? DNSRecord.TYPE_A : DNSRecord.TYPE_AAAA;
+                    for (int i = 1; i < fields.length; i++) {
+                        addRecord(DNSRecord.build(DomainName.parse(fields[i]), type, HOSTS_TTL, address));
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    throw new IOException(path + " line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+
+        // Answer the record's name with it. A name starting with '*' gives the record to every name below the rest
+        public Builder addRecord(DNSRecord record) {
+            keys.add(key(record.getName(), RECORD, records.size()));
+            records.add(record);
+            return this;
+        }
+
+        // Answer the name with Name Error, and with a name starting with '*', every name below the rest
+        public Builder addBlock(DomainName name) {
+            keys.add(key(name, BLOCK, 0));
+            return this;
+        }
+
+        private static byte[] key(DomainName name, byte kind, int index) {
+            byte[] wire = name.lowercaseWire();
+            int start = name.wireOffset();
+            boolean wildcard = wire[start] == 1 && wire[start + 1] == '*';
+            if (wildcard) {
+                start += 2;
+            }
+            int[] labelStarts = new int[128];
+            int labels = 0;
+            int position = start;
+            for (; wire[position] != 0; position += (wire[position] & 0xff) + 1) {
+                labelStarts[labels++] = position;
+            }
+            byte[] key = new byte[position + 1 - start + 6];
+            // Copy the labels from the last to the first
+            int written = 0;
+            for (int i = labels - 1; i >= 0; i--) {
+                int labelLength = (wire[labelStarts[i]] & 0xff) + 1;
+                System.arraycopy(wire, labelStarts[i], key, written, labelLength);
+                written += labelLength;
+            }
+            key[written] = 0;
+            key[written + 1] = (byte) (kind | (wildcard ? 4 : 0));
+            ByteBuffer.wrap(key).putInt(written + 2, index);
+            return key;
+        }
+
+        // Compare the labels at aStart in a and bStart in b: unsigned bytes, then length, as the lookups do
+        private static int compareLabels(byte[] a, int aStart, byte[] b, int bStart) {
+            int aLength = a[aStart] & 0xff;
+            int bLength = b[bStart] & 0xff;
+            for (int i = 1; i <= Math.min(aLength, bLength); i++) {
+                int difference = (a[aStart + i] & 0xff) - (b[bStart + i] & 0xff);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return aLength - bLength;
+        }
+
+        // Label by label, a name's own keys before those of the names below it
+        private static int compareKeys(byte[] a, byte[] b) {
+            int position = 0;
+            while (true) {
+                int compare = compareLabels(a, position, b, position);
+                if (compare != 0) {
+                    return compare;
+                }
+                int length = a[position] & 0xff;
+                if (length == 0) {
+                    return Arrays.compare(a, position, a.length, b, position, b.length);
+                }
+                position += length + 1;
+            }
+        }
+
+        public LocalZones build() throws IOException {
+            sorted = keys.toArray(new byte[keys.size()][]);
+            keys = null;
+            Arrays.sort(sorted, Builder::compareKeys);
+            positions = new int[sorted.length];
+            bytes = new ByteArrayOutputStream(Math.max(1024, sorted.length * 24));
+            output = new DataOutputStream(bytes);
+            output.write(new byte[HEADER_LENGTH]);
+            names = 0;
+            int root = writeNode(0, sorted.length, new byte[] {0}, 0);
+            ByteBuffer image = ByteBuffer.wrap(bytes.toByteArray());
+            image.putInt(0, MAGIC);
+            image.putInt(4, VERSION);
+            image.putInt(8, root);
+            image.putInt(12, names);
+            return new LocalZones(image);
+        }
+
+        // Write the node for sorted[low, high), keys sharing every label before their position, after everything
+        // below it. label at labelStart in the array is the node's own. Returns the node's offset
+        private int writeNode(int low, int high, byte[] label, int labelStart) throws IOException {
+            int flags = 0;
+            ArrayList<DNSRecord> exact = new ArrayList<>(0);
+            ArrayList<DNSRecord> wildcard = new ArrayList<>(0);
+            DNSRecord soa = null;
+            int i = low;
+            // The node's own keys come first
+            for (; i < high && sorted[i][positions[i]] == 0; i++) {
+                byte[] key = sorted[i];
+                int kind = key[positions[i] + 1];
+                boolean isWildcard = (kind & 4) != 0;
+                if ((kind & BLOCK) != 0) {
+                    flags |= isWildcard ? WILDCARD_BLOCK : EXACT_BLOCK;
+                    continue;
+                }
+                DNSRecord record = records.get(ByteBuffer.wrap(key).getInt(positions[i] + 2));
+                if (isWildcard) {
+                    wildcard.add(record);
+                } else {
+                    exact.add(record);
+                    if (record.getType() == DNSRecord.TYPE_SOA && soa == null) {
+                        soa = record;
+                    }
+                }
+            }
+            ArrayList<Integer> children = new ArrayList<>();
+            while (i < high) {
+                int end = i + 1;
+                while (end < high && compareLabels(sorted[i], positions[i], sorted[end], positions[end]) == 0) {
+                    end++;
+                }
+                byte[] childLabel = sorted[i];
+                int childLabelStart = positions[i];
+                for (int j = i; j < end; j++) {
+                    positions[j] += (sorted[j][positions[j]] & 0xff) + 1;
+                }
+                children.add(writeNode(i, end, childLabel, childLabelStart));
+                i = end;
+            }
+            int exactAt = 0;
+            if (!exact.isEmpty()) {
+                flags |= EXACT_RECORDS;
+                exactAt = writeRecordSet(exact);
+            }
+            int wildcardAt = 0;
+            if (!wildcard.isEmpty()) {
+                flags |= WILDCARD_RECORDS;
+                wildcardAt = writeRecordSet(wildcard);
+            }
+            int soaAt = 0;
+            if (soa != null) {
+                flags |= APEX;
+                soaAt = writeRecordSet(List.of(soa));
+            }
+            if ((flags & (EXACT_BLOCK | EXACT_RECORDS)) != 0) {
+                names++;
+            }
+            if ((flags & (WILDCARD_BLOCK | WILDCARD_RECORDS)) != 0) {
+                names++;
+            }
+            int offset = output.size();
+            output.write(label, labelStart, (label[labelStart] & 0xff) + 1);
+            output.writeByte(flags);
+            if (exactAt != 0) {
+                output.writeInt(exactAt);
+            }
+            if (wildcardAt != 0) {
+                output.writeInt(wildcardAt);
+            }
+            if (soaAt != 0) {
+                output.writeInt(soaAt);
+            }
+            output.writeInt(children.size());
+            for (int child : children) {
+                output.writeInt(child);
+            }
+            return offset;
+        }
+
+        private int writeRecordSet(List<DNSRecord> set) throws IOException {
+            int offset = output.size();
+            output.writeShort(set.size());
+            for (DNSRecord record : set) {
+                output.writeShort(record.getType());
+                output.writeInt(record.getTtl());
+                output.writeShort(record.getrData().length);
+                output.write(record.getrData());
+            }
+            return offset;
+        }
+    }
+
+    // Compile zone files, hosts files and block lists into an image file for the server to map:
+    // 'java DNSResolver.LocalZones out.dnsz file...'
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java DNSResolver.LocalZones out.dnsz file...");
+            return;
+        }
+        long start = System.nanoTime();
+        LocalZones zones = load(Arrays.asList(args).subList(1, args.length));
+        zones.save(Paths.get(args[0]));
+        System.out.println("Compiled " + zones.getNameCount() + " names into " + zones.getByteSize() + " bytes in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
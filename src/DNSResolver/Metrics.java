@@ -0,0 +1,284 @@
+package DNSResolver;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters and latency histograms for watching a DNSServer, shared by all of its workers.
+// Counters are LongAdders, striped across cells so threads on different cores don't fight over one cache line, and
+// latencies go into lock-free Histograms. Recording anything is a few atomic adds with no locking and no allocation,
+// cheap enough for every request. Reading sums the stripes, so a reading taken while requests run is approximate.
+// Cache sizes and expiries, and each upstream's RTTs, are kept by the caches and the UpstreamPool and read from there.
+// Everything is shown over JMX (see MetricsMXBean and UpstreamPool.UpstreamMXBean) and as text by StatsServer.
+public class Metrics implements MetricsMXBean {
+    private DNSServer server;
+
+    private LongAdder udpQueries = new LongAdder();
+    private LongAdder tcpQueries = new LongAdder();
+    private LongAdder cacheHits = new LongAdder();
+    private LongAdder cacheMisses = new LongAdder();
+    private LongAdder localAnswers = new LongAdder();
+    private LongAdder staleAnswers = new LongAdder();
+    private LongAdder decodeErrors = new LongAdder();
+    private LongAdder encodeErrors = new LongAdder();
+    private LongAdder serverFailures = new LongAdder();
+    private LongAdder upstreamQueriesInFlight = new LongAdder();
+
+    // From a request arriving to its response being sent, for requests answered from the cache and for the rest
+    private Histogram hitLatency = new Histogram();
+    private Histogram missLatency = new Histogram();
+
+    // Query count at the last reading of the rate, and when that was
+    private long rateQueries = 0;
+    private long rateNanos = System.nanoTime();
+    private double queriesPerSecond = 0;
+
+    // Names registered with JMX, to unregister when the server stops
+    private ObjectName[] registered = new ObjectName[0];
+
+    public Metrics(DNSServer server) {
+        this.server = server;
+    }
+
+    public void query(boolean tcp) {
+        (tcp ? tcpQueries : udpQueries).increment();
+    }
+    public void cacheHit() {
+        cacheHits.increment();
+    }
+    public void cacheMiss() {
+        cacheMisses.increment();
+    }
+    public void localAnswer() {
+        localAnswers.increment();
+    }
+    public void staleAnswer() {
+        staleAnswers.increment();
+    }
+    public void decodeError() {
+        decodeErrors.increment();
+    }
+    public void encodeError() {
+        encodeErrors.increment();
+    }
+    public void serverFailure() {
+        serverFailures.increment();
+    }
+    public void upstreamQueryStarted() {
+        upstreamQueriesInFlight.increment();
+    }
+    public void upstreamQueryFinished() {
+        upstreamQueriesInFlight.decrement();
+    }
+
+    // A request has just been answered, latencyNanos after it arrived
+    public void answered(boolean fromCache, long latencyNanos) {
+        (fromCache ? hitLatency : missLatency).record(latencyNanos);
+    }
+
+    public Histogram getHitLatency() {
+        return hitLatency;
+    }
+    public Histogram getMissLatency() {
+        return missLatency;
+    }
+
+    public long getQueries() {
+        return udpQueries.sum() + tcpQueries.sum();
+    }
+    public long getUdpQueries() {
+        return udpQueries.sum();
+    }
+    public long getTcpQueries() {
+        return tcpQueries.sum();
+    }
+
+    // Queries per second since this was last read, or over the last second if it was read more recently than that
+    public synchronized double getQueriesPerSecond() {
+        long now = System.nanoTime();
+        if (now - rateNanos >= 1_000_000_000L) {
+            long queries = getQueries();
+            queriesPerSecond = (queries - rateQueries) * 1e9 / (now - rateNanos);
+            rateQueries = queries;
+            rateNanos = now;
+        }
+        return queriesPerSecond;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+    public long getCacheExpired() {
+        return server.getCache().getExpired() + server.getNegativeCache().getExpired();
+    }
+    public double getCacheHitRatio() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+    public long getLocalAnswers() {
+        return localAnswers.sum();
+    }
+    public long getStaleAnswers() {
+        return staleAnswers.sum();
+    }
+    public int getLocalNames() {
+        LocalZones zones = server.getLocalZones();
+        return zones == null ? 0 : zones.getNameCount();
+    }
+    public long getRateLimitedDropped() {
+        RateLimiter limiter = server.getRateLimiter();
+        return limiter == null ? 0 : limiter.getDropped();
+    }
+    public long getRateLimitedTruncated() {
+        RateLimiter limiter = server.getRateLimiter();
+        return limiter == null ? 0 : limiter.getTruncated();
+    }
+    public long getIterativeQueries() {
+        IterativeResolver resolver = server.getResolver();
+        return resolver == null ? 0 : resolver.getQueries();
+    }
+    public long getIterativeFailures() {
+        IterativeResolver resolver = server.getResolver();
+        return resolver == null ? 0 : resolver.getFailures();
+    }
+    public int getDelegationCacheEntries() {
+        IterativeResolver resolver = server.getResolver();
+        return resolver == null ? 0 : resolver.getDelegations().size();
+    }
+    public int getCacheEntries() {
+        return server.getCache().size();
+    }
+    public long getCacheBytes() {
+        return server.getCache().byteSize() + server.getNegativeCache().byteSize();
+    }
+    public int getNegativeCacheEntries() {
+        return server.getNegativeCache().size();
+    }
+    public long getDecodeErrors() {
+        return decodeErrors.sum();
+    }
+    public long getEncodeErrors() {
+        return encodeErrors.sum();
+    }
+    public long getServerFailures() {
+        return serverFailures.sum();
+    }
+    public long getUpstreamQueriesInFlight() {
+        return upstreamQueriesInFlight.sum();
+    }
+    public long getQueryLogDropped() {
+        return server.getQueryLog().getDropped();
+    }
+    public long getHitLatencyP50Micros() {
+        return hitLatency.percentile(0.5) / 1000;
+    }
+    public long getHitLatencyP99Micros() {
+        return hitLatency.percentile(0.99) / 1000;
+    }
+    public long getHitLatencyP999Micros() {
+        return hitLatency.percentile(0.999) / 1000;
+    }
+    public long getMissLatencyP50Micros() {
+        return missLatency.percentile(0.5) / 1000;
+    }
+    public long getMissLatencyP99Micros() {
+        return missLatency.percentile(0.99) / 1000;
+    }
+    public long getMissLatencyP999Micros() {
+        return missLatency.percentile(0.999) / 1000;
+    }
+
+    // Show the metrics and every upstream over JMX, named by the server's port so several servers can share a JVM
+    public synchronized void register() {
+        MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+        UpstreamPool.Upstream[] upstreams = server.getUpstreams().getUpstreams();
+        ObjectName[] names = new ObjectName[upstreams.length + 1];
+        try {
+            names[0] = new ObjectName("DNSResolver:type=Metrics,port=" + server.getClientPort());
+            beans.registerMBean(this, names[0]);
+            for (int i = 0; i < upstreams.length; i++) {
+                names[i + 1] = new ObjectName("DNSResolver:type=Upstream,port=" + server.getClientPort()
+                        + ",address=" + ObjectName.quote(upstreams[i].getName()));
+                beans.registerMBean(upstreams[i], names[i + 1]);
+            }
+            registered = names;
+        } catch (JMException e) {
+            System.out.println("Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    public synchronized void unregister() {
+        MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                if (name != null && beans.isRegistered(name)) {
+                    beans.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                System.out.println("Could not unregister " + name + ": " + e.getMessage());
+            }
+        }
+        registered = new ObjectName[0];
+    }
+
+    // Every metric as text, one 'name{labels} value' line each in the Prometheus exposition format, latencies in
+    // seconds
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        line(text, "dns_queries_total{transport=\"udp\"}", getUdpQueries());
+        line(text, "dns_queries_total{transport=\"tcp\"}", getTcpQueries());
+        line(text, "dns_queries_per_second", getQueriesPerSecond());
+        line(text, "dns_cache_hits_total", getCacheHits());
+        line(text, "dns_cache_misses_total", getCacheMisses());
+        line(text, "dns_cache_expired_total", getCacheExpired());
+        line(text, "dns_cache_hit_ratio", getCacheHitRatio());
+        line(text, "dns_cache_entries{cache=\"positive\"}", getCacheEntries());
+        line(text, "dns_cache_entries{cache=\"negative\"}", getNegativeCacheEntries());
+        line(text, "dns_cache_bytes", getCacheBytes());
+        line(text, "dns_local_answers_total", getLocalAnswers());
+        line(text, "dns_local_names", getLocalNames());
+        line(text, "dns_stale_answers_total", getStaleAnswers());
+        line(text, "dns_rate_limited_total{action=\"drop\"}", getRateLimitedDropped());
+        line(text, "dns_rate_limited_total{action=\"truncate\"}", getRateLimitedTruncated());
+        line(text, "dns_iterative_queries_total", getIterativeQueries());
+        line(text, "dns_iterative_failures_total", getIterativeFailures());
+        line(text, "dns_delegation_cache_entries", getDelegationCacheEntries());
+        line(text, "dns_decode_errors_total", getDecodeErrors());
+        line(text, "dns_encode_errors_total", getEncodeErrors());
+        line(text, "dns_server_failures_total", getServerFailures());
+        line(text, "dns_upstream_queries_in_flight", getUpstreamQueriesInFlight());
+        line(text, "dns_query_log_dropped_total", getQueryLogDropped());
+        histogram(text, "dns_latency_seconds", "path=\"hit\"", hitLatency);
+        histogram(text, "dns_latency_seconds", "path=\"miss\"", missLatency);
+        for (UpstreamPool.Upstream upstream : server.getUpstreams().getUpstreams()) {
+            String label = "upstream=\"" + upstream.getName() + "\"";
+            line(text, "dns_upstream_queries_total{" + label + "}", upstream.getQueries());
+            line(text, "dns_upstream_failures_total{" + label + "}", upstream.getTotalFailures());
+            line(text, "dns_upstream_ejected{" + label + "}", upstream.isEjected() ? 1 : 0);
+            histogram(text, "dns_upstream_rtt_seconds", label, upstream.getRtt());
+        }
+        return text.toString();
+    }
+
+    private static void histogram(StringBuilder text, String name, String labels, Histogram histogram) {
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            line(text, name + "{" + labels + ",quantile=\"" + quantile + "\"}", histogram.percentile(quantile) / 1e9);
+        }
+        line(text, name + "_count{" + labels + "}", histogram.getCount());
+        line(text, name + "_mean{" + labels + "}", histogram.getMean() / 1e9);
+    }
+
+    private static void line(StringBuilder text, String name, long value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder text, String name, double value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,36 @@
+package DNSResolver;
+
+// What Metrics shows over JMX, under DNSResolver:type=Metrics,port=<client port>.
+// Latencies are in microseconds, from a request arriving to its response being sent
+public interface MetricsMXBean {
+    long getQueries();
+    long getUdpQueries();
+    long getTcpQueries();
+    double getQueriesPerSecond();
+    long getCacheHits();
+    long getCacheMisses();
+    long getCacheExpired();
+    double getCacheHitRatio();
+    int getCacheEntries();
+    long getCacheBytes();
+    int getNegativeCacheEntries();
+    long getLocalAnswers();
+    int getLocalNames();
+    long getStaleAnswers();
+    long getRateLimitedDropped();
+    long getRateLimitedTruncated();
+    long getIterativeQueries();
+    long getIterativeFailures();
+    int getDelegationCacheEntries();
+    long getDecodeErrors();
+    long getEncodeErrors();
+    long getServerFailures();
+    long getUpstreamQueriesInFlight();
+    long getQueryLogDropped();
+    long getHitLatencyP50Micros();
+    long getHitLatencyP99Micros();
+    long getHitLatencyP999Micros();
+    long getMissLatencyP50Micros();
+    long getMissLatencyP99Micros();
+    long getMissLatencyP999Micros();
+}
@@ -0,0 +1,262 @@
+package DNSResolver;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+// A question that has been forwarded to Google and is still waiting on a reply.
+// The request is sent upstream under a rewritten transaction ID, so replies are matched back by that ID plus the
+// question. Clients asking the same question while it is in flight are added as waiters instead of sending another
+// query, and each is answered from the one reply with its own transaction ID restored.
+public class PendingQuery {
+    // Transaction ID the request was sent to Google with
+    private int upstreamId;
+
+    // The question Google is being asked to answer
+    private DNSQuestion question;
+
+    // Every client waiting on the answer, the first one being the client whose request was forwarded
+    private ArrayList<Waiter> waiters = new ArrayList<>(1);
+
+    // Time in milliseconds (System.nanoTime based) after which the query is given up on
+    private long deadline;
+
+    // The query as sent upstream, kept for retrying it on another upstream
+    private byte[] data;
+
+    // Every upstream the query has been sent to, in order
+    private ArrayList<Attempt> attempts = new ArrayList<>(2);
+
+    // Completed with the reply, for ThreadPerQueryWorker whose tasks block waiting on it
+    private CompletableFuture<DNSMessage> reply;
+
+    // The cache entry being refreshed, if this query was started by refresh ahead rather than a client
+    private CacheEntry refreshing;
+
+    // Other workers' queries for the same question, following this one rather than sending their own. Each is
+    // completed with the reply, or null if the query is given up on, once the query finishes (see ServerWorker)
+    private ArrayList<CompletableFuture<DNSMessage>> followers;
+    private boolean finished;
+
+    public PendingQuery(int upstreamId, DNSQuestion question, long deadline) {
+        this.upstreamId = upstreamId;
+        this.question = question;
+        this.deadline = deadline;
+    }
+
+    // Getters for Data
+    public int getUpstreamId() {
+        return upstreamId;
+    }
+    public DNSQuestion getQuestion() {
+        return question;
+    }
+    public ArrayList<Waiter> getWaiters() {
+        return waiters;
+    }
+    public long getDeadline() {
+        return deadline;
+    }
+    public CacheEntry getRefreshing() {
+        return refreshing;
+    }
+    public void setRefreshing(CacheEntry refreshing) {
+        this.refreshing = refreshing;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+    public CompletableFuture<DNSMessage> getReply() {
+        return reply;
+    }
+    public void setReply(CompletableFuture<DNSMessage> reply) {
+        this.reply = reply;
+    }
+
+    // Record that the query is being sent to an upstream. Attempts can be added and looked up from different threads
+    public synchronized Attempt addAttempt(UpstreamPool.Upstream upstream, long hedgeAt, long timeoutAt) {
+        Attempt attempt = new Attempt(this, upstream, hedgeAt, timeoutAt);
+        attempts.add(attempt);
+        return attempt;
+    }
+    public synchronized int attemptCount() {
+        return attempts.size();
+    }
+    public synchronized ArrayList<Attempt> getAttempts() {
+        return new ArrayList<>(attempts);
+    }
+    public synchronized Attempt lastAttempt() {
+        return attempts.get(attempts.size() - 1);
+    }
+
+    // The attempt sent to an upstream, null if the query was never sent there
+    public synchronized Attempt attemptTo(UpstreamPool.Upstream upstream) {
+        for (Attempt attempt : attempts) {
+            if (attempt.getUpstream() == upstream) {
+                return attempt;
+            }
+        }
+        return null;
+    }
+
+    public Waiter addWaiter(DNSMessage request, SocketAddress client, TcpConnection connection, ArrayList<DNSRecord> answers, long startNanos) {
+        Waiter waiter = new Waiter(this, request, client, connection, answers, startNanos);
+        waiters.add(waiter);
+        return waiter;
+    }
+
+    // Stop waiting for a client that has been answered some other way, e.g. from a stale cache entry.
+    // False if it wasn't waiting
+    public boolean removeWaiter(Waiter waiter) {
+        return waiters.remove(waiter);
+    }
+
+    // Have the follower completed when this query finishes. False if it already has, and the follower should ask
+    // the question itself
+    public synchronized boolean addFollower(CompletableFuture<DNSMessage> follower) {
+        if (finished) {
+            return false;
+        }
+        if (followers == null) {
+            followers = new ArrayList<>(1);
+        }
+        followers.add(follower);
+        return true;
+    }
+
+    // Mark the query finished, so no more followers can be added, and return the ones it has to complete
+    public synchronized ArrayList<CompletableFuture<DNSMessage>> finishFollowers() {
+        finished = true;
+        return followers == null ? new ArrayList<>(0) : followers;
+    }
+
+    // Whether a reply from Google belongs to this query: the ID has already matched, so check the question too
+    public boolean matches(DNSMessage reply) {
+        for (DNSQuestion replyQuestion : reply.getQuestions()) {
+            if (replyQuestion.equals(question)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A client request waiting on the answer
+    public static class Waiter {
+        // The query it is waiting on
+        private PendingQuery query;
+
+        // The original request from the client, still carrying the client's transaction ID
+        private DNSMessage request;
+
+        // Where the response has to be sent once Google answers
+        private SocketAddress client;
+
+        // The connection the request came in on, null if it came over UDP
+        private TcpConnection connection;
+
+        // Answers already found in the cache for the other questions in the request
+        private ArrayList<DNSRecord> answers;
+
+        // When the request arrived (System.nanoTime), for measuring how long it took to answer
+        private long startNanos;
+
+        Waiter(PendingQuery query, DNSMessage request, SocketAddress client, TcpConnection connection, ArrayList<DNSRecord> answers, long startNanos) {
+            this.query = query;
+            this.request = request;
+            this.client = client;
+            this.connection = connection;
+            this.answers = answers;
+            this.startNanos = startNanos;
+        }
+
+        public PendingQuery getQuery() {
+            return query;
+        }
+        public DNSMessage getRequest() {
+            return request;
+        }
+        public SocketAddress getClient() {
+            return client;
+        }
+        public TcpConnection getConnection() {
+            return connection;
+        }
+        public ArrayList<DNSRecord> getAnswers() {
+            return answers;
+        }
+        public long getStartNanos() {
+            return startNanos;
+        }
+    }
+
+    // The query sent to one upstream: when, when to hedge if there is no reply (0 for never) and when to give up on it.
+    // checkAt is the next of those a worker has to act on. A truncated reply moves the attempt over to TCP, possibly
+    // from another thread than the one waiting on it
+    public static class Attempt {
+        private PendingQuery query;
+        private UpstreamPool.Upstream upstream;
+        private long sentNanos;
+        private volatile long hedgeAt;
+        private volatile long timeoutAt;
+        private volatile long checkAt;
+        // Set once the upstream has replied, so the attempt's timeout isn't held against it as well
+        private volatile boolean replied;
+
+        Attempt(PendingQuery query, UpstreamPool.Upstream upstream, long hedgeAt, long timeoutAt) {
+            this.query = query;
+            this.upstream = upstream;
+            this.sentNanos = System.nanoTime();
+            this.hedgeAt = hedgeAt;
+            this.timeoutAt = timeoutAt;
+            this.checkAt = hedgeAt != 0 ? hedgeAt : timeoutAt;
+        }
+
+        public PendingQuery getQuery() {
+            return query;
+        }
+        public UpstreamPool.Upstream getUpstream() {
+            return upstream;
+        }
+        public long getSentNanos() {
+            return sentNanos;
+        }
+        public long getHedgeAt() {
+            return hedgeAt;
+        }
+        public long getTimeoutAt() {
+            return timeoutAt;
+        }
+        public long getCheckAt() {
+            return checkAt;
+        }
+
+        // Whether the next check is the hedge rather than the timeout
+        public boolean isHedgeDue() {
+            return checkAt == hedgeAt && hedgeAt != 0;
+        }
+
+        public boolean hasReplied() {
+            return replied;
+        }
+        void replied() {
+            replied = true;
+        }
+
+        // Move on from the hedge to the timeout
+        void hedged() {
+            checkAt = timeoutAt;
+        }
+
+        // The upstream answered, but truncated, and is being asked again over TCP. There is no hedge now that it has
+        // answered, and the timeout starts over, allowing for setting up the connection as well as the exchange
+        void retriedOverTcp(long attemptTimeoutMillis) {
+            hedgeAt = 0;
+            timeoutAt = System.nanoTime() / 1_000_000 + 2 * attemptTimeoutMillis;
+            checkAt = timeoutAt;
+        }
+    }
+}
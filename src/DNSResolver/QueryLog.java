@@ -0,0 +1,261 @@
+package DNSResolver;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// The query log: a line for each answered request, written by a thread of its own so serving never waits on it.
+// Serving threads put fixed size records (client, name, type, rcode, cache hit or miss, latency) into a ring of
+// preallocated slots, claiming a slot with a single compare and set. Nothing is formatted or allocated on the
+// serving thread; the record keeps references to the client address and name the request already has.
+// The writer thread takes records off the ring in order, formats them and writes them out in batches.
+// When the ring is full, because the writer can't keep up, records are dropped and counted rather than waited for.
+// Level QUERIES logs one request in sampleEvery, DEBUG also logs free text such as whole packets, and OFF nothing.
+// Lines look like:
+//   1697531234567 127.0.0.1:50506 udp www.example.com A NOERROR hit 65us
+// with the time in milliseconds since the epoch and the latency from the request arriving to the response leaving.
+// The ring is the bounded multi-producer queue of D. Vyukov: every slot has a sequence number saying whose turn it is,
+// so producers only contend on the claim, and the single consumer needs no atomic operations beyond reading it.
+public class QueryLog implements Runnable {
+    public enum Level { OFF, QUERIES, DEBUG }
+
+    // How long the writer sleeps when the ring is empty
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    // Most records written before the output is flushed
+    private static final int BATCH = 1024;
+
+    private Level level;
+    private int sampleEvery;
+    private Writer output;
+    private boolean toFile;
+    private volatile boolean running = true;
+    private Thread writer;
+
+    // The ring. A slot at index i holds sequence p when free for the producer claiming position p, and p + 1 once
+    // that producer has filled it in for the consumer
+    private int mask;
+    private AtomicLongArray sequences;
+    private AtomicLong claimed = new AtomicLong();
+    private long consumed = 0;
+
+    // The slots' fields, one array each. text is set for DEBUG lines, which have no other fields
+    private long[] times;
+    private SocketAddress[] clients;
+    private DomainName[] names;
+    private int[] types;
+    private int[] rCodes;
+    private long[] latencies;
+    private byte[] flags;
+    private String[] texts;
+
+    private static final byte HIT = 1;
+    private static final byte TCP = 2;
+
+    private LongAdder dropped = new LongAdder();
+
+    // Log to the file, appending, or to stdout if path is null. ringSize is rounded up to a power of two
+    public QueryLog(Level level, int sampleEvery, String path, int ringSize) throws IOException {
+        this.level = level;
+        this.sampleEvery = Math.max(1, sampleEvery);
+        toFile = path != null;
+        output = new BufferedWriter(new OutputStreamWriter(path == null ? System.out : new FileOutputStream(path, true),
+                StandardCharsets.UTF_8), 64 * 1024);
+        int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        times = new long[size];
+        clients = new SocketAddress[size];
+        names = new DomainName[size];
+        types = new int[size];
+        rCodes = new int[size];
+        latencies = new long[size];
+        flags = new byte[size];
+        texts = new String[size];
+    }
+
+    public boolean isDebug() {
+        return level == Level.DEBUG;
+    }
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // Start the writer thread
+    public void start() {
+        writer = new Thread(this, "dns-query-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Log an answered request, if it is sampled. question may be null for a request without one
+    public void query(SocketAddress client, DNSQuestion question, boolean tcp, int rCode, boolean hit, long latencyNanos) {
+        if (level == Level.OFF || sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return;
+        }
+        long position = claim();
+        if (position < 0) {
+            return;
+        }
+        int slot = (int) position & mask;
+        times[slot] = System.currentTimeMillis();
+        clients[slot] = client;
+        names[slot] = question == null ? null : question.getqName();
+        types[slot] = question == null ? 0 : question.getqType();
+        rCodes[slot] = rCode;
+        latencies[slot] = latencyNanos;
+        flags[slot] = (byte) ((hit ? HIT : 0) | (tcp ? TCP : 0));
+        texts[slot] = null;
+        sequences.lazySet(slot, position + 1);
+    }
+
+    // Log a line of free text at DEBUG level. Callers check isDebug() first, so the text isn't even built otherwise
+    public void debug(String text) {
+        if (level != Level.DEBUG) {
+            return;
+        }
+        long position = claim();
+        if (position < 0) {
+            return;
+        }
+        int slot = (int) position & mask;
+        times[slot] = System.currentTimeMillis();
+        texts[slot] = text;
+        sequences.lazySet(slot, position + 1);
+    }
+
+    // Claim the next free slot, or -1 (counting a drop) if the ring is full
+    private long claim() {
+        while (true) {
+            long position = claimed.get();
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (claimed.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (sequence < position) {
+                dropped.increment();
+                return -1;
+            }
+            // Otherwise another producer claimed this position first, try the next
+        }
+    }
+
+    // Writer thread: write out what is in the ring, sleeping while it is empty, until closed
+    public void run() {
+        StringBuilder line = new StringBuilder(256);
+        long lastDropped = 0;
+        while (true) {
+            int written = 0;
+            try {
+                while (written < BATCH && take(line)) {
+                    output.append(line);
+                    written++;
+                }
+                long drops = dropped.sum();
+                if (drops != lastDropped) {
+                    output.append("# ").append(String.valueOf(drops - lastDropped)).append(" records dropped, the log couldn't keep up\n");
+                    lastDropped = drops;
+                    output.flush();
+                } else if (written > 0) {
+                    output.flush();
+                }
+            } catch (IOException e) {
+                System.out.println("Query log failed: " + e.getMessage());
+            }
+            if (written == 0) {
+                if (!running) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    // Format the next record into line and free its slot, false if the ring is empty
+    private boolean take(StringBuilder line) {
+        int slot = (int) consumed & mask;
+        if (sequences.get(slot) != consumed + 1) {
+            return false;
+        }
+        line.setLength(0);
+        line.append(times[slot]).append(' ');
+        if (texts[slot] != null) {
+            line.append(texts[slot]);
+        } else {
+            appendAddress(line, clients[slot]);
+            line.append((flags[slot] & TCP) != 0 ? " tcp " : " udp ");
+            line.append(names[slot] == null ? "-" : names[slot].toString()).append(' ');
+            line.append(DNSRecord.typeName(types[slot])).append(' ');
+            line.append(rCodeName(rCodes[slot])).append(' ');
+            line.append((flags[slot] & HIT) != 0 ? "hit " : "miss ");
+            line.append(latencies[slot] / 1000).append("us");
+        }
+        line.append('\n');
+        clients[slot] = null;
+        names[slot] = null;
+        texts[slot] = null;
+        sequences.lazySet(slot, consumed + mask + 1);
+        consumed++;
+        return true;
+    }
+
+    private static void appendAddress(StringBuilder line, SocketAddress address) {
+        if (address instanceof InetSocketAddress) {
+            InetSocketAddress inet = (InetSocketAddress) address;
+            line.append(inet.getAddress() == null ? inet.getHostString() : inet.getAddress().getHostAddress())
+                    .append(':').append(inet.getPort());
+        } else {
+            line.append(address);
+        }
+    }
+
+    private static String rCodeName(int rCode) {
+        switch (rCode) {
+            case 0: return "NOERROR";
+            case 1: return "FORMERR";
+            case 2: return "SERVFAIL";
+            case 3: return "NXDOMAIN";
+            case 4: return "NOTIMP";
+            case 5: return "REFUSED";
+            default: return "RCODE" + rCode;
+        }
+    }
+
+    // Stop the writer once it has written everything logged so far
+    public void close() {
+        running = false;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (toFile) {
+                output.close();
+            } else {
+                // Leave stdout open for the rest of the program
+                output.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Query log failed: " + e.getMessage());
+        }
+    }
+}
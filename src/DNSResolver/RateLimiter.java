@@ -0,0 +1,170 @@
+package DNSResolver;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Response rate limiting over UDP: every client network (an IPv4 /24 or IPv6 /56 by default) gets a token bucket of
+// burst requests, refilled at perSecond, and requests beyond it are dropped or answered with an empty truncated
+// reply, so one client flooding the server, or a flood spoofing a victim's address, can't take all of the workers'
+// time and the upstreams' capacity from everyone else. Checked on each datagram before it is even copied out of the
+// receive buffer. TCP isn't limited, a TCP client can't spoof its address.
+// The buckets live in one fixed size table of longs, two slots per hash bucket, each slot a tag from the network's
+// hash and the bucket's state. Each bucket is kept as its theoretical arrival time (the generic cell rate algorithm,
+// equivalent to a token bucket): when the bucket would be full again, moved on by 1/perSecond for every request let
+// through, and a request is let through if that is no more than burst requests' worth ahead of now. Checking is a
+// hash, one or two reads and a compare and set, with no locks and nothing allocated for IPv4 clients.
+// Networks hashing to the same bucket pair push out the one whose bucket is fullest, which at worst gives a client a
+// fresh bucket early; the table is sized so that takes a flood from more networks than it has slots.
+public class RateLimiter {
+    // What to do with a request over the limit: drop it, answer it truncated so a real client retries over TCP, or
+    // truncate one in slip and drop the rest, so a spoofed victim gets little traffic but real clients still get by
+    public enum Action { DROP, TRUNCATE, SLIP }
+
+    // What check() says to do with a request
+    public static final int ALLOW = 0;
+    public static final int DROP = 1;
+    public static final int TRUNCATE = 2;
+
+    private static final int TAG_SHIFT = 48;
+    private static final long TIME_MASK = (1L << TAG_SHIFT) - 1;
+
+    private AtomicLongArray slots;
+    private long intervalMicros;
+    private long toleranceMicros;
+    private Action action;
+    private int slip;
+    private long ipv4Mask;
+    private long ipv6Mask;
+
+    private LongAdder dropped = new LongAdder();
+    private LongAdder truncated = new LongAdder();
+
+    // tableSize is rounded up to a power of two. Prefix lengths are up to 32 for IPv4 and 64 for IPv6
+    public RateLimiter(int perSecond, int burst, Action action, int slip, int ipv4PrefixLength, int ipv6PrefixLength, int tableSize) {
+        slots = new AtomicLongArray(Math.max(2, Integer.highestOneBit(Math.max(1, tableSize - 1)) << 1));
+        intervalMicros = 1_000_000 / Math.max(1, perSecond);
+        toleranceMicros = intervalMicros * (Math.max(1, burst) - 1);
+        this.action = action;
+        this.slip = Math.max(1, slip);
+        ipv4Mask = ipv4PrefixLength <= 0 ? 0 : -1L << (32 - Math.min(32, ipv4PrefixLength));
+        ipv6Mask = ipv6PrefixLength <= 0 ? 0 : -1L << (64 - Math.min(64, ipv6PrefixLength));
+    }
+
+    public RateLimiter(ServerConfig config) {
+        this(config.getRateLimitPerSecond(), config.getRateLimitBurst(), config.getRateLimitAction(), config.getRateLimitSlip(),
+                config.getRateLimitIpv4Prefix(), config.getRateLimitIpv6Prefix(), config.getRateLimitTableSize());
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+    public long getTruncated() {
+        return truncated.sum();
+    }
+
+    // Take a token for a request from the client: ALLOW, or DROP or TRUNCATE if its network is over the limit
+    public int check(SocketAddress client) {
+        return check(client, Clock.millis() * 1000);
+    }
+
+    // The same at a given time in microseconds on the Clock, for tests
+    int check(SocketAddress client, long now) {
+        if (!(client instanceof InetSocketAddress)) {
+            return ALLOW;
+        }
+        long hash = mix(networkOf(((InetSocketAddress) client).getAddress()));
+        // Never 0, so an empty slot matches no network
+        long tag = (hash >>> TAG_SHIFT) | 1;
+        int first = (int) hash & (slots.length() - 2);
+        while (true) {
+            int slot = first;
+            long state = slots.get(first);
+            if (state >>> TAG_SHIFT != tag) {
+                long other = slots.get(first + 1);
+                // The network's other slot, or if it has neither, the slot whose bucket is fuller to take over
+                if (other >>> TAG_SHIFT == tag || (other & TIME_MASK) < (state & TIME_MASK)) {
+                    slot = first + 1;
+                    state = other;
+                }
+            }
+            long full = state >>> TAG_SHIFT == tag ? Math.max(state & TIME_MASK, now) : now;
+            if (full - now > toleranceMicros) {
+                return limited();
+            }
+            if (slots.compareAndSet(slot, state, tag << TAG_SHIFT | (full + intervalMicros))) {
+                return ALLOW;
+            }
+        }
+    }
+
+    private int limited() {
+        if (action == Action.DROP || (action == Action.SLIP && ThreadLocalRandom.current().nextInt(slip) != 0)) {
+            dropped.increment();
+            return DROP;
+        }
+        truncated.increment();
+        return TRUNCATE;
+    }
+
+    // The address masked to its network, IPv4 and IPv6 kept apart. Inet4Address's hash code is its address
+    private long networkOf(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            return (address.hashCode() & 0xFFFFFFFFL & ipv4Mask) | 1L << 32;
+        }
+        byte[] bytes = address.getAddress();
+        long high = 0;
+        for (int i = 0; i < 8; i++) {
+            high = high << 8 | (bytes[i] & 0xff);
+        }
+        return (high & ipv6Mask) ^ 0x9E3779B97F4A7C15L;
+    }
+
+    // Spread the bits of a network over the whole long (the finalizer of MurmurHash3)
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    // Write the truncated reply to a request just received into request (from 0 to its position) into output, ready
+    // to send: the request's header and question with QR and TC set and no records, no larger than the request, so
+    // it can't amplify a spoofed flood. Returns false, writing nothing, for anything but a well formed single question
+    static boolean writeTruncated(ByteBuffer request, ByteBuffer output) {
+        int length = request.position();
+        if (length < 12 || (request.get(2) & 0x80) != 0 || request.getShort(4) != 1) {
+            return false;
+        }
+        int position = 12;
+        while (position < length && request.get(position) != 0) {
+            int labelLength = request.get(position) & 0xff;
+            if (labelLength > 63) {
+                return false;
+            }
+            position += labelLength + 1;
+        }
+        // The root label, type and class
+        position += 5;
+        if (position > length || position > output.capacity()) {
+            return false;
+        }
+        output.clear();
+        output.put(0, request, 0, position);
+        // QR and TC set, the opcode and RD kept, RA set and the response code NOERROR
+        output.put(2, (byte) (request.get(2) & 0x79 | 0x82));
+        output.put(3, (byte) 0x80);
+        for (int i = 6; i < 12; i++) {
+            output.put(i, (byte) 0);
+        }
+        output.limit(position);
+        return true;
+    }
+}
@@ -0,0 +1,482 @@
+package DNSResolver;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Settings for a DNSServer. Defaults match the original server: port 8053, forwarding to Google at 8.8.8.8
+// Setters return the config so settings can be chained, e.g. new ServerConfig().setClientPort(9053).setTimeoutMillis(500)
+public class ServerConfig {
+    // How requests are served: by event loops (ServerWorker), or by a thread per request (ThreadPerQueryWorker),
+    // virtual threads where the JVM has them
+    public enum Mode { EVENT_LOOP, THREAD_PER_QUERY }
+
+    // Port clients send requests to
+    private int clientPort = 8053;
+
+    // Where cache misses are forwarded, and how long to wait for a reply before sending Server Failure
+    private List<InetSocketAddress> upstreams = Collections.singletonList(new InetSocketAddress("8.8.8.8", 53));
+    private long timeoutMillis = 2000;
+
+    // How long one upstream gets before the query is retried on another, and how many upstreams are tried at most
+    private long attemptTimeoutMillis = 700;
+    private int maxAttempts = 3;
+
+    // Hedging: if the upstream hasn't answered within the hedgePercentile of its recent RTTs, the query is also sent
+    // to a second upstream and whichever answers first wins
+    private boolean hedging = false;
+    private double hedgePercentile = 0.95;
+
+    // An upstream failing this many queries in a row is ejected for ejectMillis, then rechecked (see UpstreamPool)
+    private int ejectAfterFailures = 3;
+    private long ejectMillis = 5000;
+
+    private Mode mode = Mode.EVENT_LOOP;
+
+    // Most requests handled at once in THREAD_PER_QUERY mode, more than that are dropped
+    private int maxQueriesInFlight = 10_000;
+
+    // Event loops serving clients, each with its own socket on the client port (see ServerWorker)
+    private int workerCount = Runtime.getRuntime().availableProcessors();
+
+    // Largest UDP payload taken from clients and upstreams, advertised to both with EDNS (RFC 6891). 1232 bytes fits
+    // in one packet on practically every path without fragmenting. Client requests are received into, and replies
+    // written into, buffers this size. Clients without EDNS still get at most 512 bytes over UDP
+    private int udpPayloadSize = 1232;
+
+    // Clients can also connect over TCP on the client port. Connections idle for tcpIdleMillis are closed, and each
+    // worker accepts at most maxTcpConnections at once
+    private long tcpIdleMillis = 10_000;
+    private int maxTcpConnections = 1000;
+
+    // Most requests read per wakeup before their replies are sent
+    private int batchSize = 32;
+
+    // Cache limits, see DNSCache
+    private int cacheMaxEntries = 100_000;
+    private long cacheMaxBytes = 64L * 1024 * 1024;
+    private int cacheShards = 16;
+
+    // Separate limits for negative answers, which are also never kept longer than negativeMaxTtl seconds
+    // (RFC 2308 suggests 1 to 3 hours)
+    private int negativeCacheMaxEntries = 20_000;
+    private long negativeCacheMaxBytes = 16L * 1024 * 1024;
+    private int negativeMaxTtl = 3 * 60 * 60;
+
+    // Refresh ahead: an entry hit at least refreshMinHits times is fetched again in the background once
+    // refreshFraction of its TTL has passed, so popular names never expire out of the cache.
+    // At most maxConcurrentRefreshes are in flight, and at most refreshesPerSecond are started each second
+    private int refreshMinHits = 5;
+    private double refreshFraction = 0.8;
+    private int maxConcurrentRefreshes = 32;
+    private int refreshesPerSecond = 100;
+
+    // Serve stale (RFC 8767): expired entries are kept for serveStaleMillis more, 0 for not at all. A request whose
+    // answer has expired is forwarded as usual, but if no reply has come clientResponseMillis after it arrived, or the
+    // upstreams fail, it is answered from the expired entry with its TTLs set to staleAnswerTtl seconds, and the
+    // query goes on in the background to refresh the cache. The RFC suggests a window of 1 to 3 days, 30 second TTLs
+    // and a 1.8 second client response timer
+    private long serveStaleMillis = 24 * 60 * 60 * 1000L;
+    private int staleAnswerTtl = 30;
+    private long clientResponseMillis = 1800;
+
+    // Cache snapshot, see CacheSnapshot: where the caches are saved, null for nowhere, and how often. The snapshot is
+    // loaded in the background on startup and saved once more when the server stops
+    private String snapshotPath = null;
+    private long snapshotIntervalMillis = 60_000;
+
+    // Localhost port Metrics are served on as text (see StatsServer), 0 for none. They are also always on JMX
+    private int statsPort = 0;
+
+    // Query log, see QueryLog: what is logged, one request in how many, where (null for stdout), and how many
+    // records can wait for the writer before more are dropped
+    private QueryLog.Level queryLogLevel = QueryLog.Level.QUERIES;
+    private int queryLogSampleEvery = 1;
+    private String queryLogPath = null;
+    private int queryLogRingSize = 65536;
+
+    // Names answered locally, see LocalZones: zone files, hosts files and block lists, or one compiled image, and how
+    // often they are checked for changes to load again. Empty for none
+    private List<String> localZoneFiles = Collections.emptyList();
+    private long localZoneCheckMillis = 10_000;
+
+    // Rate limiting of UDP requests, see RateLimiter: requests a second each client network may send, 0 for no
+    // limit, and how many at once; what happens to the rest, and for SLIP, one in how many is truncated; how long
+    // the IPv4 and IPv6 network prefixes are, and how many networks are tracked
+    private int rateLimitPerSecond = 0;
+    private int rateLimitBurst = 100;
+    private RateLimiter.Action rateLimitAction = RateLimiter.Action.SLIP;
+    private int rateLimitSlip = 2;
+    private int rateLimitIpv4Prefix = 24;
+    private int rateLimitIpv6Prefix = 56;
+    private int rateLimitTableSize = 65536;
+
+    // Iterative resolution, see IterativeResolver: misses are resolved from the root servers instead of forwarded to
+    // the upstreams. The root servers to start from, the port every name server is asked on, how many zones and
+    // name servers the delegation cache holds, and how many lookups can run at once
+    private boolean iterative = false;
+    private List<InetSocketAddress> rootHints = IterativeResolver.ROOT_HINTS;
+    private int nameServerPort = 53;
+    private int delegationCacheMaxEntries = 10_000;
+    private int resolverThreads = 64;
+
+    // Getters and Setters for Data
+    public int getClientPort() {
+        return clientPort;
+    }
+    public ServerConfig setClientPort(int clientPort) {
+        this.clientPort = clientPort;
+        return this;
+    }
+    public List<InetSocketAddress> getUpstreams() {
+        return upstreams;
+    }
+    public ServerConfig setUpstreams(List<InetSocketAddress> upstreams) {
+        this.upstreams = upstreams;
+        return this;
+    }
+    public ServerConfig setUpstreams(InetSocketAddress... upstreams) {
+        return setUpstreams(Arrays.asList(upstreams));
+    }
+    // A single upstream, as the original server had
+    public ServerConfig setUpstream(InetSocketAddress upstream) {
+        return setUpstreams(Collections.singletonList(upstream));
+    }
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+    public ServerConfig setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+    public long getAttemptTimeoutMillis() {
+        return attemptTimeoutMillis;
+    }
+    public ServerConfig setAttemptTimeoutMillis(long attemptTimeoutMillis) {
+        this.attemptTimeoutMillis = attemptTimeoutMillis;
+        return this;
+    }
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+    public ServerConfig setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+    public boolean isHedging() {
+        return hedging;
+    }
+    public ServerConfig setHedging(boolean hedging) {
+        this.hedging = hedging;
+        return this;
+    }
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+    public ServerConfig setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+        return this;
+    }
+    public int getEjectAfterFailures() {
+        return ejectAfterFailures;
+    }
+    public ServerConfig setEjectAfterFailures(int ejectAfterFailures) {
+        this.ejectAfterFailures = ejectAfterFailures;
+        return this;
+    }
+    public long getEjectMillis() {
+        return ejectMillis;
+    }
+    public ServerConfig setEjectMillis(long ejectMillis) {
+        this.ejectMillis = ejectMillis;
+        return this;
+    }
+    public Mode getMode() {
+        return mode;
+    }
+    public ServerConfig setMode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+    public int getMaxQueriesInFlight() {
+        return maxQueriesInFlight;
+    }
+    public ServerConfig setMaxQueriesInFlight(int maxQueriesInFlight) {
+        this.maxQueriesInFlight = maxQueriesInFlight;
+        return this;
+    }
+    public int getWorkerCount() {
+        return workerCount;
+    }
+    public ServerConfig setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+        return this;
+    }
+    public int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+    public ServerConfig setUdpPayloadSize(int udpPayloadSize) {
+        this.udpPayloadSize = udpPayloadSize;
+        return this;
+    }
+    public long getTcpIdleMillis() {
+        return tcpIdleMillis;
+    }
+    public ServerConfig setTcpIdleMillis(long tcpIdleMillis) {
+        this.tcpIdleMillis = tcpIdleMillis;
+        return this;
+    }
+    public int getMaxTcpConnections() {
+        return maxTcpConnections;
+    }
+    public ServerConfig setMaxTcpConnections(int maxTcpConnections) {
+        this.maxTcpConnections = maxTcpConnections;
+        return this;
+    }
+    public int getBatchSize() {
+        return batchSize;
+    }
+    public ServerConfig setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+    public int getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+    public ServerConfig setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+        return this;
+    }
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+    public ServerConfig setCacheMaxBytes(long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+        return this;
+    }
+    public int getCacheShards() {
+        return cacheShards;
+    }
+    public ServerConfig setCacheShards(int cacheShards) {
+        this.cacheShards = cacheShards;
+        return this;
+    }
+    public int getNegativeCacheMaxEntries() {
+        return negativeCacheMaxEntries;
+    }
+    public ServerConfig setNegativeCacheMaxEntries(int negativeCacheMaxEntries) {
+        this.negativeCacheMaxEntries = negativeCacheMaxEntries;
+        return this;
+    }
+    public long getNegativeCacheMaxBytes() {
+        return negativeCacheMaxBytes;
+    }
+    public ServerConfig setNegativeCacheMaxBytes(long negativeCacheMaxBytes) {
+        this.negativeCacheMaxBytes = negativeCacheMaxBytes;
+        return this;
+    }
+    public int getNegativeMaxTtl() {
+        return negativeMaxTtl;
+    }
+    public ServerConfig setNegativeMaxTtl(int negativeMaxTtl) {
+        this.negativeMaxTtl = negativeMaxTtl;
+        return this;
+    }
+    public int getRefreshMinHits() {
+        return refreshMinHits;
+    }
+    public ServerConfig setRefreshMinHits(int refreshMinHits) {
+        this.refreshMinHits = refreshMinHits;
+        return this;
+    }
+    public double getRefreshFraction() {
+        return refreshFraction;
+    }
+    public ServerConfig setRefreshFraction(double refreshFraction) {
+        this.refreshFraction = refreshFraction;
+        return this;
+    }
+    public int getMaxConcurrentRefreshes() {
+        return maxConcurrentRefreshes;
+    }
+    public ServerConfig setMaxConcurrentRefreshes(int maxConcurrentRefreshes) {
+        this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+        return this;
+    }
+    public int getRefreshesPerSecond() {
+        return refreshesPerSecond;
+    }
+    public ServerConfig setRefreshesPerSecond(int refreshesPerSecond) {
+        this.refreshesPerSecond = refreshesPerSecond;
+        return this;
+    }
+    public long getServeStaleMillis() {
+        return serveStaleMillis;
+    }
+    public ServerConfig setServeStaleMillis(long serveStaleMillis) {
+        this.serveStaleMillis = serveStaleMillis;
+        return this;
+    }
+    public int getStaleAnswerTtl() {
+        return staleAnswerTtl;
+    }
+    public ServerConfig setStaleAnswerTtl(int staleAnswerTtl) {
+        this.staleAnswerTtl = staleAnswerTtl;
+        return this;
+    }
+    public long getClientResponseMillis() {
+        return clientResponseMillis;
+    }
+    public ServerConfig setClientResponseMillis(long clientResponseMillis) {
+        this.clientResponseMillis = clientResponseMillis;
+        return this;
+    }
+    public String getSnapshotPath() {
+        return snapshotPath;
+    }
+    public ServerConfig setSnapshotPath(String snapshotPath) {
+        this.snapshotPath = snapshotPath;
+        return this;
+    }
+    public long getSnapshotIntervalMillis() {
+        return snapshotIntervalMillis;
+    }
+    public ServerConfig setSnapshotIntervalMillis(long snapshotIntervalMillis) {
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        return this;
+    }
+    public int getStatsPort() {
+        return statsPort;
+    }
+    public ServerConfig setStatsPort(int statsPort) {
+        this.statsPort = statsPort;
+        return this;
+    }
+    public QueryLog.Level getQueryLogLevel() {
+        return queryLogLevel;
+    }
+    public ServerConfig setQueryLogLevel(QueryLog.Level queryLogLevel) {
+        this.queryLogLevel = queryLogLevel;
+        return this;
+    }
+    public int getQueryLogSampleEvery() {
+        return queryLogSampleEvery;
+    }
+    public ServerConfig setQueryLogSampleEvery(int queryLogSampleEvery) {
+        this.queryLogSampleEvery = queryLogSampleEvery;
+        return this;
+    }
+    public String getQueryLogPath() {
+        return queryLogPath;
+    }
+    public ServerConfig setQueryLogPath(String queryLogPath) {
+        this.queryLogPath = queryLogPath;
+        return this;
+    }
+    public int getQueryLogRingSize() {
+        return queryLogRingSize;
+    }
+    public ServerConfig setQueryLogRingSize(int queryLogRingSize) {
+        this.queryLogRingSize = queryLogRingSize;
+        return this;
+    }
+    public List<String> getLocalZoneFiles() {
+        return localZoneFiles;
+    }
+    public ServerConfig setLocalZoneFiles(List<String> localZoneFiles) {
+        this.localZoneFiles = localZoneFiles;
+        return this;
+    }
+    public long getLocalZoneCheckMillis() {
+        return localZoneCheckMillis;
+    }
+    public ServerConfig setLocalZoneCheckMillis(long localZoneCheckMillis) {
+        this.localZoneCheckMillis = localZoneCheckMillis;
+        return this;
+    }
+    public int getRateLimitPerSecond() {
+        return rateLimitPerSecond;
+    }
+    public ServerConfig setRateLimitPerSecond(int rateLimitPerSecond) {
+        this.rateLimitPerSecond = rateLimitPerSecond;
+        return this;
+    }
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+    public ServerConfig setRateLimitBurst(int rateLimitBurst) {
+        this.rateLimitBurst = rateLimitBurst;
+        return this;
+    }
+    public RateLimiter.Action getRateLimitAction() {
+        return rateLimitAction;
+    }
+    public ServerConfig setRateLimitAction(RateLimiter.Action rateLimitAction) {
+        this.rateLimitAction = rateLimitAction;
+        return this;
+    }
+    public int getRateLimitSlip() {
+        return rateLimitSlip;
+    }
+    public ServerConfig setRateLimitSlip(int rateLimitSlip) {
+        this.rateLimitSlip = rateLimitSlip;
+        return this;
+    }
+    public int getRateLimitIpv4Prefix() {
+        return rateLimitIpv4Prefix;
+    }
+    public ServerConfig setRateLimitIpv4Prefix(int rateLimitIpv4Prefix) {
+        this.rateLimitIpv4Prefix = rateLimitIpv4Prefix;
+        return this;
+    }
+    public int getRateLimitIpv6Prefix() {
+        return rateLimitIpv6Prefix;
+    }
+    public ServerConfig setRateLimitIpv6Prefix(int rateLimitIpv6Prefix) {
+        this.rateLimitIpv6Prefix = rateLimitIpv6Prefix;
+        return this;
+    }
+    public boolean isIterative() {
+        return iterative;
+    }
+    public ServerConfig setIterative(boolean iterative) {
+        this.iterative = iterative;
+        return this;
+    }
+    public List<InetSocketAddress> getRootHints() {
+        return rootHints;
+    }
+    public ServerConfig setRootHints(List<InetSocketAddress> rootHints) {
+        this.rootHints = rootHints;
+        return this;
+    }
+    public int getNameServerPort() {
+        return nameServerPort;
+    }
+    public ServerConfig setNameServerPort(int nameServerPort) {
+        this.nameServerPort = nameServerPort;
+        return this;
+    }
+    public int getDelegationCacheMaxEntries() {
+        return delegationCacheMaxEntries;
+    }
+    public ServerConfig setDelegationCacheMaxEntries(int delegationCacheMaxEntries) {
+        this.delegationCacheMaxEntries = delegationCacheMaxEntries;
+        return this;
+    }
+    public int getResolverThreads() {
+        return resolverThreads;
+    }
+    public ServerConfig setResolverThreads(int resolverThreads) {
+        this.resolverThreads = resolverThreads;
+        return this;
+    }
+    public int getRateLimitTableSize() {
+        return rateLimitTableSize;
+    }
+    public ServerConfig setRateLimitTableSize(int rateLimitTableSize) {
+        this.rateLimitTableSize = rateLimitTableSize;
+        return this;
+    }
+}
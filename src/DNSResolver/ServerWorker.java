@@ -0,0 +1,824 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One event loop of a DNSServer, normally one per core.
+// Each worker has its own client socket, bound to the server's port with SO_REUSEPORT so the kernel spreads clients
+// across the workers, and its own socket to Google. Everything a worker keeps about requests in flight is its own;
+// only the caches and the upstream pool are shared with the other workers, and the questions being asked upstream,
+// so a worker missing on a question another worker is already asking waits on that worker's reply.
+// Requests are read in batches of up to batchSize per wakeup into a reused direct buffer, and the replies to a batch
+// are queued in reused direct buffers and sent together once the batch has been handled.
+// The same port also takes clients over TCP (RFC 7766), whose connections are served by the same event loop.
+public class ServerWorker implements Worker {
+    private DNSServer server;
+    private ServerConfig config;
+    private DatagramChannel clientChannel;
+    private DatagramChannel googleChannel;
+    private ServerSocketChannel tcpChannel;
+    private Selector selector;
+    private volatile boolean isRunning = true;
+    private UpstreamPool upstreams;
+    private Metrics metrics;
+    private QueryLog log;
+    // Null if there is no rate limit
+    private RateLimiter rateLimiter;
+    // Null unless resolving iteratively. Its lookups block, so they run on its own threads and the queries they
+    // finish are queued here for the event loop
+    private IterativeResolver resolver;
+    private ConcurrentLinkedQueue<PendingQuery> resolved = new ConcurrentLinkedQueue<>();
+    private long timeoutMillis;
+
+    // Requests waiting on Google, keyed by the transaction ID they were forwarded with
+    private HashMap<Integer, PendingQuery> pending = new HashMap<>();
+
+    // The same requests keyed by question, so a question already being asked is not forwarded again, along with the
+    // queries following another worker's
+    private HashMap<DNSQuestion, PendingQuery> inFlight = new HashMap<>();
+
+    // Every worker's queries by question, shared. Queries following another worker's are handed back here once it
+    // completes them
+    private ConcurrentHashMap<DNSQuestion, PendingQuery> sharedInFlight;
+    private ConcurrentLinkedQueue<PendingQuery> followed = new ConcurrentLinkedQueue<>();
+
+    // The same requests in the order they were forwarded. Every request gets the same timeout,
+    // so the oldest one is always the first to expire
+    private ArrayDeque<PendingQuery> timeouts = new ArrayDeque<>();
+
+    // Every attempt sent upstream, by when it next needs looking at: to hedge, or to retry on another upstream.
+    // Attempts of queries that have since finished are dropped as they come up
+    private PriorityQueue<PendingQuery.Attempt> attempts = new PriorityQueue<>(Comparator.comparingLong(PendingQuery.Attempt::getCheckAt));
+
+    // Waiters whose answer has expired but can be served stale, in the order they arrived. Each has the same client
+    // response time, so the oldest is always the first due to be answered from the stale entry
+    private ArrayDeque<PendingQuery.Waiter> clientTimers = new ArrayDeque<>();
+
+    private Random idGenerator = new Random();
+
+    // Reused for every datagram received, and for every reply from Google, which can be as large as UDP allows
+    private ByteBuffer receiveBuffer;
+    private ByteBuffer upstreamBuffer = ByteBuffer.allocateDirect(TcpConnection.MAX_MESSAGE);
+
+    // Cached responses for TCP clients are written here, since they can be larger than the reply buffers
+    private ByteBuffer tcpBuffer = ByteBuffer.allocate(TcpConnection.MAX_MESSAGE);
+
+    // Kept-alive TCP connections to the upstreams, for replies Google truncated over UDP. Their replies are read on
+    // threads of their own and queued here for the event loop
+    private HashMap<UpstreamPool.Upstream, TcpUpstream> tcpUpstreams = new HashMap<>();
+    private ConcurrentLinkedQueue<Map.Entry<UpstreamPool.Upstream, byte[]>> tcpReplies = new ConcurrentLinkedQueue<>();
+
+    // Clients connected over TCP, and when idle ones were last looked for
+    private int tcpConnections = 0;
+    private long lastIdleCheck = 0;
+
+    // Replies waiting to be sent, flushed once the current batch of requests has been handled
+    private ByteBuffer[] replies;
+    private SocketAddress[] replyAddresses;
+    private int replyCount = 0;
+
+    public ServerWorker(DNSServer server, ServerConfig config, boolean reusePort) throws IOException {
+        this.server = server;
+        this.config = config;
+        this.upstreams = server.getUpstreams();
+        this.metrics = server.getMetrics();
+        this.log = server.getQueryLog();
+        this.rateLimiter = server.getRateLimiter();
+        this.resolver = server.getResolver();
+        this.sharedInFlight = server.getInFlight();
+        this.timeoutMillis = config.getTimeoutMillis();
+        receiveBuffer = ByteBuffer.allocateDirect(config.getUdpPayloadSize());
+        replies = new ByteBuffer[config.getBatchSize()];
+        replyAddresses = new SocketAddress[config.getBatchSize()];
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = ByteBuffer.allocateDirect(config.getUdpPayloadSize());
+        }
+        selector = Selector.open();
+        clientChannel = DatagramChannel.open();
+        if (reusePort) {
+            clientChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        clientChannel.bind(new InetSocketAddress(config.getClientPort()));
+        clientChannel.configureBlocking(false);
+        clientChannel.register(selector, SelectionKey.OP_READ);
+        // Google replies to whatever port we send from, so there is no need to bind a fixed one
+        googleChannel = DatagramChannel.open();
+        googleChannel.bind(null);
+        googleChannel.configureBlocking(false);
+        googleChannel.register(selector, SelectionKey.OP_READ);
+        // Clients can connect over TCP on the same port, e.g. after a truncated UDP response
+        tcpChannel = ServerSocketChannel.open();
+        if (reusePort) {
+            tcpChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        tcpChannel.bind(new InetSocketAddress(config.getClientPort()));
+        tcpChannel.configureBlocking(false);
+        tcpChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    // Worker running driver
+    public void run() {
+        while (isRunning) {
+            try {
+                selector.select(nextTimeout());
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.channel() == clientChannel) {
+                        receiveFromClients();
+                    } else if (key.channel() == googleChannel) {
+                        receiveFromGoogle();
+                    } else if (key.channel() == tcpChannel) {
+                        acceptTcp();
+                    } else {
+                        serveTcp(key);
+                    }
+                }
+                receiveFromTcpUpstreams();
+                receiveResolved();
+                receiveFollowed();
+                closeIdleConnections();
+                checkAttempts();
+                expireClientTimers();
+                expireTimeouts();
+                flushReplies();
+            } catch (IOException e) {
+                System.out.println("IO Exception: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof TcpConnection) {
+                    ((TcpConnection) key.attachment()).close();
+                }
+            }
+            for (TcpUpstream tcpUpstream : tcpUpstreams.values()) {
+                tcpUpstream.close();
+            }
+            selector.close();
+            clientChannel.close();
+            googleChannel.close();
+            tcpChannel.close();
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+    }
+
+    // Stop the worker from another thread, run() returns once the current loop finishes
+    public void stop() {
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    // Handle up to a batch of requests, then send their replies. Anything left over is picked up on the next select
+    private void receiveFromClients() throws IOException {
+        for (int i = 0; i < replies.length; i++) {
+            receiveBuffer.clear();
+            SocketAddress client = clientChannel.receive(receiveBuffer);
+            if (client == null) {
+                break;
+            }
+            if (rateLimiter != null) {
+                int verdict = rateLimiter.check(client);
+                if (verdict == RateLimiter.TRUNCATE && RateLimiter.writeTruncated(receiveBuffer, nextReply())) {
+                    queueReply(client);
+                }
+                if (verdict != RateLimiter.ALLOW) {
+                    continue;
+                }
+            }
+            try {
+                handleRequest(packetBytes(receiveBuffer), client, null);
+            } catch (IOException | RuntimeException e) {
+                if (log.isDebug()) {
+                    log.debug("Bad request from " + client + ": " + e.getMessage());
+                }
+            }
+        }
+        flushReplies();
+    }
+
+    // Accept the clients waiting to connect over TCP, up to maxTcpConnections
+    private void acceptTcp() throws IOException {
+        SocketChannel channel;
+        while ((channel = tcpChannel.accept()) != null) {
+            if (tcpConnections >= config.getMaxTcpConnections()) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            TcpConnection connection = new TcpConnection(channel);
+            connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            tcpConnections++;
+        }
+    }
+
+    // Handle every request that has arrived on a client's TCP connection, and send queued responses it has room for
+    private void serveTcp(SelectionKey key) {
+        TcpConnection connection = (TcpConnection) key.attachment();
+        try {
+            if (key.isWritable()) {
+                connection.flush();
+            }
+            if (key.isReadable()) {
+                for (byte[] data : connection.read()) {
+                    try {
+                        handleRequest(data, connection.getRemote(), connection);
+                    } catch (IOException | RuntimeException e) {
+                        if (log.isDebug()) {
+                            log.debug("Bad request from " + connection.getRemote() + ": " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Closed by the client
+            closeConnection(connection);
+        }
+    }
+
+    private void closeConnection(TcpConnection connection) {
+        if (connection.isOpen()) {
+            connection.close();
+            tcpConnections--;
+        }
+    }
+
+    // Close client connections with nothing sent either way for tcpIdleMillis (RFC 7766 lets servers do this),
+    // looking at most once a second
+    private void closeIdleConnections() {
+        long now = System.nanoTime() / 1_000_000;
+        if (tcpConnections == 0 || now - lastIdleCheck < 1000) {
+            return;
+        }
+        lastIdleCheck = now;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof TcpConnection) {
+                TcpConnection connection = (TcpConnection) key.attachment();
+                if (now - connection.getLastActiveMillis() >= config.getTcpIdleMillis()) {
+                    closeConnection(connection);
+                }
+            }
+        }
+    }
+
+    // Answer a request from the cache, or forward it to Google without waiting for the reply.
+    // connection is the client's TCP connection, null for a request over UDP
+    private void handleRequest(byte[] data, SocketAddress client, TcpConnection connection) throws IOException {
+        long start = System.nanoTime();
+        metrics.query(connection != null);
+        DNSMessage message = server.decode(data);
+        if (log.isDebug()) {
+            log.debug("Request from " + client + ": " + message);
+        }
+        DNSRecord opt = message.getOpt();
+        if (opt != null && opt.ednsVersion() != 0) {
+            // Only EDNS version 0 exists, a client asking for a later one is told so (RFC 6891)
+            DNSMessage response = DNSMessage.buildErrorResponse(message, DNSRecord.RCODE_BADVERS & 0xf);
+            response.setOpt(DNSRecord.buildOpt(config.getUdpPayloadSize(), DNSRecord.RCODE_BADVERS));
+            sendResponse(message, response, client, connection);
+            answered(message, client, connection, DNSRecord.RCODE_BADVERS & 0xf, false, start);
+            return;
+        }
+        DNSMessage local = server.answerLocally(message);
+        if (local != null) {
+            sendResponse(message, local, client, connection);
+            answered(message, client, connection, local.getHeader().getRCode(), true, start);
+            return;
+        }
+        ArrayList<DNSRecord> outputAnswers = new ArrayList<>();
+        DNSQuestion missed = null;
+        CacheEntry hit = null;
+        for (DNSQuestion question : message.getQuestions()) {
+            hit = server.lookup(question);
+            if (hit != null) {
+                Collections.addAll(outputAnswers, hit.getAnswers());
+                refreshIfPopular(question, hit);
+            } else if (missed == null) {
+                missed = question;
+            }
+        }
+        // Most requests are a single question, which can be answered by patching the cached response
+        if (missed == null && message.getQuestions().length == 1) {
+            int payloadSize = config.getUdpPayloadSize();
+            if (connection != null && hit.writeResponse(message, tcpBuffer, TcpConnection.MAX_MESSAGE, payloadSize)) {
+                writeTcp(connection, tcpBuffer);
+            } else if (connection == null && hit.writeResponse(message, nextReply(), message.udpPayloadSize(payloadSize), payloadSize)) {
+                queueReply(client);
+            } else {
+                sendResponse(message, DNSMessage.buildResponse(message, hit.getAnswers(), hit.getAuthority(), hit.getRCode()), client, connection);
+            }
+            answered(message, client, connection, hit.getRCode(), true, start);
+        } else if (missed == null) {
+            sendResponse(message, DNSMessage.buildResponse(message, outputAnswers.toArray(new DNSRecord[outputAnswers.size()])), client, connection);
+            answered(message, client, connection, 0, true, start);
+        } else if (inFlight.containsKey(missed)) {
+            // Already asked Google, wait on the same reply
+            startClientTimer(inFlight.get(missed).addWaiter(message, client, connection, outputAnswers, start));
+        } else {
+            startClientTimer(sendToGoogle(message, missed, client, connection, outputAnswers, start));
+        }
+    }
+
+    // Give a waiter with an expired answer to fall back on until clientResponseMillis after its request arrived
+    private void startClientTimer(PendingQuery.Waiter waiter) {
+        if (server.lookupStale(waiter.getQuery().getQuestion()) != null) {
+            clientTimers.addLast(waiter);
+        }
+    }
+
+    // Ask Google the request's missed question under a fresh transaction ID, advertising our UDP payload size with
+    // EDNS, and remember who is waiting on it
+    private PendingQuery.Waiter sendToGoogle(DNSMessage message, DNSQuestion question, SocketAddress client, TcpConnection connection,
+                                             ArrayList<DNSRecord> answers, long start) throws IOException {
+        int upstreamId = nextUpstreamId();
+        byte[] data = DNSMessage.buildQuery(question, upstreamId, config.getUdpPayloadSize()).getRawData();
+        PendingQuery query = new PendingQuery(upstreamId, question, System.nanoTime() / 1_000_000 + timeoutMillis);
+        PendingQuery.Waiter waiter = query.addWaiter(message, client, connection, answers, start);
+        forward(query, data);
+        return waiter;
+    }
+
+    // Fetch a popular entry again before it expires, if it is far enough through its TTL and the refresh budget
+    // allows. The refresh is an ordinary forwarded query with no waiters, so clients that miss on the question
+    // while it is in flight wait on it too. The reply replaces the entry in the cache.
+    private void refreshIfPopular(DNSQuestion question, CacheEntry entry) throws IOException {
+        if (!entry.needsRefresh(config.getRefreshMinHits(), config.getRefreshFraction()) || sharedInFlight.containsKey(question)) {
+            return;
+        }
+        if (!entry.startRefresh()) {
+            return;
+        }
+        if (!server.tryStartRefresh()) {
+            entry.endRefresh();
+            return;
+        }
+        if (log.isDebug()) {
+            log.debug("Refreshing popular entry " + question.getqName() + " after " + entry.getHits() + " hits");
+        }
+        int upstreamId = nextUpstreamId();
+        PendingQuery query = new PendingQuery(upstreamId, question, System.nanoTime() / 1_000_000 + timeoutMillis);
+        query.setRefreshing(entry);
+        forward(query, DNSMessage.buildQuery(question, upstreamId, config.getUdpPayloadSize()).getRawData());
+    }
+
+    // Send a query upstream and track it until it is answered or times out, or if another worker is already asking
+    // the same question, wait on its reply instead
+    private void forward(PendingQuery query, byte[] data) throws IOException {
+        inFlight.put(query.getQuestion(), query);
+        if (follow(query)) {
+            return;
+        }
+        query.setData(data);
+        pending.put(query.getUpstreamId(), query);
+        timeouts.addLast(query);
+        metrics.upstreamQueryStarted();
+        if (resolver != null) {
+            query.setReply(resolver.resolveAsync(query.getQuestion(), query.getDeadline()));
+            query.getReply().whenComplete((reply, e) -> {
+                resolved.add(query);
+                selector.wakeup();
+            });
+            return;
+        }
+        sendAttempt(query, null, config.isHedging());
+    }
+
+    // Claim the query's question for this worker, or if another worker has it, have that worker's query complete
+    // this one's reply when it finishes. Returns whether the query is following another
+    private boolean follow(PendingQuery query) {
+        while (true) {
+            PendingQuery owner = sharedInFlight.putIfAbsent(query.getQuestion(), query);
+            if (owner == null) {
+                return false;
+            }
+            CompletableFuture<DNSMessage> reply = new CompletableFuture<>();
+            // An owner that has already finished is out of the map by now, so the next try claims the question
+            if (owner.addFollower(reply)) {
+                query.setReply(reply);
+                reply.whenComplete((message, e) -> {
+                    followed.add(query);
+                    selector.wakeup();
+                });
+                return true;
+            }
+        }
+    }
+
+    // Send the query to the best upstream other than exclude, and schedule its hedge and timeout
+    private void sendAttempt(PendingQuery query, UpstreamPool.Upstream exclude, boolean hedge) throws IOException {
+        UpstreamPool.Upstream upstream = upstreams.select(exclude);
+        long now = System.nanoTime() / 1_000_000;
+        long hedgeAt = hedge ? now + upstreams.hedgeDelayMillis(upstream) : 0;
+        attempts.add(query.addAttempt(upstream, hedgeAt, now + config.getAttemptTimeoutMillis()));
+        googleChannel.send(ByteBuffer.wrap(query.getData()), upstream.getAddress());
+    }
+
+    // Hedge or retry every attempt whose time has come
+    private void checkAttempts() throws IOException {
+        long now = System.nanoTime() / 1_000_000;
+        while (!attempts.isEmpty() && attempts.peek().getCheckAt() <= now) {
+            PendingQuery.Attempt attempt = attempts.poll();
+            PendingQuery query = attempt.getQuery();
+            if (pending.get(query.getUpstreamId()) != query || attempt.hasReplied()) {
+                continue;
+            }
+            boolean canRetry = query.attemptCount() < config.getMaxAttempts();
+            if (attempt.isHedgeDue()) {
+                // Slower than usual: ask a second upstream as well, and keep waiting on the first until its timeout
+                attempt.hedged();
+                attempts.add(attempt);
+                if (canRetry) {
+                    sendAttempt(query, attempt.getUpstream(), false);
+                }
+            } else {
+                upstreams.recordFailure(attempt.getUpstream());
+                if (canRetry && query.lastAttempt() == attempt) {
+                    if (log.isDebug()) {
+                        log.debug("No reply from " + attempt.getUpstream().getAddress() + ", retrying on another upstream");
+                    }
+                    sendAttempt(query, attempt.getUpstream(), false);
+                }
+            }
+        }
+    }
+
+    // Stop tracking a query once it has been answered or given up on
+    private void finish(PendingQuery query, boolean answered) {
+        pending.remove(query.getUpstreamId());
+        inFlight.remove(query.getQuestion(), query);
+        sharedInFlight.remove(query.getQuestion(), query);
+        metrics.upstreamQueryFinished();
+        if (query.getRefreshing() != null) {
+            // The old entry stays in the cache until it is replaced, or expires if the name no longer has an answer
+            query.getRefreshing().endRefresh();
+            server.endRefresh(answered);
+        }
+    }
+
+    // Handle every reply Google has sent since the last wakeup
+    private void receiveFromGoogle() throws IOException {
+        while (true) {
+            upstreamBuffer.clear();
+            SocketAddress from = googleChannel.receive(upstreamBuffer);
+            if (from == null) {
+                break;
+            }
+            try {
+                handleReply(packetBytes(upstreamBuffer), from, false);
+            } catch (IOException | RuntimeException e) {
+                if (log.isDebug()) {
+                    log.debug("Bad reply from " + from + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Handle the replies read from the upstream TCP connections since the last wakeup
+    private void receiveFromTcpUpstreams() {
+        Map.Entry<UpstreamPool.Upstream, byte[]> reply;
+        while ((reply = tcpReplies.poll()) != null) {
+            try {
+                handleReply(reply.getValue(), reply.getKey().getAddress(), true);
+            } catch (IOException | RuntimeException e) {
+                if (log.isDebug()) {
+                    log.debug("Bad reply from " + reply.getKey().getAddress() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Answer the waiters of every query the iterative resolver has finished since the last wakeup, unless it was
+    // already given up on
+    private void receiveResolved() throws IOException {
+        PendingQuery query;
+        while ((query = resolved.poll()) != null) {
+            if (pending.get(query.getUpstreamId()) != query) {
+                continue;
+            }
+            DNSMessage reply = query.getReply().getNow(null);
+            finish(query, reply != null);
+            complete(query, reply);
+        }
+    }
+
+    // Answer the waiters of every query following another worker's that has been completed since the last wakeup.
+    // The other worker has already cached the reply
+    private void receiveFollowed() throws IOException {
+        PendingQuery query;
+        while ((query = followed.poll()) != null) {
+            DNSMessage reply = query.getReply().getNow(null);
+            inFlight.remove(query.getQuestion(), query);
+            if (query.getRefreshing() != null) {
+                query.getRefreshing().endRefresh();
+                server.endRefresh(reply != null);
+            }
+            if (reply == null) {
+                failWaiters(query);
+            } else {
+                answerWaiters(query, reply, false);
+            }
+        }
+    }
+
+    // The kept-alive TCP connection to an upstream, set up on first use
+    private TcpUpstream tcpUpstream(UpstreamPool.Upstream upstream) {
+        TcpUpstream tcpUpstream = tcpUpstreams.get(upstream);
+        if (tcpUpstream == null) {
+            tcpUpstream = new TcpUpstream(upstream, config.getAttemptTimeoutMillis(), (from, reply) -> {
+                tcpReplies.add(Map.entry(from, reply));
+                selector.wakeup();
+            });
+            tcpUpstreams.put(upstream, tcpUpstream);
+        }
+        return tcpUpstream;
+    }
+
+    // Match a reply back to the waiting client, cache it and send the response.
+    // A truncated reply over UDP is not used: the query is sent to the same upstream again over TCP
+    private void handleReply(byte[] data, SocketAddress from, boolean viaTcp) throws IOException {
+        UpstreamPool.Upstream upstream = upstreams.find(from);
+        if (upstream == null) {
+            if (log.isDebug()) {
+                log.debug("Ignoring reply from unexpected address " + from);
+            }
+            return;
+        }
+        DNSMessage googleMessage = server.decode(data);
+        PendingQuery query = pending.get(googleMessage.getHeader().getId());
+        PendingQuery.Attempt attempt = query == null ? null : query.attemptTo(upstream);
+        if (attempt == null || !query.matches(googleMessage)) {
+            if (log.isDebug()) {
+                log.debug("Ignoring reply from " + from + " with no matching request");
+            }
+            return;
+        }
+        if (!viaTcp && googleMessage.getHeader().getTc() == 1) {
+            if (log.isDebug()) {
+                log.debug("Truncated reply from " + from + ", asking again over TCP");
+            }
+            // Not a failure: the attempt carries on over TCP, with a deadline of its own in place of the UDP one
+            attempts.remove(attempt);
+            attempt.retriedOverTcp(config.getAttemptTimeoutMillis());
+            attempts.add(attempt);
+            tcpUpstream(upstream).send(query.getData());
+            return;
+        }
+        attempt.replied();
+        int upstreamRCode = googleMessage.getHeader().getRCode();
+        if (upstreamRCode == 2 || upstreamRCode == 5) {
+            // Server Failure or Refused says more about the upstream than the name, so try another one if we can
+            upstreams.recordFailure(upstream);
+            if (query.attemptCount() < config.getMaxAttempts()) {
+                sendAttempt(query, upstream, false);
+                return;
+            }
+        } else {
+            upstreams.recordAnswer(query, upstream);
+        }
+        finish(query, true);
+        if (log.isDebug()) {
+            log.debug("Reply from " + from + ": " + googleMessage);
+        }
+        complete(query, googleMessage);
+    }
+
+    // Answer everyone waiting on a finished query, from the reply or, if it is null, as having failed: its own
+    // waiters, then the queries of other workers following it
+    private void complete(PendingQuery query, DNSMessage reply) throws IOException {
+        try {
+            if (reply == null) {
+                failWaiters(query);
+            } else {
+                answerWaiters(query, reply, true);
+            }
+        } finally {
+            for (CompletableFuture<DNSMessage> follower : query.finishFollowers()) {
+                follower.complete(reply);
+            }
+        }
+    }
+
+    // Cache the reply to a finished query, unless another worker's query had it and already has, and send every
+    // waiter its response. A Server Failure or Refused reply is passed on only if there is no stale answer to give
+    private void answerWaiters(PendingQuery query, DNSMessage googleMessage, boolean cache) throws IOException {
+        int rCode = googleMessage.getHeader().getRCode();
+        if (rCode == 2 || rCode == 5) {
+            CacheEntry stale = server.lookupStale(query.getQuestion());
+            if (stale != null) {
+                for (PendingQuery.Waiter waiter : query.getWaiters()) {
+                    answerStale(waiter, stale);
+                }
+                return;
+            }
+        }
+        DNSRecord[] answers = googleMessage.getAnswers();
+        DNSRecord[] authority = cache ? server.cacheReply(query.getQuestion(), googleMessage) : DNSServer.authorityOf(googleMessage);
+        // Every waiter gets the same answer, in a response built from its own request
+        for (PendingQuery.Waiter waiter : query.getWaiters()) {
+            ArrayList<DNSRecord> outputAnswers = waiter.getAnswers();
+            Collections.addAll(outputAnswers, answers);
+            sendResponse(waiter.getRequest(), DNSMessage.buildResponse(waiter.getRequest(), outputAnswers.toArray(new DNSRecord[outputAnswers.size()]), authority, rCode), waiter.getClient(), waiter.getConnection());
+            answered(waiter.getRequest(), waiter.getClient(), waiter.getConnection(), rCode, false, waiter.getStartNanos());
+        }
+    }
+
+    // Give up on every request Google has not answered in time and tell the client the server failed
+    private void expireTimeouts() throws IOException {
+        long now = System.nanoTime() / 1_000_000;
+        while (!timeouts.isEmpty() && timeouts.peekFirst().getDeadline() <= now) {
+            PendingQuery query = timeouts.removeFirst();
+            // Already answered queries are skipped, as is an ID that has since been reused by a newer query
+            if (pending.get(query.getUpstreamId()) == query) {
+                finish(query, false);
+                complete(query, null);
+            }
+        }
+    }
+
+    // Answer every waiter of a query that was given up on from a stale entry if there is one, and otherwise tell them
+    // the server failed
+    private void failWaiters(PendingQuery query) throws IOException {
+        CacheEntry stale = query.getWaiters().isEmpty() ? null : server.lookupStale(query.getQuestion());
+        for (PendingQuery.Waiter waiter : query.getWaiters()) {
+            if (stale != null) {
+                answerStale(waiter, stale);
+                continue;
+            }
+            sendResponse(waiter.getRequest(), DNSMessage.buildErrorResponse(waiter.getRequest(), 2), waiter.getClient(), waiter.getConnection());
+            metrics.serverFailure();
+            answered(waiter.getRequest(), waiter.getClient(), waiter.getConnection(), 2, false, waiter.getStartNanos());
+        }
+    }
+
+    // Answer from the stale entry every waiter still without a reply when its client response timer runs out. The
+    // query goes on without it, and its reply refreshes the cache when it comes
+    private void expireClientTimers() throws IOException {
+        long now = System.nanoTime() / 1_000_000;
+        while (!clientTimers.isEmpty() && clientDeadline(clientTimers.peekFirst()) <= now) {
+            PendingQuery.Waiter waiter = clientTimers.removeFirst();
+            PendingQuery query = waiter.getQuery();
+            if (inFlight.get(query.getQuestion()) != query) {
+                continue;
+            }
+            CacheEntry stale = server.lookupStale(query.getQuestion());
+            if (stale != null && query.removeWaiter(waiter)) {
+                answerStale(waiter, stale);
+            }
+        }
+    }
+
+    private long clientDeadline(PendingQuery.Waiter waiter) {
+        return waiter.getStartNanos() / 1_000_000 + config.getClientResponseMillis();
+    }
+
+    // Answer a waiter from an expired cache entry, every record with a TTL of staleAnswerTtl (RFC 8767). A response
+    // that can't be patched from the encoded one is built from the records, whose TTLs have run down to 0
+    private void answerStale(PendingQuery.Waiter waiter, CacheEntry stale) throws IOException {
+        DNSMessage request = waiter.getRequest();
+        SocketAddress client = waiter.getClient();
+        TcpConnection connection = waiter.getConnection();
+        int payloadSize = config.getUdpPayloadSize();
+        int staleTtl = config.getStaleAnswerTtl();
+        if (connection != null && stale.writeStaleResponse(request, tcpBuffer, TcpConnection.MAX_MESSAGE, payloadSize, staleTtl)) {
+            writeTcp(connection, tcpBuffer);
+        } else if (connection == null && stale.writeStaleResponse(request, nextReply(), request.udpPayloadSize(payloadSize), payloadSize, staleTtl)) {
+            queueReply(client);
+        } else {
+            ArrayList<DNSRecord> outputAnswers = waiter.getAnswers();
+            Collections.addAll(outputAnswers, stale.getAnswers());
+            sendResponse(request, DNSMessage.buildResponse(request, outputAnswers.toArray(new DNSRecord[outputAnswers.size()]), stale.getAuthority(), stale.getRCode()), client, connection);
+        }
+        metrics.staleAnswer();
+        answered(request, client, connection, stale.getRCode(), true, waiter.getStartNanos());
+    }
+
+    // How long the selector may sleep before an attempt needs looking at, a client response timer runs out or the
+    // oldest forwarded request times out, 0 meaning forever. With clients connected over TCP it wakes at least once a
+    // second to look for idle ones
+    private long nextTimeout() {
+        long now = System.nanoTime() / 1_000_000;
+        long next = tcpConnections > 0 ? now + 1000 : Long.MAX_VALUE;
+        if (!timeouts.isEmpty()) {
+            next = Math.min(next, timeouts.peekFirst().getDeadline());
+        }
+        if (!clientTimers.isEmpty()) {
+            next = Math.min(next, clientDeadline(clientTimers.peekFirst()));
+        }
+        if (!attempts.isEmpty()) {
+            next = Math.min(next, attempts.peek().getCheckAt());
+        }
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
+    }
+
+    // Random IDs make replies harder to spoof than a counter, and no two requests in flight can share one
+    private int nextUpstreamId() {
+        int id;
+        do {
+            id = idGenerator.nextInt(0x10000);
+        } while (pending.containsKey(id));
+        return id;
+    }
+
+    // Copy the datagram that was just received out of the shared buffer
+    private static byte[] packetBytes(ByteBuffer buffer) {
+        buffer.flip();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    // The buffer the next queued reply is written into, flushing the queue first if it is full
+    private ByteBuffer nextReply() throws IOException {
+        if (replyCount == replies.length) {
+            flushReplies();
+        }
+        return replies[replyCount];
+    }
+
+    // Queue the reply just written into nextReply() for sending to the client
+    private void queueReply(SocketAddress client) {
+        replyAddresses[replyCount] = client;
+        replyCount++;
+    }
+
+    // Send every queued reply. UDP sends don't wait on the client, a reply the socket has no room for is dropped
+    private void flushReplies() throws IOException {
+        for (int i = 0; i < replyCount; i++) {
+            clientChannel.send(replies[i], replyAddresses[i]);
+            replyAddresses[i] = null;
+        }
+        replyCount = 0;
+    }
+
+    // Send the response to a request over the client's TCP connection, or over UDP when connection is null.
+    // A client using EDNS gets our OPT record with it. The response is encoded straight into the TCP buffer or the
+    // next queued UDP reply. Over UDP a response larger than the client can take is replaced by a truncated one,
+    // telling the client to ask again over TCP
+    private void sendResponse(DNSMessage request, DNSMessage response, SocketAddress client, TcpConnection connection) throws IOException {
+        boolean edns = request.getOpt() != null;
+        if (edns && response.getOpt() == null) {
+            response.setOpt(DNSRecord.buildOpt(config.getUdpPayloadSize(), 0));
+        }
+        if (log.isDebug()) {
+            log.debug("Response to " + client + ": " + response);
+        }
+        ByteBuffer output = connection != null ? tcpBuffer : nextReply();
+        int maxSize = connection != null ? TcpConnection.MAX_MESSAGE : request.udpPayloadSize(config.getUdpPayloadSize());
+        output.clear();
+        if (!server.encode(response, output, maxSize)) {
+            DNSMessage truncated = DNSMessage.buildTruncatedResponse(response);
+            if (edns) {
+                truncated.setOpt(DNSRecord.buildOpt(config.getUdpPayloadSize(), 0));
+            }
+            if (!server.encode(truncated, output, maxSize)) {
+                return;
+            }
+        }
+        output.flip();
+        if (connection != null) {
+            writeTcp(connection, output);
+        } else {
+            queueReply(client);
+        }
+    }
+
+    // Count a request as answered, start being when it arrived, and log it
+    private void answered(DNSMessage request, SocketAddress client, TcpConnection connection, int rCode, boolean fromCache, long start) {
+        long latency = System.nanoTime() - start;
+        metrics.answered(fromCache, latency);
+        DNSQuestion[] questions = request.getQuestions();
+        log.query(client, questions.length == 0 ? null : questions[0], connection != null, rCode, fromCache, latency);
+    }
+
+    // A client that has gone away by the time its response is ready just doesn't get it
+    private void writeTcp(TcpConnection connection, ByteBuffer response) {
+        try {
+            connection.write(response);
+        } catch (IOException e) {
+            closeConnection(connection);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Serves the server's Metrics as plain text on a localhost port, for 'curl 127.0.0.1:8054' or a Prometheus scrape.
+// Every connection gets the current metrics as an HTTP/1.0 response whatever it asks for, and is closed. Only
+// loopback is listened on, so the endpoint isn't reachable from other hosts.
+// Connections are handled one at a time on a single thread, which is plenty for something polled every few seconds.
+public class StatsServer implements Runnable {
+    private Metrics metrics;
+    private ServerSocket socket;
+
+    public StatsServer(Metrics metrics, int port) throws IOException {
+        this.metrics = metrics;
+        socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    // Serve connections until closed
+    public void run() {
+        while (!socket.isClosed()) {
+            try (Socket connection = socket.accept()) {
+                connection.setSoTimeout(1000);
+                readRequest(connection.getInputStream());
+                byte[] body = metrics.format().getBytes(StandardCharsets.UTF_8);
+                String header = "HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: " + body.length + "\r\n\r\n";
+                OutputStream output = connection.getOutputStream();
+                output.write(header.getBytes(StandardCharsets.US_ASCII));
+                output.write(body);
+                output.flush();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.out.println("Stats connection failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Skip the request up to the blank line ending its headers, so the client sees a clean close. A client that
+    // sends nothing (e.g. 'nc') gets the metrics once the read times out
+    private static void readRequest(InputStream input) {
+        try {
+            int lineLength = 0;
+            int b;
+            while ((b = input.read()) >= 0) {
+                if (b == '\n') {
+                    if (lineLength == 0) {
+                        return;
+                    }
+                    lineLength = 0;
+                } else if (b != '\r') {
+                    lineLength++;
+                }
+            }
+        } catch (IOException e) {
+            // Timed out or closed, answer anyway
+        }
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+    }
+}
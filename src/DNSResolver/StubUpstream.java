@@ -0,0 +1,377 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A stand in for Google when testing the server locally without a network
+// Every question is answered with a single A record for 127.0.0.1 after an artificial delay, or, given a zone file
+// (see ZoneFile), from the records in it: CNAMEs are followed within the zone, names without records of the type
+// asked for get an empty answer, and names not in the zone get Name Error, both with the zone's SOA if it has one.
+// To test how the server copes with a bad upstream, the delay can be given some random jitter, a fraction of queries
+// can be lost (never answered) or answered with Server Failure, and a fraction of UDP replies can be truncated.
+// Replies too large for the query's UDP payload size are truncated anyway. Truncated queries can be asked again over
+// TCP on the same port.
+// Replies are delayed on a scheduler rather than by sleeping, so many queries can be waiting at once
+// In authoritative mode the zone is served as an authoritative server would, for testing IterativeResolver: a name at
+// or below a delegation (NS records at a name without an SOA record) gets a referral, the NS records in the
+// authority section and any addresses the zone has for them as glue. Several stubs can serve a hierarchy of zones
+// on the same port from different loopback addresses, e.g. '127.0.0.2:5300'
+// Run with 'java DNSResolver.StubUpstream 5353 200' then start DNSServer with '8053 127.0.0.1 5353'
+public class StubUpstream implements Runnable {
+    // Largest UDP reply we send, whatever the query advertises
+    private static final int MAX_PAYLOAD_SIZE = 4096;
+
+    private DatagramSocket socket;
+    private ServerSocketChannel tcpChannel;
+    // Settings can be changed while the stub runs, e.g. to have an upstream stall or fail partway through a test
+    private volatile long delayMillis;
+    private volatile long jitterMillis = 0;
+    private volatile double lossRate = 0;
+    private volatile double truncateRate = 0;
+    private volatile double failRate = 0;
+    private boolean authoritative = false;
+    private ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor();
+
+    // Records by owner name, null to answer everything with 127.0.0.1
+    private HashMap<DomainName, List<DNSRecord>> zone;
+
+    // How many queries have been received, so tests can check what reached the upstream
+    private AtomicInteger queryCount = new AtomicInteger();
+    private AtomicInteger tcpQueryCount = new AtomicInteger();
+
+    public StubUpstream(int port, long delayMillis) throws IOException {
+        this(new InetSocketAddress(port), delayMillis);
+    }
+
+    public StubUpstream(InetSocketAddress address, long delayMillis) throws IOException {
+        socket = new DatagramSocket(address);
+        this.delayMillis = delayMillis;
+        tcpChannel = ServerSocketChannel.open();
+        tcpChannel.bind(new InetSocketAddress(address.getAddress(), socket.getLocalPort()));
+        Thread acceptor = new Thread(this::acceptTcp, "stub-tcp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+    public int getQueryCount() {
+        return queryCount.get();
+    }
+    public int getTcpQueryCount() {
+        return tcpQueryCount.get();
+    }
+
+    // Answer from these records instead of with 127.0.0.1
+    public StubUpstream setZone(List<DNSRecord> records) {
+        HashMap<DomainName, List<DNSRecord>> byName = new HashMap<>();
+        for (DNSRecord record : records) {
+            byName.computeIfAbsent(record.getName(), name -> new ArrayList<>()).add(record);
+        }
+        zone = byName;
+        return this;
+    }
+    public StubUpstream setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+        return this;
+    }
+    // Up to this much longer than the delay, chosen at random for each reply
+    public StubUpstream setJitterMillis(long jitterMillis) {
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+    // Fraction of queries, 0 to 1, that are never answered
+    public StubUpstream setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+        return this;
+    }
+    // Fraction of UDP replies, 0 to 1, that are truncated whatever their size
+    public StubUpstream setTruncateRate(double truncateRate) {
+        this.truncateRate = truncateRate;
+        return this;
+    }
+
+    // Fraction of queries, 0 to 1, answered with Server Failure
+    public StubUpstream setFailRate(double failRate) {
+        this.failRate = failRate;
+        return this;
+    }
+
+    // Give referrals for names below delegations in the zone, as an authoritative server
+    public StubUpstream setAuthoritative(boolean authoritative) {
+        this.authoritative = authoritative;
+        return this;
+    }
+
+    // Receive queries until closed
+    public void run() {
+        while (!socket.isClosed()) {
+            byte[] buffer = new byte[MAX_PAYLOAD_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                queryCount.incrementAndGet();
+                if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+                    continue;
+                }
+                byte[] response = respond(Arrays.copyOf(buffer, packet.getLength()), false);
+                DatagramPacket output = new DatagramPacket(response, response.length, packet.getSocketAddress());
+                replies.schedule(() -> send(output), nextDelay(), TimeUnit.MILLISECONDS);
+            } catch (IOException | RuntimeException e) {
+                if (!socket.isClosed()) {
+                    System.out.println("Stub upstream failed on a query: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Runs on its own thread: give every TCP connection a thread reading its queries
+    private void acceptTcp() {
+        while (tcpChannel.isOpen()) {
+            try {
+                SocketChannel channel = tcpChannel.accept();
+                TcpConnection connection = new TcpConnection(channel);
+                Thread reader = new Thread(() -> serveTcp(connection), "stub-tcp");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                System.out.println("IO Exception: " + e.getMessage());
+            }
+        }
+    }
+
+    // Answer queries on a connection until it closes. TCP replies are never lost or truncated
+    private void serveTcp(TcpConnection connection) {
+        try {
+            while (true) {
+                byte[] query = connection.readBlocking();
+                queryCount.incrementAndGet();
+                tcpQueryCount.incrementAndGet();
+                byte[] response = respond(query, true);
+                replies.schedule(() -> {
+                    try {
+                        connection.write(response);
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }, nextDelay(), TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Closed by the server
+        } finally {
+            connection.close();
+        }
+    }
+
+    private long nextDelay() {
+        return jitterMillis > 0 ? delayMillis + ThreadLocalRandom.current().nextLong(jitterMillis + 1) : delayMillis;
+    }
+
+    private void send(DatagramPacket output) {
+        try {
+            socket.send(output);
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+    }
+
+    // The reply to a query, truncated over UDP if it is too large for the query or chosen to be
+    private byte[] respond(byte[] query, boolean tcp) throws IOException {
+        if (failRate > 0 && ThreadLocalRandom.current().nextDouble() < failRate) {
+            return DNSMessage.buildErrorResponse(DNSMessage.decodeMessage(query), 2).toBytes();
+        }
+        boolean truncate = !tcp && truncateRate > 0 && ThreadLocalRandom.current().nextDouble() < truncateRate;
+        if (zone == null && !truncate) {
+            return buildAnswer(query);
+        }
+        DNSMessage request = DNSMessage.decodeMessage(query);
+        DNSMessage response = zone == null
+                ? DNSMessage.decodeMessage(buildAnswer(query))
+                : answerFromZone(request);
+        if (request.getOpt() != null) {
+            response.setOpt(DNSRecord.buildOpt(MAX_PAYLOAD_SIZE, 0));
+        }
+        byte[] bytes = response.toBytes();
+        if (!tcp && (truncate || bytes.length > request.udpPayloadSize(MAX_PAYLOAD_SIZE))) {
+            DNSMessage truncated = DNSMessage.buildTruncatedResponse(response);
+            if (request.getOpt() != null) {
+                truncated.setOpt(DNSRecord.buildOpt(MAX_PAYLOAD_SIZE, 0));
+            }
+            return truncated.toBytes();
+        }
+        return bytes;
+    }
+
+    // Look the question up in the zone, following CNAMEs through it
+    private DNSMessage answerFromZone(DNSMessage request) {
+        DNSQuestion question = request.getQuestions()[0];
+        if (authoritative) {
+            DNSMessage referral = referralFor(request, question.getqName());
+            if (referral != null) {
+                return referral;
+            }
+        }
+        ArrayList<DNSRecord> answers = new ArrayList<>();
+        DomainName name = question.getqName();
+        for (int links = 0; links < 8; links++) {
+            List<DNSRecord> records = zone.get(name);
+            if (records == null) {
+                if (answers.isEmpty()) {
+                    return DNSMessage.buildResponse(request, new DNSRecord[0], soaFor(question.getqName()), 3);
+                }
+                break;
+            }
+            DNSRecord alias = null;
+            boolean found = false;
+            for (DNSRecord record : records) {
+                if (record.getType() == question.getqType()) {
+                    answers.add(record);
+                    found = true;
+                } else if (record.getType() == DNSRecord.TYPE_CNAME) {
+                    alias = record;
+                }
+            }
+            if (found || alias == null) {
+                break;
+            }
+            answers.add(alias);
+            name = DomainName.fromWire(alias.getrData());
+        }
+        DNSRecord[] authority = answers.isEmpty() ? soaFor(question.getqName()) : new DNSRecord[0];
+        return DNSMessage.buildResponse(request, answers.toArray(new DNSRecord[answers.size()]), authority, 0);
+    }
+
+    // A referral to the delegation at or above the name, below the zone's apex, or null if there is none
+    private DNSMessage referralFor(DNSMessage request, DomainName name) {
+        for (DomainName cut = name; !cut.isRoot(); cut = cut.parent()) {
+            List<DNSRecord> records = zone.get(cut);
+            if (records == null) {
+                continue;
+            }
+            ArrayList<DNSRecord> nameServers = new ArrayList<>();
+            for (DNSRecord record : records) {
+                if (record.getType() == DNSRecord.TYPE_SOA) {
+                    return null;
+                }
+                if (record.getType() == DNSRecord.TYPE_NS) {
+                    nameServers.add(record);
+                }
+            }
+            if (nameServers.isEmpty()) {
+                continue;
+            }
+            ArrayList<DNSRecord> glue = new ArrayList<>();
+            for (DNSRecord nameServer : nameServers) {
+                List<DNSRecord> addresses = zone.get(DomainName.fromWire(nameServer.getrData()));
+                if (addresses != null) {
+                    for (DNSRecord address : addresses) {
+                        if (address.getType() == DNSRecord.TYPE_A || address.getType() == DNSRecord.TYPE_AAAA) {
+                            glue.add(address);
+                        }
+                    }
+                }
+            }
+            DNSMessage referral = DNSMessage.buildResponse(request, new DNSRecord[0], nameServers.toArray(new DNSRecord[nameServers.size()]), 0);
+            referral.setAdditional(glue.toArray(new DNSRecord[glue.size()]));
+            return referral;
+        }
+        return null;
+    }
+
+    // The SOA record of the closest zone holding the name, for a negative answer. Empty if there is none
+    private DNSRecord[] soaFor(DomainName name) {
+        for (DomainName zoneName = name; ; zoneName = zoneName.parent()) {
+            List<DNSRecord> records = zone.get(zoneName);
+            if (records != null) {
+                for (DNSRecord record : records) {
+                    if (record.getType() == DNSRecord.TYPE_SOA) {
+                        return new DNSRecord[] {record};
+                    }
+                }
+            }
+            if (zoneName.isRoot()) {
+                return new DNSRecord[0];
+            }
+        }
+    }
+
+    public void close() {
+        socket.close();
+        try {
+            tcpChannel.close();
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+        replies.shutdownNow();
+    }
+
+    // Turn a query into a response by keeping the header and the first question and appending an answer
+    // that points back at the question name: c00c | type A | class IN | TTL 60 | length 4 | 127.0.0.1
+    static byte[] buildAnswer(byte[] query) {
+        int end = 12;
+        while (query[end] != 0) {
+            end += (query[end] & 0xff) + 1;
+        }
+        end += 5;
+        byte[] answer = {(byte) 0xc0, 0x0c, 0, 1, 0, 1, 0, 0, 0, 60, 0, 4, 127, 0, 0, 1};
+        byte[] response = Arrays.copyOf(query, end + answer.length);
+        System.arraycopy(answer, 0, response, end, answer.length);
+        response[2] = (byte) (response[2] | 0x80);
+        response[3] = (byte) 0x80;
+        response[4] = 0;
+        response[5] = 1;
+        response[6] = 0;
+        response[7] = 1;
+        Arrays.fill(response, 8, 12, (byte) 0);
+        return response;
+    }
+
+    // Optional arguments: port, delay in milliseconds, zone file ('-' for none), loss rate, truncate rate, jitter in
+    // milliseconds, e.g. '5353 20 test.zone 0.01 0.05 30'. The port can be given with an address to listen on, e.g.
+    // '127.0.0.2:5300', and a seventh argument of AUTHORITATIVE serves the zone as an authoritative server
+    public static void main(String[] args) throws IOException {
+        String listen = args.length > 0 ? args[0] : "5353";
+        int colon = listen.lastIndexOf(':');
+        InetSocketAddress address = colon < 0 ? new InetSocketAddress(Integer.parseInt(listen))
+                : new InetSocketAddress(listen.substring(0, colon), Integer.parseInt(listen.substring(colon + 1)));
+        long delay = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        StubUpstream stub = new StubUpstream(address, delay);
+        if (args.length > 2 && !args[2].equals("-")) {
+            List<DNSRecord> records = ZoneFile.read(Paths.get(args[2]), DomainName.ROOT);
+            stub.setZone(records);
+            System.out.println("Loaded " + records.size() + " records from " + args[2]);
+        }
+        if (args.length > 3) {
+            stub.setLossRate(Double.parseDouble(args[3]));
+        }
+        if (args.length > 4) {
+            stub.setTruncateRate(Double.parseDouble(args[4]));
+        }
+        if (args.length > 5) {
+            stub.setJitterMillis(Long.parseLong(args[5]));
+        }
+        if (args.length > 6) {
+            stub.setAuthoritative(args[6].equals("AUTHORITATIVE"));
+        }
+        System.out.println("Stub upstream running on Port " + stub.getPort() + " with " + delay + "ms delay");
+        stub.run();
+    }
+}
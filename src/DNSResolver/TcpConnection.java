@@ -0,0 +1,158 @@
+package DNSResolver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+// A DNS connection over TCP (RFC 7766), to a client or to an upstream.
+// Every message is sent with a two byte length in front of it, and many messages can be sent on one connection
+// without waiting for the replies, which may come back in any order.
+// A non-blocking channel (the event loop) reads whatever whole messages have arrived, and queues messages the socket
+// can't take yet until it becomes writable. A blocking channel reads one message at a time and writes straight away.
+public class TcpConnection {
+    // Largest message the two byte length can describe
+    public static final int MAX_MESSAGE = 65535;
+
+    // Messages queued on a non-blocking channel before the peer is considered too slow and the connection closed
+    private static final int MAX_QUEUED = 256;
+
+    private SocketChannel channel;
+    private SocketAddress remote;
+
+    // Set once the channel is registered with a selector, for asking to be told when it is writable
+    private SelectionKey key;
+
+    // The length of the message being read, then the message itself once its length is known
+    private ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+    private ByteBuffer messageBuffer;
+
+    // Framed messages waiting for the socket to have room, non-blocking channels only
+    private ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+
+    // Last time in milliseconds (System.nanoTime based) a message was read or written, for closing idle connections
+    private volatile long lastActiveMillis = System.nanoTime() / 1_000_000;
+
+    public TcpConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.remote = channel.getRemoteAddress();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+    public SocketAddress getRemote() {
+        return remote;
+    }
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+    public long getLastActiveMillis() {
+        return lastActiveMillis;
+    }
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // Every whole message that has arrived on a non-blocking channel. Throws EOFException once the peer has closed
+    public ArrayList<byte[]> read() throws IOException {
+        ArrayList<byte[]> messages = new ArrayList<>(1);
+        byte[] message;
+        while ((message = readMessage()) != null) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    // The next message on a blocking channel. Throws EOFException once the peer has closed
+    public byte[] readBlocking() throws IOException {
+        byte[] message;
+        do {
+            message = readMessage();
+        } while (message == null);
+        return message;
+    }
+
+    // Read towards the next message, returning it once it is all there and null until then
+    private byte[] readMessage() throws IOException {
+        if (messageBuffer == null) {
+            if (channel.read(lengthBuffer) < 0) {
+                throw new EOFException();
+            }
+            if (lengthBuffer.hasRemaining()) {
+                return null;
+            }
+            lengthBuffer.flip();
+            messageBuffer = ByteBuffer.allocate(lengthBuffer.getShort() & 0xffff);
+            lengthBuffer.clear();
+        }
+        if (messageBuffer.hasRemaining() && channel.read(messageBuffer) < 0) {
+            throw new EOFException();
+        }
+        if (messageBuffer.hasRemaining()) {
+            return null;
+        }
+        byte[] message = messageBuffer.array();
+        messageBuffer = null;
+        lastActiveMillis = System.nanoTime() / 1_000_000;
+        return message;
+    }
+
+    public void write(byte[] message) throws IOException {
+        write(ByteBuffer.wrap(message));
+    }
+
+    // Send a message, from the buffer's position to its limit. Safe to call from several threads at once
+    public synchronized void write(ByteBuffer message) throws IOException {
+        if (message.remaining() > MAX_MESSAGE) {
+            throw new IOException("Message too large for TCP: " + message.remaining() + " bytes");
+        }
+        ByteBuffer framed = ByteBuffer.allocate(2 + message.remaining());
+        framed.putShort((short) message.remaining());
+        framed.put(message);
+        framed.flip();
+        lastActiveMillis = System.nanoTime() / 1_000_000;
+        if (channel.isBlocking()) {
+            while (framed.hasRemaining()) {
+                channel.write(framed);
+            }
+            return;
+        }
+        if (writes.isEmpty()) {
+            channel.write(framed);
+        }
+        if (framed.hasRemaining()) {
+            if (writes.size() >= MAX_QUEUED) {
+                close();
+                throw new IOException("Too many responses queued for " + remote);
+            }
+            writes.addLast(framed);
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Called once a non-blocking channel is writable again, to send what was queued
+    public synchronized void flush() throws IOException {
+        while (!writes.isEmpty()) {
+            ByteBuffer framed = writes.peekFirst();
+            channel.write(framed);
+            if (framed.hasRemaining()) {
+                return;
+            }
+            writes.removeFirst();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+    }
+}
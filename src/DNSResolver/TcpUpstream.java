@@ -0,0 +1,101 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.function.BiConsumer;
+
+// A kept-alive TCP connection to one upstream, for answers too large for UDP (RFC 7766).
+// Queries are written as they come without waiting on earlier replies, and the upstream answers them in any order;
+// whoever handles the replies matches them back by transaction ID. So a large answer costs no new handshake as long
+// as the connection is open.
+// The connection is opened on first use, and opened again after the upstream closes it. Queries lost with a closed
+// connection are retried once their attempt times out. Opening the connection and reading replies happen on a thread
+// of the connection's own, so send() never waits on the upstream, and replies are handed to the listener on it.
+public class TcpUpstream {
+    private UpstreamPool.Upstream upstream;
+    private BiConsumer<UpstreamPool.Upstream, byte[]> listener;
+    private long connectTimeoutMillis;
+
+    // The open connection, null while there is none
+    private TcpConnection connection;
+
+    // Queries sent while the connection is being opened, written once it is
+    private ArrayDeque<byte[]> waiting = new ArrayDeque<>();
+    private boolean connecting = false;
+
+    public TcpUpstream(UpstreamPool.Upstream upstream, long connectTimeoutMillis, BiConsumer<UpstreamPool.Upstream, byte[]> listener) {
+        this.upstream = upstream;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.listener = listener;
+    }
+
+    public UpstreamPool.Upstream getUpstream() {
+        return upstream;
+    }
+
+    // Send a query, opening the connection first if there isn't one
+    public synchronized void send(byte[] query) {
+        if (connection != null) {
+            try {
+                connection.write(query);
+                return;
+            } catch (IOException e) {
+                // The upstream has closed it, the reading thread is about to notice. Start a new one
+                connection.close();
+                connection = null;
+            }
+        }
+        waiting.addLast(query);
+        if (!connecting) {
+            connecting = true;
+            Thread thread = new Thread(this::run, "dns-tcp-upstream-" + upstream.getAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Open the connection, send what is waiting, then hand over replies until the connection closes
+    private void run() {
+        TcpConnection opened = null;
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.socket().connect(upstream.getAddress(), (int) connectTimeoutMillis);
+            opened = new TcpConnection(channel);
+            synchronized (this) {
+                connection = opened;
+                connecting = false;
+                while (!waiting.isEmpty()) {
+                    opened.write(waiting.removeFirst());
+                }
+            }
+            while (true) {
+                listener.accept(upstream, opened.readBlocking());
+            }
+        } catch (IOException e) {
+            // Closed by the upstream or never opened. Anything in flight is retried when it times out
+        } finally {
+            synchronized (this) {
+                if (connection == opened) {
+                    connection = null;
+                }
+                if (opened == null) {
+                    connecting = false;
+                    waiting.clear();
+                }
+            }
+            if (opened != null) {
+                opened.close();
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+}
@@ -0,0 +1,607 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Serves clients with one thread per request instead of an event loop, see ServerConfig.Mode.
+// One thread receives requests and hands each to its own task, which looks up the cache, waits on Google if it has
+// to and sends the response, all with plain blocking calls. On Java 21 and later every task gets a virtual thread;
+// older JVMs have no virtual threads, so the tasks run on platform threads instead.
+// Both sockets are shared by every task. DatagramChannel sends are thread safe, and a second thread reads Google's
+// replies and hands each to the task waiting on its transaction ID.
+// Clients connecting over TCP get a task each that reads their requests, every request again handled on its own task,
+// so a client can send many on one connection and get the responses in whatever order they are ready (RFC 7766).
+// At most maxQueriesInFlight requests are handled at once, requests arriving past that are dropped, so an overload
+// can't start an unbounded number of threads. Clients retry dropped UDP requests on their own.
+public class ThreadPerQueryWorker implements Worker {
+    private DNSServer server;
+    private ServerConfig config;
+    private DatagramChannel clientChannel;
+    private DatagramChannel googleChannel;
+    private ServerSocketChannel tcpChannel;
+    private volatile boolean isRunning = true;
+    private UpstreamPool upstreams;
+    private Metrics metrics;
+    private QueryLog log;
+    // Null if there is no rate limit
+    private RateLimiter rateLimiter;
+    // Null unless resolving iteratively, in place of asking the upstreams
+    private IterativeResolver resolver;
+    private long timeoutMillis;
+    private ExecutorService executor;
+    private Semaphore inFlightLimit;
+
+    // Queries still waiting on Google, keyed by the transaction ID they were sent with
+    private ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+
+    // The same queries keyed by question, so a question already being asked is not forwarded again
+    private ConcurrentHashMap<DNSQuestion, PendingQuery> inFlight = new ConcurrentHashMap<>();
+
+    private Random idGenerator = new Random();
+
+    // Kept-alive TCP connections to the upstreams, for replies Google truncated over UDP
+    private ConcurrentHashMap<UpstreamPool.Upstream, TcpUpstream> tcpUpstreams = new ConcurrentHashMap<>();
+
+    // Clients connected over TCP
+    private Semaphore tcpConnectionLimit;
+
+    // Requests dropped because maxQueriesInFlight were already being handled
+    private AtomicLong dropped = new AtomicLong();
+
+    // Buffers for cached responses written straight from the cache, for UDP and TCP clients
+    private BufferPool udpBuffers;
+    private BufferPool tcpBuffers;
+
+    // Closes TCP connections left idle for tcpIdleMillis
+    private ScheduledExecutorService idleTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dns-tcp-idle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ThreadPerQueryWorker(DNSServer server, ServerConfig config) throws IOException {
+        this.server = server;
+        this.config = config;
+        this.upstreams = server.getUpstreams();
+        this.metrics = server.getMetrics();
+        this.log = server.getQueryLog();
+        this.rateLimiter = server.getRateLimiter();
+        this.resolver = server.getResolver();
+        this.timeoutMillis = config.getTimeoutMillis();
+        inFlightLimit = new Semaphore(config.getMaxQueriesInFlight());
+        udpBuffers = new BufferPool(config.getUdpPayloadSize(), 1024);
+        tcpBuffers = new BufferPool(TcpConnection.MAX_MESSAGE, 16);
+        executor = newQueryExecutor();
+        clientChannel = DatagramChannel.open();
+        clientChannel.bind(new InetSocketAddress(config.getClientPort()));
+        googleChannel = DatagramChannel.open();
+        googleChannel.bind(null);
+        tcpChannel = ServerSocketChannel.open();
+        tcpChannel.bind(new InetSocketAddress(config.getClientPort()));
+        tcpConnectionLimit = new Semaphore(config.getMaxTcpConnections());
+    }
+
+    // A virtual thread per task where the JVM has them (Java 21), otherwise a platform thread per task.
+    // Found by reflection so the server still builds and runs on older JVMs
+    private static ExecutorService newQueryExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available, using a platform thread per request");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Worker running driver: receive requests until stopped, each one handled on its own thread
+    public void run() {
+        Thread replyReader = new Thread(this::receiveFromGoogle, "dns-upstream-reader");
+        replyReader.setDaemon(true);
+        replyReader.start();
+        Thread tcpAcceptor = new Thread(this::acceptTcp, "dns-tcp-acceptor");
+        tcpAcceptor.setDaemon(true);
+        tcpAcceptor.start();
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(config.getUdpPayloadSize());
+        ByteBuffer limitedReply = ByteBuffer.allocateDirect(config.getUdpPayloadSize());
+        while (isRunning) {
+            try {
+                receiveBuffer.clear();
+                SocketAddress client = clientChannel.receive(receiveBuffer);
+                if (rateLimiter != null) {
+                    int verdict = rateLimiter.check(client);
+                    if (verdict == RateLimiter.TRUNCATE && RateLimiter.writeTruncated(receiveBuffer, limitedReply)) {
+                        clientChannel.send(limitedReply, client);
+                    }
+                    if (verdict != RateLimiter.ALLOW) {
+                        continue;
+                    }
+                }
+                submit(packetBytes(receiveBuffer), client, null);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                System.out.println("IO Exception: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            googleChannel.close();
+            for (TcpUpstream tcpUpstream : tcpUpstreams.values()) {
+                tcpUpstream.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+    }
+
+    // Stop the worker from another thread. Closing the client sockets wakes the receiving threads
+    public void stop() {
+        isRunning = false;
+        try {
+            clientChannel.close();
+            tcpChannel.close();
+        } catch (IOException e) {
+            System.out.println("IO Exception: " + e.getMessage());
+        }
+    }
+
+    // Handle a request on a task of its own, or drop it if maxQueriesInFlight are already being handled
+    private void submit(byte[] data, SocketAddress client, TcpConnection connection) {
+        if (!inFlightLimit.tryAcquire()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                handleRequest(data, client, connection);
+            } catch (IOException | RuntimeException e) {
+                if (log.isDebug()) {
+                    log.debug("Bad request from " + client + ": " + e.getMessage());
+                }
+            } finally {
+                inFlightLimit.release();
+            }
+        });
+    }
+
+    // Runs on its own thread: give every client connecting over TCP a task reading its requests
+    private void acceptTcp() {
+        while (tcpChannel.isOpen()) {
+            try {
+                SocketChannel channel = tcpChannel.accept();
+                if (!tcpConnectionLimit.tryAcquire()) {
+                    channel.close();
+                    continue;
+                }
+                TcpConnection connection = new TcpConnection(channel);
+                executor.execute(() -> serveTcp(connection));
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                System.out.println("IO Exception: " + e.getMessage());
+            }
+        }
+    }
+
+    // Read requests from a client's TCP connection until it closes. Blocking reads have no timeout, so idle
+    // connections are closed by a timer instead
+    private void serveTcp(TcpConnection connection) {
+        ScheduledFuture<?> idleCheck = idleTimer.scheduleWithFixedDelay(() -> {
+            if (System.nanoTime() / 1_000_000 - connection.getLastActiveMillis() >= config.getTcpIdleMillis()) {
+                connection.close();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        try {
+            while (isRunning) {
+                submit(connection.readBlocking(), connection.getRemote(), connection);
+            }
+        } catch (IOException e) {
+            // Closed by the client, or for being idle
+        } finally {
+            idleCheck.cancel(false);
+            connection.close();
+            tcpConnectionLimit.release();
+        }
+    }
+
+    // Answer a request from the cache, or forward it to Google and wait for the reply.
+    // connection is the client's TCP connection, null for a request over UDP
+    private void handleRequest(byte[] data, SocketAddress client, TcpConnection connection) throws IOException {
+        long start = System.nanoTime();
+        metrics.query(connection != null);
+        DNSMessage message = server.decode(data);
+        if (log.isDebug()) {
+            log.debug("Request from " + client + ": " + message);
+        }
+        DNSRecord opt = message.getOpt();
+        if (opt != null && opt.ednsVersion() != 0) {
+            // Only EDNS version 0 exists, a client asking for a later one is told so (RFC 6891)
+            DNSMessage response = DNSMessage.buildErrorResponse(message, DNSRecord.RCODE_BADVERS & 0xf);
+            response.setOpt(DNSRecord.buildOpt(config.getUdpPayloadSize(), DNSRecord.RCODE_BADVERS));
+            sendResponse(message, response, client, connection);
+            answered(message, client, connection, DNSRecord.RCODE_BADVERS & 0xf, false, start);
+            return;
+        }
+        DNSMessage local = server.answerLocally(message);
+        if (local != null) {
+            sendResponse(message, local, client, connection);
+            answered(message, client, connection, local.getHeader().getRCode(), true, start);
+            return;
+        }
+        ArrayList<DNSRecord> outputAnswers = new ArrayList<>();
+        DNSQuestion missed = null;
+        CacheEntry hit = null;
+        for (DNSQuestion question : message.getQuestions()) {
+            hit = server.lookup(question);
+            if (hit != null) {
+                Collections.addAll(outputAnswers, hit.getAnswers());
+                refreshIfPopular(question, hit);
+            } else if (missed == null) {
+                missed = question;
+            }
+        }
+        if (missed == null && message.getQuestions().length == 1) {
+            int payloadSize = config.getUdpPayloadSize();
+            BufferPool buffers = connection != null ? tcpBuffers : udpBuffers;
+            int maxSize = connection != null ? TcpConnection.MAX_MESSAGE : message.udpPayloadSize(payloadSize);
+            ByteBuffer reply = buffers.acquire();
+            try {
+                if (!hit.writeResponse(message, reply, maxSize, payloadSize)) {
+                    sendResponse(message, DNSMessage.buildResponse(message, hit.getAnswers(), hit.getAuthority(), hit.getRCode()), client, connection);
+                } else if (connection != null) {
+                    connection.write(reply);
+                } else {
+                    clientChannel.send(reply, client);
+                }
+            } finally {
+                buffers.release(reply);
+            }
+            answered(message, client, connection, hit.getRCode(), true, start);
+            return;
+        } else if (missed == null) {
+            sendResponse(message, DNSMessage.buildResponse(message, outputAnswers.toArray(new DNSRecord[outputAnswers.size()])), client, connection);
+            answered(message, client, connection, 0, true, start);
+            return;
+        }
+        CacheEntry stale = server.lookupStale(missed);
+        DNSMessage googleMessage = stale == null ? ask(missed) : askWithin(missed, start / 1_000_000 + config.getClientResponseMillis());
+        int upstreamRCode = googleMessage == null ? 2 : googleMessage.getHeader().getRCode();
+        if (stale != null && (upstreamRCode == 2 || upstreamRCode == 5)) {
+            // Slow, timed out or failed, while there is an expired answer to give
+            sendStale(message, stale, outputAnswers, client, connection, start);
+            return;
+        }
+        if (googleMessage == null) {
+            // Google timed out
+            sendResponse(message, DNSMessage.buildErrorResponse(message, 2), client, connection);
+            metrics.serverFailure();
+            answered(message, client, connection, 2, false, start);
+            return;
+        }
+        Collections.addAll(outputAnswers, googleMessage.getAnswers());
+        // Cached by the task that asked upstream, here only the response is built
+        DNSRecord[] authority = DNSServer.authorityOf(googleMessage);
+        sendResponse(message, DNSMessage.buildResponse(message, outputAnswers.toArray(new DNSRecord[outputAnswers.size()]), authority,
+                googleMessage.getHeader().getRCode()), client, connection);
+        answered(message, client, connection, googleMessage.getHeader().getRCode(), false, start);
+    }
+
+    // Ask the question on a task of its own and wait for the reply until the client response deadline, null if it
+    // hasn't come by then. The task goes on after that, and a reply that comes later is still cached
+    private DNSMessage askWithin(DNSQuestion question, long until) {
+        CompletableFuture<DNSMessage> reply = CompletableFuture.supplyAsync(() -> {
+            try {
+                return ask(question);
+            } catch (IOException e) {
+                return null;
+            }
+        }, executor);
+        try {
+            return reply.get(Math.max(0, until - System.nanoTime() / 1_000_000), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Answer a request from an expired cache entry, every record with a TTL of staleAnswerTtl (RFC 8767). A response
+    // that can't be patched from the encoded one is built from the records, whose TTLs have run down to 0
+    private void sendStale(DNSMessage message, CacheEntry stale, ArrayList<DNSRecord> outputAnswers, SocketAddress client,
+                           TcpConnection connection, long start) throws IOException {
+        int payloadSize = config.getUdpPayloadSize();
+        BufferPool buffers = connection != null ? tcpBuffers : udpBuffers;
+        int maxSize = connection != null ? TcpConnection.MAX_MESSAGE : message.udpPayloadSize(payloadSize);
+        ByteBuffer reply = buffers.acquire();
+        try {
+            if (!stale.writeStaleResponse(message, reply, maxSize, payloadSize, config.getStaleAnswerTtl())) {
+                Collections.addAll(outputAnswers, stale.getAnswers());
+                sendResponse(message, DNSMessage.buildResponse(message, outputAnswers.toArray(new DNSRecord[outputAnswers.size()]),
+                        stale.getAuthority(), stale.getRCode()), client, connection);
+            } else if (connection != null) {
+                connection.write(reply);
+            } else {
+                clientChannel.send(reply, client);
+            }
+        } finally {
+            buffers.release(reply);
+        }
+        metrics.staleAnswer();
+        answered(message, client, connection, stale.getRCode(), true, start);
+    }
+
+    // Count a request as answered, start being when it arrived, and log it
+    private void answered(DNSMessage request, SocketAddress client, TcpConnection connection, int rCode, boolean fromCache, long start) {
+        long latency = System.nanoTime() - start;
+        metrics.answered(fromCache, latency);
+        DNSQuestion[] questions = request.getQuestions();
+        log.query(client, questions.length == 0 ? null : questions[0], connection != null, rCode, fromCache, latency);
+    }
+
+    // Ask Google the question and wait for the reply, null if it doesn't come within the timeout.
+    // If the question is already being asked the reply to that query is waited on instead. The task that sends the
+    // query caches the reply, so waiters only build their responses from it.
+    // The task that sends the query also retries it on another upstream when an attempt times out, and hedges it
+    // when hedging is on. A Server Failure or Refused reply is retried straight away by the thread that reads it.
+    // When resolving iteratively the task resolves the question itself instead
+    private DNSMessage ask(DNSQuestion question) throws IOException {
+        long deadline = System.nanoTime() / 1_000_000 + timeoutMillis;
+        PendingQuery query;
+        // Random IDs make replies harder to spoof than a counter, and no two queries in flight can share one
+        do {
+            query = new PendingQuery(idGenerator.nextInt(0x10000), question, deadline);
+        } while (pending.putIfAbsent(query.getUpstreamId(), query) != null);
+        query.setReply(new CompletableFuture<>());
+        PendingQuery existing = inFlight.putIfAbsent(question, query);
+        if (existing != null) {
+            pending.remove(query.getUpstreamId(), query);
+            return await(existing, deadline);
+        }
+        int upstreamId = query.getUpstreamId();
+        metrics.upstreamQueryStarted();
+        try {
+            if (resolver != null) {
+                // Resolved on this task's own thread, then handed to anyone waiting on the same question
+                DNSMessage reply = resolver.resolve(question, deadline);
+                query.getReply().complete(reply);
+                return reply;
+            }
+            query.setData(DNSMessage.buildQuery(question, upstreamId, config.getUdpPayloadSize()).getRawData());
+            PendingQuery.Attempt attempt = sendAttempt(query, null, config.isHedging());
+            while (true) {
+                long checkAt = Math.min(deadline, attempt.getCheckAt());
+                DNSMessage reply = await(query, checkAt);
+                if (reply != null || query.getReply().isDone() || checkAt == deadline) {
+                    return reply;
+                }
+                if (attempt.getCheckAt() > checkAt) {
+                    // Moved over to TCP after a truncated reply while we waited
+                    continue;
+                }
+                boolean canRetry = query.attemptCount() < config.getMaxAttempts();
+                if (attempt.isHedgeDue()) {
+                    attempt.hedged();
+                    if (canRetry) {
+                        sendAttempt(query, attempt.getUpstream(), false);
+                    }
+                } else {
+                    if (!attempt.hasReplied()) {
+                        upstreams.recordFailure(attempt.getUpstream());
+                    }
+                    PendingQuery.Attempt last = query.lastAttempt();
+                    if (last != attempt) {
+                        // A hedge, or a retry after a failure reply, is already out: wait on that one instead
+                        attempt = last;
+                    } else if (canRetry) {
+                        attempt = sendAttempt(query, attempt.getUpstream(), false);
+                    } else if (attempt.getCheckAt() <= System.nanoTime() / 1_000_000) {
+                        // Out of attempts: wait out the rest of the timeout in case a late reply still comes
+                        attempt = new PendingQuery.Attempt(query, attempt.getUpstream(), 0, deadline);
+                    }
+                }
+            }
+        } finally {
+            // Whoever sent the query caches the reply, once for everyone waiting on it, or gives up on it for them.
+            // It is cached before the question stops being in flight, so a miss in between doesn't ask again
+            query.getReply().complete(null);
+            DNSMessage reply = query.getReply().getNow(null);
+            if (reply != null) {
+                try {
+                    server.cacheReply(question, reply);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Caching reply for " + question.getqName() + " failed: " + e.getMessage());
+                }
+            }
+            pending.remove(upstreamId, query);
+            inFlight.remove(question, query);
+            metrics.upstreamQueryFinished();
+        }
+    }
+
+    // Send the query to the best upstream other than exclude
+    private PendingQuery.Attempt sendAttempt(PendingQuery query, UpstreamPool.Upstream exclude, boolean hedge) throws IOException {
+        UpstreamPool.Upstream upstream = upstreams.select(exclude);
+        long now = System.nanoTime() / 1_000_000;
+        long hedgeAt = hedge ? now + upstreams.hedgeDelayMillis(upstream) : 0;
+        PendingQuery.Attempt attempt = query.addAttempt(upstream, hedgeAt, now + config.getAttemptTimeoutMillis());
+        googleChannel.send(ByteBuffer.wrap(query.getData()), upstream.getAddress());
+        return attempt;
+    }
+
+    // Wait for the reply to a query until the given time, null if it hasn't come by then or the query was given up on
+    private static DNSMessage await(PendingQuery query, long until) {
+        try {
+            return query.getReply().get(Math.max(0, until - System.nanoTime() / 1_000_000), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Fetch a popular entry again before it expires on a task of its own, if the refresh budget allows
+    private void refreshIfPopular(DNSQuestion question, CacheEntry entry) {
+        if (!entry.needsRefresh(config.getRefreshMinHits(), config.getRefreshFraction()) || inFlight.containsKey(question)) {
+            return;
+        }
+        if (!entry.startRefresh()) {
+            return;
+        }
+        if (!server.tryStartRefresh()) {
+            entry.endRefresh();
+            return;
+        }
+        executor.execute(() -> {
+            boolean answered = false;
+            try {
+                answered = ask(question) != null;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Refresh of " + question.getqName() + " failed: " + e.getMessage());
+            } finally {
+                entry.endRefresh();
+                server.endRefresh(answered);
+            }
+        });
+    }
+
+    // Runs on its own thread: hand every reply from Google to the task waiting on it
+    private void receiveFromGoogle() {
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(TcpConnection.MAX_MESSAGE);
+        while (googleChannel.isOpen()) {
+            try {
+                receiveBuffer.clear();
+                SocketAddress from = googleChannel.receive(receiveBuffer);
+                handleReply(packetBytes(receiveBuffer), from, false);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                if (log.isDebug()) {
+                    log.debug("Bad reply from Google: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Hand a reply to the task waiting on it, on the thread that read it.
+    // A truncated reply over UDP is not used: the query is sent to the same upstream again over TCP
+    private void handleReply(byte[] data, SocketAddress from, boolean viaTcp) throws IOException {
+        UpstreamPool.Upstream upstream = upstreams.find(from);
+        if (upstream == null) {
+            if (log.isDebug()) {
+                log.debug("Ignoring reply from unexpected address " + from);
+            }
+            return;
+        }
+        DNSMessage googleMessage = server.decode(data);
+        PendingQuery query = pending.get(googleMessage.getHeader().getId());
+        PendingQuery.Attempt attempt = query == null ? null : query.attemptTo(upstream);
+        if (attempt == null || !query.matches(googleMessage)) {
+            if (log.isDebug()) {
+                log.debug("Ignoring reply from " + from + " with no matching request");
+            }
+            return;
+        }
+        if (log.isDebug()) {
+            log.debug("Reply from " + from + ": " + googleMessage);
+        }
+        if (!viaTcp && googleMessage.getHeader().getTc() == 1) {
+            // Not a failure: the attempt carries on over TCP, with a deadline of its own in place of the UDP one
+            attempt.retriedOverTcp(config.getAttemptTimeoutMillis());
+            tcpUpstreams.computeIfAbsent(upstream, u -> new TcpUpstream(u, config.getAttemptTimeoutMillis(), (tcpFrom, reply) -> {
+                try {
+                    handleReply(reply, tcpFrom.getAddress(), true);
+                } catch (IOException | RuntimeException e) {
+                    if (log.isDebug()) {
+                        log.debug("Bad reply from " + tcpFrom.getAddress() + ": " + e.getMessage());
+                    }
+                }
+            })).send(query.getData());
+            return;
+        }
+        attempt.replied();
+        int rCode = googleMessage.getHeader().getRCode();
+        if (rCode == 2 || rCode == 5) {
+            // Server Failure or Refused says more about the upstream than the name, so try another one if we can,
+            // without waiting for the attempt to time out. The task waiting on the query waits on the new attempt
+            upstreams.recordFailure(upstream);
+            if (query.attemptCount() < config.getMaxAttempts()) {
+                sendAttempt(query, upstream, false);
+                return;
+            }
+        } else {
+            upstreams.recordAnswer(query, upstream);
+        }
+        query.getReply().complete(googleMessage);
+    }
+
+    private static byte[] packetBytes(ByteBuffer buffer) {
+        buffer.flip();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    // Send the response to a request over the client's TCP connection, or over UDP when connection is null,
+    // truncated if it is larger than the client can take. A client using EDNS gets our OPT record with it.
+    // The response is encoded straight into a pooled buffer
+    private void sendResponse(DNSMessage request, DNSMessage response, SocketAddress client, TcpConnection connection) throws IOException {
+        boolean edns = request.getOpt() != null;
+        if (edns && response.getOpt() == null) {
+            response.setOpt(DNSRecord.buildOpt(config.getUdpPayloadSize(), 0));
+        }
+        if (log.isDebug()) {
+            log.debug("Response to " + client + ": " + response);
+        }
+        BufferPool buffers = connection != null ? tcpBuffers : udpBuffers;
+        int maxSize = connection != null ? TcpConnection.MAX_MESSAGE : request.udpPayloadSize(config.getUdpPayloadSize());
+        ByteBuffer output = buffers.acquire();
+        try {
+            if (!server.encode(response, output, maxSize)) {
+                DNSMessage truncated = DNSMessage.buildTruncatedResponse(response);
+                if (edns) {
+                    truncated.setOpt(DNSRecord.buildOpt(config.getUdpPayloadSize(), 0));
+                }
+                if (!server.encode(truncated, output, maxSize)) {
+                    return;
+                }
+            }
+            output.flip();
+            if (connection != null) {
+                connection.write(output);
+            } else {
+                clientChannel.send(output, client);
+            }
+        } finally {
+            buffers.release(output);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package DNSResolver;
+
+import java.util.function.Consumer;
+
+// The cache entries of one shard ordered by when they expire, so expired entries can be removed as their time comes
+// rather than only when someone asks for them again.
+// A hierarchical timing wheel: LEVELS wheels of SLOTS slots each, a slot being a doubly linked list threaded through
+// the entries themselves. Level 0 has a slot for each of the next SLOTS ticks, level 1 a slot for each SLOTS ticks
+// after that, and so on, so four levels of 64 one second ticks cover 194 days. Whenever a level's slot comes due,
+// its entries are moved down to the finer levels, and entries in a level 0 slot whose tick has come are expired.
+// Adding or removing an entry is O(1), and so is expiring it, as each entry moves down at most LEVELS times.
+// Entries further out than the wheels reach are parked in the last slot and moved around again until their time.
+// An entry kept to be served stale is due when its stale window ends rather than when it expires.
+// Not thread safe, the shard's lock guards it.
+public class TimingWheel {
+    // A tick is a second, TTLs being whole seconds
+    static final long TICK_MILLIS = 1000;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    // First entry of each slot's list, level by level
+    private CacheEntry[] heads = new CacheEntry[LEVELS * SLOTS];
+
+    // The next tick to expire. Every entry expiring before it has been handed out
+    private long current;
+
+    TimingWheel(long nowMillis) {
+        current = nowMillis / TICK_MILLIS;
+    }
+
+    // The tick an entry leaving the cache at this time is due in: the first tick at or after it
+    private static long tickOf(long removeAtMillis) {
+        return (removeAtMillis + TICK_MILLIS - 1) / TICK_MILLIS;
+    }
+
+    void add(CacheEntry entry) {
+        long tick = Math.max(tickOf(entry.getRemoveAt()), current);
+        long delta = tick - current;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        if (delta >= 1L << (SLOT_BITS * LEVELS)) {
+            tick = current + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+        int slot = level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        CacheEntry head = heads[slot];
+        entry.wheelSlot = slot;
+        entry.wheelPrevious = null;
+        entry.wheelNext = head;
+        if (head != null) {
+            head.wheelPrevious = entry;
+        }
+        heads[slot] = entry;
+    }
+
+    // Take an entry out, e.g. when it is replaced or evicted. Does nothing for an entry not in the wheel
+    void remove(CacheEntry entry) {
+        if (entry.wheelSlot < 0) {
+            return;
+        }
+        if (entry.wheelPrevious != null) {
+            entry.wheelPrevious.wheelNext = entry.wheelNext;
+        } else {
+            heads[entry.wheelSlot] = entry.wheelNext;
+        }
+        if (entry.wheelNext != null) {
+            entry.wheelNext.wheelPrevious = entry.wheelPrevious;
+        }
+        entry.wheelSlot = -1;
+        entry.wheelPrevious = null;
+        entry.wheelNext = null;
+    }
+
+    // Move the wheels forward to the time, handing every entry that has expired by then to expire, already taken out
+    void advance(long nowMillis, Consumer<CacheEntry> expire) {
+        long now = nowMillis / TICK_MILLIS;
+        for (; current <= now; current++) {
+            // Move the slots coming due on the coarser levels down, from the coarsest, so an entry can fall through
+            // several levels in one tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((current & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    int slot = level * SLOTS + (int) ((current >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                    CacheEntry entry = takeSlot(slot);
+                    while (entry != null) {
+                        CacheEntry next = entry.wheelNext;
+                        entry.wheelNext = null;
+                        add(entry);
+                        entry = next;
+                    }
+                }
+            }
+            CacheEntry entry = takeSlot((int) (current & (SLOTS - 1)));
+            while (entry != null) {
+                CacheEntry next = entry.wheelNext;
+                entry.wheelNext = null;
+                if (tickOf(entry.getRemoveAt()) <= current) {
+                    expire.accept(entry);
+                } else {
+                    // Parked beyond the wheels' reach, go around again
+                    add(entry);
+                }
+                entry = next;
+            }
+        }
+    }
+
+    // Empty a slot, returning its old list with the entries marked as out of the wheel
+    private CacheEntry takeSlot(int slot) {
+        CacheEntry first = heads[slot];
+        heads[slot] = null;
+        for (CacheEntry entry = first; entry != null; entry = entry.wheelNext) {
+            entry.wheelSlot = -1;
+            entry.wheelPrevious = null;
+        }
+        return first;
+    }
+}
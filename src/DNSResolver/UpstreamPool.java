@@ -0,0 +1,281 @@
+package DNSResolver;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// The upstream resolvers cache misses are forwarded to, and what has been learned about each of them.
+// Every upstream keeps a smoothed round trip time and its variation, updated the way TCP does (RFC 6298), and
+// queries go to the healthy upstream with the lowest smoothed RTT. Upstreams not measured yet are tried first, and
+// one query in EXPLORE_ONE_IN goes to a random healthy upstream so the others' RTTs don't go stale.
+// An upstream that fails ejectAfterFailures queries in a row is ejected for ejectMillis. After that it gets a single
+// query to recheck it: if that fails too it is ejected again for twice as long, up to MAX_EJECT_MILLIS.
+// The pool is shared by every worker, so everything that reads or changes an upstream is synchronized.
+public class UpstreamPool {
+    private static final int EXPLORE_ONE_IN = 20;
+    private static final long MAX_EJECT_MILLIS = 60_000;
+
+    // Recent RTTs kept per upstream for the hedging percentile, which is recomputed every PERCENTILE_EVERY samples
+    private static final int SAMPLES = 64;
+    private static final int PERCENTILE_EVERY = 16;
+
+    // Hedge no sooner than this, however fast the upstream usually is
+    private static final long MIN_HEDGE_MILLIS = 5;
+
+    private Upstream[] upstreams;
+    private int ejectAfterFailures;
+    private long ejectMillis;
+    private double hedgePercentile;
+    private long attemptTimeoutMillis;
+    private Random random = new Random();
+
+    public UpstreamPool(ServerConfig config) {
+        List<InetSocketAddress> addresses = config.getUpstreams();
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("At least one upstream is needed");
+        }
+        upstreams = new Upstream[addresses.size()];
+        for (int i = 0; i < upstreams.length; i++) {
+            upstreams[i] = new Upstream(addresses.get(i));
+        }
+        ejectAfterFailures = config.getEjectAfterFailures();
+        ejectMillis = config.getEjectMillis();
+        hedgePercentile = config.getHedgePercentile();
+        attemptTimeoutMillis = config.getAttemptTimeoutMillis();
+    }
+
+    public Upstream[] getUpstreams() {
+        return upstreams;
+    }
+
+    // Replace the source of exploring picks, so a test can know which upstream a query goes to
+    synchronized void setRandom(Random random) {
+        this.random = random;
+    }
+
+    // The upstream for the next query, other than exclude (the one that was just tried) when there is a choice.
+    // When every other upstream is ejected, the one whose ejection ends first is used rather than none
+    public synchronized Upstream select(Upstream exclude) {
+        long now = System.nanoTime() / 1_000_000;
+        Upstream best = null;
+        int healthy = 0;
+        for (Upstream upstream : upstreams) {
+            if (upstream != exclude && upstream.isAvailable(now)) {
+                healthy++;
+                if (best == null || upstream.srtt < best.srtt) {
+                    best = upstream;
+                }
+            }
+        }
+        if (healthy > 1 && random.nextInt(EXPLORE_ONE_IN) == 0) {
+            do {
+                best = upstreams[random.nextInt(upstreams.length)];
+            } while (best == exclude || !best.isAvailable(now));
+        }
+        if (best == null) {
+            for (Upstream upstream : upstreams) {
+                if (upstream != exclude && (best == null || upstream.ejectedUntil < best.ejectedUntil)) {
+                    best = upstream;
+                }
+            }
+        }
+        if (best == null) {
+            best = exclude;
+        }
+        if (best.ejectedUntil != 0 && best.ejectedUntil <= now) {
+            // Past its ejection: this query rechecks it, and no other goes there until the recheck has had time to
+            // answer. If it doesn't, the next query rechecks it again
+            best.probing = true;
+            best.ejectedUntil = now + attemptTimeoutMillis;
+        }
+        best.queries++;
+        return best;
+    }
+
+    // The upstream a reply came from, null if it isn't one of ours
+    public Upstream find(SocketAddress address) {
+        for (Upstream upstream : upstreams) {
+            if (upstream.address.equals(address)) {
+                return upstream;
+            }
+        }
+        return null;
+    }
+
+    // A query was answered by one of the upstreams it was sent to. Every other upstream still working on it has
+    // taken at least as long as it has been waiting, which counts as a sample for it too: its reply will come after
+    // the query is finished, too late to be measured.
+    // As in TCP (Karn's algorithm), no RTT is taken when the query went to the winner more than once, since there
+    // is no telling which send the reply is for
+    public synchronized void recordAnswer(PendingQuery query, Upstream winner) {
+        long now = System.nanoTime();
+        PendingQuery.Attempt answered = null;
+        boolean ambiguous = false;
+        for (PendingQuery.Attempt attempt : query.getAttempts()) {
+            Upstream upstream = attempt.getUpstream();
+            if (upstream == winner) {
+                ambiguous = answered != null;
+                answered = attempt;
+            } else {
+                double waited = (now - attempt.getSentNanos()) / 1_000_000.0;
+                if (upstream.samples == 0 || waited > upstream.srtt) {
+                    addSample(upstream, waited);
+                }
+            }
+        }
+        if (ambiguous) {
+            healthy(winner);
+        } else {
+            recordSuccess(winner, now - answered.getSentNanos());
+        }
+    }
+
+    // An upstream answered after rttNanos
+    public synchronized void recordSuccess(Upstream upstream, long rttNanos) {
+        upstream.rtt.record(rttNanos);
+        addSample(upstream, rttNanos / 1_000_000.0);
+        healthy(upstream);
+    }
+
+    // An upstream answered, so it is healthy whatever happened before
+    private void healthy(Upstream upstream) {
+        upstream.failures = 0;
+        upstream.ejectedUntil = 0;
+        upstream.ejections = 0;
+        upstream.probing = false;
+    }
+
+    private void addSample(Upstream upstream, double rtt) {
+        if (upstream.samples == 0) {
+            upstream.srtt = rtt;
+            upstream.rttvar = rtt / 2;
+        } else {
+            upstream.rttvar = 0.75 * upstream.rttvar + 0.25 * Math.abs(upstream.srtt - rtt);
+            upstream.srtt = 0.875 * upstream.srtt + 0.125 * rtt;
+        }
+        upstream.recent[(int) (upstream.samples % SAMPLES)] = rtt;
+        upstream.samples++;
+        if (upstream.samples % PERCENTILE_EVERY == 0) {
+            double[] sorted = Arrays.copyOf(upstream.recent, (int) Math.min(upstream.samples, SAMPLES));
+            Arrays.sort(sorted);
+            upstream.percentile = sorted[(int) Math.min(sorted.length - 1, Math.floor(hedgePercentile * sorted.length))];
+        }
+    }
+
+    // An upstream didn't answer in time, or answered with Server Failure or Refused
+    public synchronized void recordFailure(Upstream upstream) {
+        upstream.totalFailures++;
+        long now = System.nanoTime() / 1_000_000;
+        if (upstream.ejectedUntil > now && !upstream.probing) {
+            // Already ejected, this is a query that was sent before the ejection
+            return;
+        }
+        upstream.failures++;
+        if (upstream.probing || upstream.failures >= ejectAfterFailures) {
+            long backoff = Math.min(MAX_EJECT_MILLIS, ejectMillis << Math.min(upstream.ejections, 16));
+            upstream.ejectedUntil = now + backoff;
+            upstream.ejections++;
+            upstream.failures = 0;
+            upstream.probing = false;
+            System.out.println("Ejected upstream " + upstream.address + " for " + backoff + "ms");
+        }
+    }
+
+    // How long to wait on the upstream before hedging with another one: the hedgePercentile of its recent RTTs,
+    // or twice its smoothed RTT until there are enough samples
+    public synchronized long hedgeDelayMillis(Upstream upstream) {
+        double delay;
+        if (upstream.samples >= PERCENTILE_EVERY) {
+            delay = upstream.percentile;
+        } else if (upstream.samples > 0) {
+            delay = 2 * upstream.srtt;
+        } else {
+            delay = attemptTimeoutMillis / 2.0;
+        }
+        return Math.max(MIN_HEDGE_MILLIS, (long) Math.ceil(delay));
+    }
+
+    // What each upstream shows over JMX, see Metrics. RTTs are in microseconds
+    public interface UpstreamMXBean {
+        String getName();
+        double getSrtt();
+        long getQueries();
+        long getTotalFailures();
+        boolean isEjected();
+        long getRttP50Micros();
+        long getRttP99Micros();
+    }
+
+    // One upstream resolver and its statistics
+    public static class Upstream implements UpstreamMXBean {
+        private InetSocketAddress address;
+
+        // Smoothed RTT and RTT variation in milliseconds
+        private double srtt = 0;
+        private double rttvar = 0;
+
+        // Ring of recent RTTs, how many have ever been recorded, and the hedging percentile of the ring
+        private double[] recent = new double[SAMPLES];
+        private long samples = 0;
+        private double percentile = 0;
+
+        // Failures since the last success, and how many times in a row the upstream has been ejected
+        private int failures = 0;
+        private int ejections = 0;
+
+        // Time in milliseconds (System.nanoTime based) the current ejection ends, 0 when not ejected
+        private long ejectedUntil = 0;
+
+        // Set once an ejected upstream is being rechecked, so a single failure ejects it again
+        private boolean probing = false;
+
+        // Counters for watching the pool. The getters don't lock, so they are only approximate while queries run
+        private long queries = 0;
+        private long totalFailures = 0;
+
+        // Every RTT measured, for the metrics. Unlike srtt it isn't smoothed, so it shows the tail
+        private Histogram rtt = new Histogram();
+
+        Upstream(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        private boolean isAvailable(long now) {
+            return ejectedUntil <= now;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+        public String getName() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+        public double getSrtt() {
+            return srtt;
+        }
+        public long getQueries() {
+            return queries;
+        }
+        public long getTotalFailures() {
+            return totalFailures;
+        }
+        public boolean isEjected() {
+            return ejectedUntil != 0;
+        }
+        public Histogram getRtt() {
+            return rtt;
+        }
+        public long getRttP50Micros() {
+            return rtt.percentile(0.5) / 1000;
+        }
+        public long getRttP99Micros() {
+            return rtt.percentile(0.99) / 1000;
+        }
+
+        public String toString() {
+            return address + " srtt " + Math.round(srtt) + "ms";
+        }
+    }
+}
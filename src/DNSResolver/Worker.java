@@ -0,0 +1,7 @@
+package DNSResolver;
+
+// One of the loops a DNSServer runs to serve clients, see ServerWorker and ThreadPerQueryWorker
+public interface Worker extends Runnable {
+    // Stop the worker from another thread, run() returns soon after
+    void stop();
+}
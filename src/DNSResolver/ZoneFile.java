@@ -0,0 +1,160 @@
+package DNSResolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads records from a zone file in the master file format of RFC 1035 section 5, e.g.
+//   $ORIGIN example.com.
+//   $TTL 300
+//   @        IN SOA  ns1 hostmaster 1 7200 900 1209600 300
+//   @        IN NS   ns1
+//   www      IN A    192.0.2.1
+//   alias    60 IN CNAME www
+// A line holds one record: owner, optional TTL and class, type, then the data. An owner left blank (the line starts
+// with whitespace) repeats the previous one, '@' is the origin, and names without a trailing dot are relative to it.
+// Comments start with ';'. Only class IN and the types A, AAAA, NS, CNAME, PTR, MX, TXT and SOA are understood;
+// records spanning lines with parentheses and $INCLUDE are not.
+public class ZoneFile {
+    private DomainName origin;
+    private int defaultTtl = 3600;
+    private DomainName lastOwner;
+    private ArrayList<DNSRecord> records = new ArrayList<>();
+
+    private ZoneFile(DomainName origin) {
+        this.origin = origin;
+    }
+
+    // Every record in the file. origin is where relative names start until the file sets its own $ORIGIN
+    public static List<DNSRecord> read(Path path, DomainName origin) throws IOException {
+        ZoneFile zone = new ZoneFile(origin);
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            try {
+                zone.parseLine(line);
+            } catch (IllegalArgumentException | UnknownHostException e) {
+                throw new IOException(path + " line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return zone.records;
+    }
+
+    private void parseLine(String line) throws UnknownHostException {
+        int comment = line.indexOf(';');
+        if (comment >= 0) {
+            line = line.substring(0, comment);
+        }
+        if (line.isBlank()) {
+            return;
+        }
+        boolean ownerBlank = Character.isWhitespace(line.charAt(0));
+        String[] fields = line.trim().split("\\s+");
+        if (fields[0].equalsIgnoreCase("$ORIGIN")) {
+            origin = DomainName.parse(fields[1]);
+            return;
+        }
+        if (fields[0].equalsIgnoreCase("$TTL")) {
+            defaultTtl = Integer.parseInt(fields[1]);
+            return;
+        }
+        int next = 0;
+        DomainName owner;
+        if (ownerBlank) {
+            if (lastOwner == null) {
+                throw new IllegalArgumentException("no owner for the first record");
+            }
+            owner = lastOwner;
+        } else {
+            owner = name(fields[next++]);
+        }
+        lastOwner = owner;
+        int ttl = defaultTtl;
+        int type = -1;
+        // TTL and class may come in either order before the type
+        while (next < fields.length && type < 0) {
+            String field = fields[next++];
+            if (Character.isDigit(field.charAt(0))) {
+                ttl = Integer.parseInt(field);
+            } else if (!field.equalsIgnoreCase("IN")) {
+                type = DNSRecord.typeFromName(field);
+                if (type < 0) {
+                    throw new IllegalArgumentException("unknown type or class " + field);
+                }
+            }
+        }
+        if (type < 0) {
+            throw new IllegalArgumentException("no type");
+        }
+        String[] data = new String[fields.length - next];
+        System.arraycopy(fields, next, data, 0, data.length);
+        records.add(DNSRecord.build(owner, type, ttl, encodeData(type, data)));
+    }
+
+    // The record data in wire format, names uncompressed
+    private byte[] encodeData(int type, String[] data) throws UnknownHostException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        switch (type) {
+            case DNSRecord.TYPE_A:
+            case DNSRecord.TYPE_AAAA: {
+                byte[] address = InetAddress.getByName(field(data, 0)).getAddress();
+                if (address.length != (type == DNSRecord.TYPE_A ? 4 : 16)) {
+                    throw new IllegalArgumentException("wrong address family for " + DNSRecord.typeName(type) + ": " + data[0]);
+                }
+                output.writeBytes(address);
+                break;
+            }
+            case DNSRecord.TYPE_NS:
+            case DNSRecord.TYPE_CNAME:
+            case DNSRecord.TYPE_PTR:
+                name(field(data, 0)).writeTo(output);
+                break;
+            case DNSRecord.TYPE_MX:
+                DNSRecord.writeAnswer(2, output, Integer.parseInt(field(data, 0)));
+                name(field(data, 1)).writeTo(output);
+                break;
+            case DNSRecord.TYPE_SOA:
+                name(field(data, 0)).writeTo(output);
+                name(field(data, 1)).writeTo(output);
+                for (int i = 2; i < 7; i++) {
+                    DNSRecord.writeAnswer(4, output, (int) Long.parseLong(field(data, i)));
+                }
+                break;
+            case DNSRecord.TYPE_TXT:
+                // Each field is a string of its own, quotes removed. Spaces inside quotes aren't kept together
+                for (String text : data) {
+                    byte[] bytes = text.replace("\"", "").getBytes(StandardCharsets.UTF_8);
+                    output.write(Math.min(255, bytes.length));
+                    output.write(bytes, 0, Math.min(255, bytes.length));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("type " + DNSRecord.typeName(type) + " is not supported");
+        }
+        return output.toByteArray();
+    }
+
+    private static String field(String[] data, int index) {
+        if (index >= data.length) {
+            throw new IllegalArgumentException("missing record data");
+        }
+        return data[index];
+    }
+
+    // A name from the file: absolute with a trailing dot, '@' for the origin, otherwise relative to it
+    private DomainName name(String text) {
+        if (text.equals("@")) {
+            return origin;
+        }
+        if (text.endsWith(".")) {
+            return DomainName.parse(text);
+        }
+        return origin.isRoot() ? DomainName.parse(text) : DomainName.parse(text + "." + origin);
+    }
+}
@@ -0,0 +1,131 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+// A cache hit is the encoded response with the client's ID, Recursion Desired bit and question patched in, the TTLs
+// counted down, and our OPT record appended for a client using EDNS. Each is checked by decoding what is written
+public class CacheEntryTest {
+    private static final int TTL = 300;
+    private static final int PAYLOAD_SIZE = 1232;
+    private static final int OPT_LENGTH = 11;
+
+    @Test
+    public void responseCarriesTheClientsIdRecursionDesiredAndQuestion() throws Exception {
+        CacheEntry entry = entry();
+        for (int recursionDesired = 0; recursionDesired <= 1; recursionDesired++) {
+            DNSMessage request = request(0xBEEF, recursionDesired, "WwW.ExAmPlE.cOm", -1);
+            DNSMessage response = write(entry, request);
+            assertEquals(0xBEEF, response.getHeader().getId());
+            assertEquals(recursionDesired, response.getHeader().getRd());
+            assertArrayEquals(new String[] {"WwW", "ExAmPlE", "cOm"}, response.getQuestions()[0].getqName().getLabels());
+            assertEquals(2, response.getAnswers().length);
+            assertEquals(0, response.getHeader().getArCount());
+        }
+    }
+
+    @Test
+    public void ttlsAreCountedDownSinceCaching() throws Exception {
+        CacheEntry entry = entry();
+        DNSMessage request = request(1, 1, "www.example.com", -1);
+        for (DNSRecord answer : write(entry, request).getAnswers()) {
+            assertEquals(TTL, answer.getTtl());
+        }
+        Thread.sleep(2100);
+        for (DNSRecord answer : write(entry, request).getAnswers()) {
+            // Two seconds gone, give or take the coarse clock
+            assertTrue(answer.getTtl() >= TTL - 3 && answer.getTtl() <= TTL - 2, "TTL " + answer.getTtl());
+        }
+    }
+
+    @Test
+    public void staleResponseHasTheStaleTtl() throws Exception {
+        CacheEntry entry = entry();
+        ByteBuffer output = ByteBuffer.allocate(4096);
+        assertTrue(entry.writeStaleResponse(request(1, 1, "www.example.com", -1), output, 4096, PAYLOAD_SIZE, 30));
+        for (DNSRecord answer : decode(output).getAnswers()) {
+            assertEquals(30, answer.getTtl());
+        }
+    }
+
+    @Test
+    public void ednsClientGetsOurOptRecord() throws Exception {
+        CacheEntry entry = entry();
+        ByteBuffer plain = ByteBuffer.allocate(4096);
+        assertTrue(entry.writeResponse(request(1, 1, "www.example.com", -1), plain, 4096, PAYLOAD_SIZE));
+        ByteBuffer edns = ByteBuffer.allocate(4096);
+        assertTrue(entry.writeResponse(request(1, 1, "www.example.com", 0), edns, 4096, PAYLOAD_SIZE));
+        assertEquals(plain.remaining() + OPT_LENGTH, edns.remaining());
+        DNSMessage response = decode(edns);
+        assertEquals(1, response.getHeader().getArCount());
+        DNSRecord opt = response.getOpt();
+        assertEquals(PAYLOAD_SIZE, opt.getrClass());
+        assertEquals(0, opt.getTtl());
+        assertEquals(2, response.getAnswers().length);
+        assertNull(decode(plain).getOpt());
+    }
+
+    // A later EDNS version gets BADVERS from the full path, not an answer from the cache
+    @Test
+    public void laterEdnsVersionIsNotAnsweredFromTheEntry() throws Exception {
+        ByteBuffer output = ByteBuffer.allocate(4096);
+        assertFalse(entry().writeResponse(request(1, 1, "www.example.com", 1), output, 4096, PAYLOAD_SIZE));
+    }
+
+    @Test
+    public void responseLargerThanMaxSizeIsNotWritten() throws Exception {
+        CacheEntry entry = entry();
+        DNSMessage request = request(1, 1, "www.example.com", 0);
+        ByteBuffer output = ByteBuffer.allocate(4096);
+        assertTrue(entry.writeResponse(request, output, 4096, PAYLOAD_SIZE));
+        int length = output.remaining();
+        assertFalse(entry.writeResponse(request, output, length - 1, PAYLOAD_SIZE));
+        assertTrue(entry.writeResponse(request, output, length, PAYLOAD_SIZE));
+    }
+
+    // www.example.com is an alias for web.example.com, whose address has a longer TTL than the entry keeps it for
+    private static CacheEntry entry() throws IOException {
+        DomainName name = DomainName.parse("www.example.com");
+        DomainName target = DomainName.parse("web.example.com");
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        target.writeTo(wire);
+        DNSRecord[] answers = {
+                DNSRecord.build(name, DNSRecord.TYPE_CNAME, TTL, wire.toByteArray()),
+                DNSRecord.build(target, DNSRecord.TYPE_A, 2 * TTL, new byte[] {10, 0, 0, 1}),
+        };
+        return new CacheEntry(new DNSQuestion(name, DNSRecord.TYPE_A, 1), 0, answers, new DNSRecord[0], TTL);
+    }
+
+    // A query for an A record as a client would send it, with an OPT record of the EDNS version if it isn't -1
+    private static DNSMessage request(int id, int recursionDesired, String name, int ednsVersion) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.writeBytes(new byte[] {(byte) (id >> 8), (byte) id, (byte) recursionDesired, 0, 0, 1, 0, 0, 0, 0, 0,
+                (byte) (ednsVersion >= 0 ? 1 : 0)});
+        DomainName.parse(name).writeTo(output);
+        output.writeBytes(new byte[] {0, (byte) DNSRecord.TYPE_A, 0, 1});
+        if (ednsVersion >= 0) {
+            // Root name, type OPT, 4096 byte payload, extended rCode 0, the version, no flags or data
+            output.writeBytes(new byte[] {0, 0, (byte) DNSRecord.TYPE_OPT, 0x10, 0, 0, (byte) ednsVersion, 0, 0, 0, 0});
+        }
+        return DNSMessage.decodeMessage(output.toByteArray());
+    }
+
+    private static DNSMessage write(CacheEntry entry, DNSMessage request) throws IOException {
+        ByteBuffer output = ByteBuffer.allocate(4096);
+        assertTrue(entry.writeResponse(request, output, 4096, PAYLOAD_SIZE));
+        return decode(output);
+    }
+
+    private static DNSMessage decode(ByteBuffer output) throws IOException {
+        return DNSMessage.decodeMessage(Arrays.copyOfRange(output.array(), output.position(), output.limit()));
+    }
+}
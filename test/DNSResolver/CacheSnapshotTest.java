@@ -0,0 +1,129 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Saving the caches and loading them back, including from snapshots cut short or damaged
+public class CacheSnapshotTest {
+    private static final int ENTRIES = 10;
+
+    @TempDir
+    Path directory;
+
+    // Entries come back with what is left of their TTL, and those that expired in between don't come back
+    @Test
+    public void entriesLoadWithTheirRemainingTtl() throws Exception {
+        DNSCache cache = new DNSCache();
+        DNSCache negativeCache = new DNSCache();
+        cache.add(question("www.example.com"), 0, new DNSRecord[] {address("www.example.com")}, new DNSRecord[0], 5);
+        cache.add(question("short.example.com"), 0, new DNSRecord[] {address("short.example.com")}, new DNSRecord[0], 2);
+        negativeCache.addNegative(question("missing.example.com"), 3, soa(), 300);
+        CacheSnapshot snapshot = new CacheSnapshot(directory.resolve("cache.snapshot"));
+        // The short entry has whole seconds left when saved even if this runs slowly, and none when loaded
+        assertEquals(3, snapshot.save(cache, negativeCache));
+
+        Thread.sleep(2100);
+        DNSCache loadedCache = new DNSCache();
+        DNSCache loadedNegativeCache = new DNSCache();
+        assertEquals(2, snapshot.load(loadedCache, loadedNegativeCache));
+        CacheEntry entry = loadedCache.lookup(question("www.example.com"));
+        assertNotNull(entry);
+        assertTrue(entry.remainingTtl() > 0 && entry.remainingTtl() < 5, "TTL " + entry.remainingTtl());
+        assertEquals(entry.remainingTtl(), entry.getAnswers()[0].remainingTtl());
+        assertNull(loadedCache.lookup(question("short.example.com")));
+        CacheEntry negative = loadedNegativeCache.lookup(question("missing.example.com"));
+        assertNotNull(negative);
+        assertEquals(3, negative.getRCode());
+        assertEquals(DNSRecord.TYPE_SOA, negative.getAuthority()[0].getType());
+    }
+
+    @Test
+    public void snapshotCutShortLoadsTheWholeFramesBeforeTheCut() throws Exception {
+        Path path = saveEntries();
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 5));
+        assertEquals(ENTRIES - 1, new CacheSnapshot(path).load(new DNSCache(), new DNSCache()));
+
+        // Cut inside a frame's length and CRC too
+        int lastFrame = frameOffsets(bytes)[ENTRIES - 1];
+        Files.write(path, Arrays.copyOf(bytes, lastFrame + 6));
+        assertEquals(ENTRIES - 1, new CacheSnapshot(path).load(new DNSCache(), new DNSCache()));
+    }
+
+    @Test
+    public void damagedFrameStopsLoadingThere() throws Exception {
+        Path path = saveEntries();
+        byte[] bytes = Files.readAllBytes(path);
+        // A byte in the middle of the sixth frame's body
+        int[] frames = frameOffsets(bytes);
+        bytes[(frames[5] + 8 + frames[6]) / 2] ^= 0x40;
+        Files.write(path, bytes);
+        assertEquals(5, new CacheSnapshot(path).load(new DNSCache(), new DNSCache()));
+
+        // A damaged length goes the same way
+        bytes = Files.readAllBytes(saveEntries());
+        ByteBuffer.wrap(bytes).putInt(frames[5], 0x7fffffff);
+        Files.write(path, bytes);
+        assertEquals(5, new CacheSnapshot(path).load(new DNSCache(), new DNSCache()));
+    }
+
+    @Test
+    public void missingOrForeignFileLoadsNothing() throws Exception {
+        Path path = directory.resolve("other.snapshot");
+        assertEquals(0, new CacheSnapshot(path).load(new DNSCache(), new DNSCache()));
+        Files.write(path, "not a snapshot at all".getBytes());
+        assertEquals(0, new CacheSnapshot(path).load(new DNSCache(), new DNSCache()));
+    }
+
+    private Path saveEntries() throws IOException {
+        DNSCache cache = new DNSCache();
+        for (int i = 0; i < ENTRIES; i++) {
+            String name = "name" + i + ".example.com";
+            cache.add(question(name), 0, new DNSRecord[] {address(name)}, new DNSRecord[0], 300);
+        }
+        Path path = directory.resolve("cache.snapshot");
+        assertEquals(ENTRIES, new CacheSnapshot(path).save(cache, new DNSCache()));
+        return path;
+    }
+
+    // Where each frame starts, and the end of the file after the last
+    private static int[] frameOffsets(byte[] bytes) {
+        int[] offsets = new int[ENTRIES + 1];
+        int position = 16;
+        for (int i = 0; i <= ENTRIES; i++) {
+            offsets[i] = position;
+            if (i < ENTRIES) {
+                position += 8 + ByteBuffer.wrap(bytes).getInt(position);
+            }
+        }
+        assertEquals(bytes.length, position);
+        return offsets;
+    }
+
+    private static DNSQuestion question(String name) {
+        return new DNSQuestion(DomainName.parse(name), DNSRecord.TYPE_A, 1);
+    }
+
+    private static DNSRecord address(String name) {
+        return DNSRecord.build(DomainName.parse(name), DNSRecord.TYPE_A, 300, new byte[] {10, 0, 0, 1});
+    }
+
+    private static DNSRecord soa() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DomainName.parse("ns1.example.com").writeTo(output);
+        DomainName.parse("hostmaster.example.com").writeTo(output);
+        output.writeBytes(ByteBuffer.allocate(20).putInt(1).putInt(7200).putInt(900).putInt(1209600).putInt(60).array());
+        return DNSRecord.build(DomainName.parse("example.com"), DNSRecord.TYPE_SOA, 3600, output.toByteArray());
+    }
+}
@@ -0,0 +1,25 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class ClockTest {
+    // The ticker keeps the clock a few ticks behind System.nanoTime at most, and it never goes back
+    @Test
+    public void clockFollowsNanoTimeAndNeverGoesBack() throws InterruptedException {
+        long startNanos = System.nanoTime();
+        long start = Clock.millis();
+        long previous = start;
+        while (System.nanoTime() - startNanos < 300_000_000L) {
+            long now = Clock.millis();
+            assertTrue(now >= previous, now + " after " + previous);
+            previous = now;
+            Thread.sleep(1);
+        }
+        long realMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        long elapsed = previous - start;
+        // Behind by a few ticks at most, and never ahead, since the start reading could be a tick behind itself
+        assertTrue(elapsed >= realMillis - 50 && elapsed <= realMillis + 5, elapsed + " ms elapsed in " + realMillis);
+    }
+}
@@ -0,0 +1,52 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+// Concurrent misses for the same question go upstream as one query, whose reply answers every client
+public class CoalescingTest {
+    private static final int CLIENTS = 20;
+
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void identicalMissesSendOneUpstreamQuery(ServerConfig.Mode mode) throws Exception {
+        StubUpstream stub = TestServer.startStub(300);
+        ServerConfig config = new ServerConfig().setUpstream(TestServer.addressOf(stub)).setMode(mode).setWorkerCount(1)
+                .setHedging(false);
+        try (TestServer server = new TestServer(config)) {
+            List<DNSMessage> responses = server.askAll(Collections.nCopies(CLIENTS, "coalesced.example.com"), DNSRecord.TYPE_A);
+            for (DNSMessage response : responses) {
+                assertEquals(0, response.getHeader().getRCode());
+                assertEquals(1, response.getAnswers().length);
+            }
+            assertEquals(1, stub.getQueryCount());
+            // The task that asked upstream cached the reply for everyone
+            assertEquals(1, server.ask("coalesced.example.com", DNSRecord.TYPE_A).getAnswers().length);
+            assertEquals(1, stub.getQueryCount());
+        } finally {
+            stub.close();
+        }
+    }
+
+    // With several event loops the kernel spreads the clients across them, and the workers still share one query
+    @Test
+    public void identicalMissesOnDifferentWorkersSendOneUpstreamQuery() throws Exception {
+        StubUpstream stub = TestServer.startStub(300);
+        ServerConfig config = new ServerConfig().setUpstream(TestServer.addressOf(stub)).setWorkerCount(4).setHedging(false);
+        try (TestServer server = new TestServer(config)) {
+            List<DNSMessage> responses = server.askAll(Collections.nCopies(CLIENTS, "shared.example.com"), DNSRecord.TYPE_A);
+            for (DNSMessage response : responses) {
+                assertEquals(0, response.getHeader().getRCode());
+                assertEquals(1, response.getAnswers().length);
+            }
+            assertEquals(1, stub.getQueryCount());
+        } finally {
+            stub.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+public class DNSCacheTest {
+    // Only the record sets on the question's CNAME chain, and NS sets for zones above it, are cached from a reply
+    @Test
+    public void unrelatedRecordsInAReplyAreNotCached() throws Exception {
+        DNSQuestion question = question("www.example.com", DNSRecord.TYPE_A);
+        DNSRecord[] answers = {
+                DNSRecord.build(DomainName.parse("www.example.com"), DNSRecord.TYPE_CNAME, 300, wire("alias.example.net")),
+                DNSRecord.build(DomainName.parse("alias.example.net"), DNSRecord.TYPE_A, 300, new byte[] {10, 0, 0, 1}),
+                DNSRecord.build(DomainName.parse("login.bank.com"), DNSRecord.TYPE_A, 300, new byte[] {6, 6, 6, 6}),
+        };
+        DNSRecord[] authority = {
+                DNSRecord.build(DomainName.parse("example.net"), DNSRecord.TYPE_NS, 300, wire("ns1.example.net")),
+                DNSRecord.build(DomainName.parse("bank.com"), DNSRecord.TYPE_NS, 300, wire("ns1.attacker.org")),
+        };
+        DNSMessage request = DNSMessage.buildQuery(question, 1, DNSMessage.MAX_UDP_SIZE);
+        DNSCache cache = new DNSCache();
+        cache.addResponse(question, DNSMessage.buildResponse(request, answers, authority, 0));
+
+        CacheEntry entry = cache.lookup(question);
+        assertNotNull(entry);
+        assertEquals(2, entry.getAnswers().length);
+        assertEquals(1, entry.getAuthority().length);
+        assertNotNull(cache.lookup(question("alias.example.net", DNSRecord.TYPE_A)));
+        assertNotNull(cache.lookup(question("www.example.com", DNSRecord.TYPE_CNAME)));
+        assertNotNull(cache.lookup(question("example.net", DNSRecord.TYPE_NS)));
+        assertNull(cache.lookup(question("login.bank.com", DNSRecord.TYPE_A)));
+        assertNull(cache.lookup(question("bank.com", DNSRecord.TYPE_NS)));
+    }
+
+    // A reply whose answers have nothing to do with the question caches nothing at all
+    @Test
+    public void answersOffTheChainCacheNothing() throws Exception {
+        DNSQuestion question = question("www.example.com", DNSRecord.TYPE_A);
+        DNSRecord[] answers = {
+                DNSRecord.build(DomainName.parse("login.bank.com"), DNSRecord.TYPE_A, 300, new byte[] {6, 6, 6, 6}),
+        };
+        DNSMessage request = DNSMessage.buildQuery(question, 1, DNSMessage.MAX_UDP_SIZE);
+        DNSCache cache = new DNSCache();
+        cache.addResponse(question, DNSMessage.buildResponse(request, answers, new DNSRecord[0], 0));
+
+        assertEquals(0, cache.size());
+    }
+
+    // A negative answer is kept for the SOA's MINIMUM at most, and not at all if the SOA data is too short to have one
+    @Test
+    public void negativeAnswerNeedsAWholeSoa() throws Exception {
+        DNSRecord soa = DNSRecord.build(DomainName.parse("example.com"), DNSRecord.TYPE_SOA, 3600, soaData(60));
+        DNSCache cache = new DNSCache();
+        cache.addNegative(question("missing.example.com", DNSRecord.TYPE_A), 3, soa, 86400);
+        CacheEntry entry = cache.lookup(question("missing.example.com", DNSRecord.TYPE_A));
+        assertNotNull(entry);
+        assertEquals(3, entry.getRCode());
+
+        for (int length = 0; length < 22; length++) {
+            byte[] data = new byte[length];
+            DNSRecord shortSoa = DNSRecord.build(DomainName.parse("example.com"), DNSRecord.TYPE_SOA, 3600, data);
+            assertEquals(0, shortSoa.negativeTtl());
+            cache.addNegative(question("short" + length + ".example.com", DNSRecord.TYPE_A), 3, shortSoa, 86400);
+        }
+        assertEquals(1, cache.size());
+    }
+
+    private static DNSQuestion question(String name, int type) {
+        return new DNSQuestion(DomainName.parse(name), type, 1);
+    }
+
+    // SOA data for example.com with the given MINIMUM
+    private static byte[] soaData(int minimum) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DomainName.parse("ns1.example.com").writeTo(output);
+        DomainName.parse("hostmaster.example.com").writeTo(output);
+        output.writeBytes(ByteBuffer.allocate(20).putInt(1).putInt(7200).putInt(900).putInt(1209600).putInt(minimum).array());
+        return output.toByteArray();
+    }
+
+    private static byte[] wire(String name) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DomainName.parse(name).writeTo(output);
+        return output.toByteArray();
+    }
+}
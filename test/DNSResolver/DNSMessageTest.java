@@ -0,0 +1,84 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+// Decoding packets that are cut short or whose compression pointers loop: each is an IOException, never a runtime
+// exception or a loop
+public class DNSMessageTest {
+    // Header of a query with one question and nothing else
+    private static final byte[] ONE_QUESTION = {0x12, 0x34, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 0};
+
+    @Test
+    public void wholeReplyDecodes() throws Exception {
+        byte[] packet = reply();
+        DNSMessage message = DNSMessage.decodeMessage(packet);
+        assertEquals(DomainName.parse("www.example.com"), message.getQuestions()[0].getqName());
+        assertEquals(2, message.getAnswers().length);
+    }
+
+    @Test
+    public void replyCutAnywhereIsAnIOException() throws Exception {
+        byte[] packet = reply();
+        for (int length = 0; length < packet.length; length++) {
+            byte[] cut = Arrays.copyOf(packet, length);
+            assertThrows(IOException.class, () -> DNSMessage.decodeMessage(cut), "cut to " + length + " bytes");
+        }
+    }
+
+    @Test
+    public void pointerCutInHalfIsAnIOException() {
+        // A question name of one label, then the first byte of a pointer and nothing more
+        byte[] packet = packet(new byte[] {1, 'a', (byte) 0xC0});
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(packet));
+    }
+
+    @Test
+    public void pointerToItselfIsAnIOException() {
+        byte[] packet = packet(new byte[] {(byte) 0xC0, 12, 0, 1, 0, 1});
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(packet));
+    }
+
+    // The pointer is behind the byte it sits at, but back into its own name's labels, so following it would go round
+    @Test
+    public void pointerBackIntoItsOwnLabelsIsAnIOException() {
+        byte[] packet = packet(new byte[] {1, 'a', 1, 'b', (byte) 0xC0, 12, 0, 1, 0, 1});
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(packet));
+    }
+
+    // Two names pointing at each other: the second is fine on its own, but the first leads into it and back
+    @Test
+    public void pointersBetweenTwoNamesAreAnIOException() {
+        byte[] packet = packet(new byte[] {1, 'a', (byte) 0xC0, 18, 0, 1, 0, 1, 1, 'b', (byte) 0xC0, 12});
+        assertThrows(IOException.class, () -> DNSMessage.decodeMessage(packet));
+    }
+
+    private static byte[] packet(byte[] afterHeader) {
+        byte[] packet = Arrays.copyOf(ONE_QUESTION, ONE_QUESTION.length + afterHeader.length);
+        System.arraycopy(afterHeader, 0, packet, ONE_QUESTION.length, afterHeader.length);
+        return packet;
+    }
+
+    // A reply with a CNAME and an A record, so the answers' names and the CNAME's target are compressed against the
+    // question
+    private static byte[] reply() throws IOException {
+        DomainName name = DomainName.parse("www.example.com");
+        DomainName target = DomainName.parse("web.example.com");
+        DNSQuestion question = new DNSQuestion(name, DNSRecord.TYPE_A, 1);
+        DNSRecord cname = DNSRecord.build(name, DNSRecord.TYPE_CNAME, 300, wire(target));
+        DNSRecord address = DNSRecord.build(target, DNSRecord.TYPE_A, 300, new byte[] {10, 0, 0, 1});
+        DNSMessage query = DNSMessage.decodeMessage(DNSMessage.buildQuery(question, 0x1234, 1232).toBytes());
+        return DNSMessage.buildResponse(query, new DNSRecord[] {cname, address}).toBytes();
+    }
+
+    private static byte[] wire(DomainName name) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        name.writeTo(output);
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,45 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+// A query with an OPT record of an EDNS version after 0 gets BADVERS (RFC 6891), whether or not its question is cached
+public class EdnsTest {
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void laterVersionGetsBadVers(ServerConfig.Mode mode) throws Exception {
+        StubUpstream stub = TestServer.startStub(0);
+        ServerConfig config = new ServerConfig().setUpstream(TestServer.addressOf(stub)).setMode(mode).setWorkerCount(1)
+                .setHedging(false);
+        try (TestServer server = new TestServer(config)) {
+            assertBadVers(server.send(query("uncached.example.com", 1)));
+            assertEquals(0, stub.getQueryCount());
+
+            assertEquals(1, server.ask("cached.example.com", DNSRecord.TYPE_A).getAnswers().length);
+            assertBadVers(server.send(query("cached.example.com", 1)));
+            assertEquals(1, stub.getQueryCount());
+        } finally {
+            stub.close();
+        }
+    }
+
+    // The 12 bit rCode is the header's 4 bits with the OPT record's 8 above them
+    private static void assertBadVers(DNSMessage response) {
+        DNSRecord opt = response.getOpt();
+        assertEquals(0, response.getAnswers().length);
+        assertEquals(DNSRecord.RCODE_BADVERS, (opt.getTtl() >>> 24) << 4 | response.getHeader().getRCode());
+        assertEquals(0, opt.ednsVersion());
+    }
+
+    // A query for an A record whose OPT record, the last 11 bytes, says it is of this EDNS version
+    private static byte[] query(String name, int version) throws Exception {
+        DNSQuestion question = new DNSQuestion(DomainName.parse(name), DNSRecord.TYPE_A, 1);
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        byte[] query = DNSMessage.buildQuery(question, id, DNSMessage.MAX_UDP_SIZE).getRawData().clone();
+        query[query.length - 5] = (byte) version;
+        return query;
+    }
+}
@@ -0,0 +1,107 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+// Resolving from the root down a hierarchy of authoritative stubs: the root on 127.0.0.1 delegates com to 127.0.0.2,
+// which delegates example.com to 127.0.0.3, all on the same port
+public class IterativeResolverTest {
+    @TempDir
+    Path zones;
+    private StubUpstream root;
+    private StubUpstream com;
+    private StubUpstream example;
+
+    @BeforeEach
+    public void startStubs() throws IOException {
+        root = authoritative("127.0.0.1", 0, "root.zone",
+                ".                  IN SOA a.root-servers.net. hostmaster.root-servers.net. 1 7200 900 1209600 300",
+                "com.               IN NS  a.gtld-servers.net.",
+                "a.gtld-servers.net. IN A  127.0.0.2");
+        com = authoritative("127.0.0.2", root.getPort(), "com.zone",
+                "com.               IN SOA a.gtld-servers.net. hostmaster.gtld-servers.net. 1 7200 900 1209600 300",
+                "example.com.       IN NS  ns1.example.com.",
+                "ns1.example.com.   IN A   127.0.0.3");
+        example = authoritative("127.0.0.3", root.getPort(), "example.zone",
+                "$ORIGIN example.com.",
+                "@                  IN SOA ns1 hostmaster 1 7200 900 1209600 300",
+                "@                  IN NS  ns1",
+                "ns1                IN A   127.0.0.3",
+                "www                IN A   192.0.2.1",
+                "alias              IN CNAME www");
+    }
+
+    @AfterEach
+    public void stopStubs() {
+        root.close();
+        com.close();
+        example.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void nameIsResolvedFromTheRootDown(ServerConfig.Mode mode) throws Exception {
+        try (TestServer server = new TestServer(config(mode))) {
+            DNSMessage response = server.ask("www.example.com", DNSRecord.TYPE_A);
+            assertEquals(0, response.getHeader().getRCode());
+            assertEquals(1, response.getAnswers().length);
+            assertArrayEquals(new byte[] {(byte) 192, 0, 2, 1}, response.getAnswers()[0].getrData());
+            assertEquals(1, root.getQueryCount());
+            assertEquals(1, com.getQueryCount());
+            assertEquals(1, example.getQueryCount());
+        }
+    }
+
+    // The delegation to example.com is remembered, so the next name in the zone is asked of its server straight away,
+    // and the CNAME to www is followed
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void knownDelegationSkipsTheRoot(ServerConfig.Mode mode) throws Exception {
+        try (TestServer server = new TestServer(config(mode))) {
+            server.ask("www.example.com", DNSRecord.TYPE_A);
+            DNSMessage response = server.ask("alias.example.com", DNSRecord.TYPE_A);
+            assertEquals(0, response.getHeader().getRCode());
+            assertEquals(2, response.getAnswers().length);
+            assertEquals(DNSRecord.TYPE_CNAME, response.getAnswers()[0].getType());
+            assertEquals(1, root.getQueryCount());
+            assertEquals(1, com.getQueryCount());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void missingNameGetsNameErrorWithTheZonesSoa(ServerConfig.Mode mode) throws Exception {
+        try (TestServer server = new TestServer(config(mode))) {
+            DNSMessage response = server.ask("missing.example.com", DNSRecord.TYPE_A);
+            assertEquals(3, response.getHeader().getRCode());
+            assertEquals(0, response.getAnswers().length);
+            assertEquals(1, response.getNSRecords().length);
+            assertEquals(DNSRecord.TYPE_SOA, response.getNSRecords()[0].getType());
+            assertEquals("example.com", response.getNSRecords()[0].getName().toString());
+        }
+    }
+
+    private ServerConfig config(ServerConfig.Mode mode) {
+        return new ServerConfig().setMode(mode).setWorkerCount(1).setIterative(true).setNameServerPort(root.getPort())
+                .setRootHints(IterativeResolver.rootHints(root.getPort(), "127.0.0.1"));
+    }
+
+    private StubUpstream authoritative(String address, int port, String file, String... lines) throws IOException {
+        Path path = zones.resolve(file);
+        Files.write(path, Arrays.asList(lines));
+        StubUpstream stub = new StubUpstream(new InetSocketAddress(address, port), 0);
+        stub.setZone(ZoneFile.read(path, DomainName.ROOT)).setAuthoritative(true);
+        return TestServer.startStub(stub);
+    }
+}
@@ -0,0 +1,157 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Answers from a zone file, a hosts file and a block list compiled together, and from the same image saved to a file
+// and mapped back
+public class LocalZonesTest {
+    @TempDir
+    Path files;
+    private LocalZones zones;
+
+    @BeforeEach
+    public void compile() throws IOException {
+        Files.write(files.resolve("internal.zone"), List.of(
+                "$ORIGIN corp.example.",
+                "@         IN SOA ns1 hostmaster 1 7200 900 1209600 60",
+                "@         IN NS  ns1",
+                "ns1       IN A   10.0.0.1",
+                "www       IN A   10.0.0.2",
+                "alias     IN CNAME www",
+                "*         IN A   10.0.0.9",
+                "a.deep    IN A   10.0.0.3",
+                "outside   IN CNAME www.example.com."));
+        Files.write(files.resolve("hosts"), List.of(
+                "# comment",
+                "192.0.2.10  printer.lan  scanner.lan",
+                "2001:db8::1 printer.lan"));
+        Files.write(files.resolve("blocklist.txt"), List.of(
+                "ads.example.net",
+                "*.tracker.example.net",
+                "printer.lan"));
+        zones = LocalZones.load(List.of(files.resolve("internal.zone").toString(), files.resolve("hosts").toString(),
+                files.resolve("blocklist.txt").toString()));
+    }
+
+    @Test
+    public void exactRecordsAreAnswered() {
+        DNSMessage response = ask(zones, "WWW.corp.example", DNSRecord.TYPE_A);
+        assertEquals(0, response.getHeader().getRCode());
+        assertEquals(1, response.getAnswers().length);
+        assertArrayEquals(new byte[] {10, 0, 0, 2}, response.getAnswers()[0].getrData());
+
+        response = ask(zones, "scanner.lan", DNSRecord.TYPE_A);
+        assertArrayEquals(new byte[] {(byte) 192, 0, 2, 10}, response.getAnswers()[0].getrData());
+    }
+
+    @Test
+    public void wildcardAnswersNamesThatDontExist() {
+        DNSMessage response = ask(zones, "anything.corp.example", DNSRecord.TYPE_A);
+        assertEquals(0, response.getHeader().getRCode());
+        assertEquals(1, response.getAnswers().length);
+        assertEquals("anything.corp.example", response.getAnswers()[0].getName().toString());
+        assertArrayEquals(new byte[] {10, 0, 0, 9}, response.getAnswers()[0].getrData());
+    }
+
+    // deep.corp.example only has a name below it, so it exists without records and the wildcard isn't used for it,
+    // nor for other names below it (RFC 4592 section 2.2.2)
+    @Test
+    public void wildcardDoesNotMatchAnEmptyNonTerminal() {
+        DNSMessage response = ask(zones, "deep.corp.example", DNSRecord.TYPE_A);
+        assertEquals(0, response.getHeader().getRCode());
+        assertEquals(0, response.getAnswers().length);
+        assertEquals(DNSRecord.TYPE_SOA, response.getNSRecords()[0].getType());
+
+        response = ask(zones, "b.deep.corp.example", DNSRecord.TYPE_A);
+        assertEquals(3, response.getHeader().getRCode());
+        assertEquals(0, response.getAnswers().length);
+    }
+
+    @Test
+    public void cnameIsFollowedWhileItStaysLocal() {
+        DNSMessage response = ask(zones, "alias.corp.example", DNSRecord.TYPE_A);
+        assertEquals(2, response.getAnswers().length);
+        assertEquals(DNSRecord.TYPE_CNAME, response.getAnswers()[0].getType());
+        assertEquals("www.corp.example", response.getAnswers()[1].getName().toString());
+
+        response = ask(zones, "outside.corp.example", DNSRecord.TYPE_A);
+        assertEquals(1, response.getAnswers().length);
+        assertEquals(DNSRecord.TYPE_CNAME, response.getAnswers()[0].getType());
+    }
+
+    @Test
+    public void missingTypeAndMissingNameGetTheZonesSoa() {
+        DNSMessage response = ask(zones, "www.corp.example", DNSRecord.TYPE_AAAA);
+        assertEquals(0, response.getHeader().getRCode());
+        assertEquals(0, response.getAnswers().length);
+        assertEquals("corp.example", response.getNSRecords()[0].getName().toString());
+
+        response = ask(zones, "x.b.deep.corp.example", DNSRecord.TYPE_A);
+        assertEquals(3, response.getHeader().getRCode());
+        assertEquals(DNSRecord.TYPE_SOA, response.getNSRecords()[0].getType());
+    }
+
+    @Test
+    public void blockedNamesGetNameError() {
+        assertEquals(3, ask(zones, "ads.example.net", DNSRecord.TYPE_A).getHeader().getRCode());
+        assertEquals(3, ask(zones, "a.b.tracker.example.net", DNSRecord.TYPE_A).getHeader().getRCode());
+        // Blocking wins over the hosts file
+        assertEquals(3, ask(zones, "printer.lan", DNSRecord.TYPE_A).getHeader().getRCode());
+        // The wildcard doesn't block the name it is under, nor names beside the blocked one
+        assertNull(ask(zones, "tracker.example.net", DNSRecord.TYPE_A));
+        assertNull(ask(zones, "www.ads2.example.net", DNSRecord.TYPE_A));
+        assertNull(ask(zones, "example.net", DNSRecord.TYPE_A));
+    }
+
+    @Test
+    public void imageRoundTripsThroughAFile() throws IOException {
+        Path image = files.resolve("local.dnsz");
+        zones.save(image);
+        LocalZones mapped = LocalZones.load(List.of(image.toString()));
+        assertEquals(zones.getNameCount(), mapped.getNameCount());
+        assertEquals(zones.getByteSize(), mapped.getByteSize());
+        for (String name : new String[] {"www.corp.example", "anything.corp.example", "alias.corp.example", "deep.corp.example",
+                "b.deep.corp.example", "ads.example.net", "scanner.lan", "google.com"}) {
+            DNSMessage compiled = ask(zones, name, DNSRecord.TYPE_A);
+            DNSMessage fromFile = ask(mapped, name, DNSRecord.TYPE_A);
+            if (compiled == null) {
+                assertNull(fromFile);
+                continue;
+            }
+            assertNotNull(fromFile);
+            assertEquals(compiled.getHeader().getRCode(), fromFile.getHeader().getRCode());
+            assertEquals(compiled.getAnswers().length, fromFile.getAnswers().length);
+            for (int i = 0; i < compiled.getAnswers().length; i++) {
+                assertArrayEquals(compiled.getAnswers()[i].getrData(), fromFile.getAnswers()[i].getrData());
+            }
+        }
+    }
+
+    @Test
+    public void aFileThatIsNotAnImageIsRejected() throws IOException {
+        Path bogus = files.resolve("bogus.dnsz");
+        Files.write(bogus, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        assertThrows(IOException.class, () -> LocalZones.map(bogus));
+    }
+
+    private static DNSMessage ask(LocalZones zones, String name, int type) {
+        try {
+            DNSQuestion question = new DNSQuestion(DomainName.parse(name), type, 1);
+            return zones.answer(DNSMessage.buildQuery(question, 1, DNSMessage.MAX_UDP_SIZE));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
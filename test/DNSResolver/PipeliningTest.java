@@ -0,0 +1,41 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+// Misses for different questions are all in flight upstream at once, rather than each waiting for the one before
+public class PipeliningTest {
+    private static final int CLIENTS = 20;
+    private static final long DELAY_MILLIS = 500;
+
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void slowUpstreamDoesNotSerializeMisses(ServerConfig.Mode mode) throws Exception {
+        StubUpstream stub = TestServer.startStub(DELAY_MILLIS);
+        ServerConfig config = new ServerConfig().setUpstream(TestServer.addressOf(stub)).setMode(mode).setWorkerCount(1)
+                .setHedging(false);
+        try (TestServer server = new TestServer(config)) {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                names.add("name" + i + ".example.com");
+            }
+            long start = System.nanoTime();
+            List<DNSMessage> responses = server.askAll(names, DNSRecord.TYPE_A);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            for (int i = 0; i < CLIENTS; i++) {
+                assertEquals(0, responses.get(i).getHeader().getRCode());
+                assertEquals(names.get(i), responses.get(i).getQuestions()[0].getqName().toString());
+            }
+            assertEquals(CLIENTS, stub.getQueryCount());
+            // One after another they would take CLIENTS times the delay
+            assertTrue(elapsedMillis < 4 * DELAY_MILLIS, "took " + elapsedMillis + " ms");
+        } finally {
+            stub.close();
+        }
+    }
+}
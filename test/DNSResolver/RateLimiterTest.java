@@ -0,0 +1,138 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+// Token buckets per client network, checked at set times rather than on the clock
+public class RateLimiterTest {
+    private static final int PER_SECOND = 10;
+    private static final int BURST = 5;
+    // A start time well clear of 0, in microseconds
+    private static final long START = 1_000_000_000L;
+
+    @Test
+    public void burstIsAdmittedThenRequestsAreRefused() {
+        RateLimiter limiter = limiter(RateLimiter.Action.DROP);
+        InetSocketAddress client = client("192.0.2.1");
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(RateLimiter.ALLOW, limiter.check(client, START));
+        }
+        assertEquals(RateLimiter.DROP, limiter.check(client, START));
+        assertEquals(1, limiter.getDropped());
+
+        // One interval later there is room for one more
+        long interval = 1_000_000 / PER_SECOND;
+        assertEquals(RateLimiter.ALLOW, limiter.check(client, START + interval));
+        assertEquals(RateLimiter.DROP, limiter.check(client, START + interval));
+
+        // After a long pause the whole burst is back, and no more
+        long later = START + 10_000_000;
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(RateLimiter.ALLOW, limiter.check(client, later));
+        }
+        assertEquals(RateLimiter.DROP, limiter.check(client, later));
+    }
+
+    // A client sending twice the rate for ten seconds gets the burst plus the rate's worth through
+    @Test
+    public void sustainedRateIsAdmitted() {
+        RateLimiter limiter = limiter(RateLimiter.Action.DROP);
+        InetSocketAddress client = client("192.0.2.1");
+        int allowed = 0;
+        for (long time = START; time < START + 10_000_000; time += 1_000_000 / (2 * PER_SECOND)) {
+            if (limiter.check(client, time) == RateLimiter.ALLOW) {
+                allowed++;
+            }
+        }
+        assertTrue(Math.abs(allowed - (BURST + 10 * PER_SECOND)) <= 1, allowed + " allowed");
+    }
+
+    @Test
+    public void clientsAreGroupedByNetwork() {
+        RateLimiter limiter = limiter(RateLimiter.Action.DROP);
+        exhaust(limiter, client("198.51.100.1"));
+        // Same /24
+        assertEquals(RateLimiter.DROP, limiter.check(client("198.51.100.200"), START));
+        // Next /24 over has a bucket of its own
+        assertEquals(RateLimiter.ALLOW, limiter.check(client("198.51.101.1"), START));
+
+        exhaust(limiter, client("2001:db8:0:1::1"));
+        // Same /56, differing only in the last byte of it
+        assertEquals(RateLimiter.DROP, limiter.check(client("2001:db8:0:ff:1234::2"), START));
+        // Another /56
+        assertEquals(RateLimiter.ALLOW, limiter.check(client("2001:db8:0:100::1"), START));
+    }
+
+    @Test
+    public void truncateAndSlipActions() {
+        RateLimiter truncate = limiter(RateLimiter.Action.TRUNCATE);
+        exhaust(truncate, client("192.0.2.1"));
+        assertEquals(RateLimiter.TRUNCATE, truncate.check(client("192.0.2.1"), START));
+        assertEquals(1, truncate.getTruncated());
+
+        // With a slip of 1 every limited request is truncated rather than dropped
+        RateLimiter slip = new RateLimiter(PER_SECOND, BURST, RateLimiter.Action.SLIP, 1, 24, 56, 1024);
+        exhaust(slip, client("192.0.2.1"));
+        assertEquals(RateLimiter.TRUNCATE, slip.check(client("192.0.2.1"), START));
+    }
+
+    @Test
+    public void truncatedReplyEchoesTheQuestion() throws Exception {
+        DNSQuestion question = new DNSQuestion(DomainName.parse("www.Example.com"), DNSRecord.TYPE_AAAA, 1);
+        byte[] query = DNSMessage.buildQuery(question, 0x1234, 4096).getRawData();
+        ByteBuffer request = ByteBuffer.allocate(512).put(query);
+        ByteBuffer output = ByteBuffer.allocate(512);
+        assertTrue(RateLimiter.writeTruncated(request, output));
+
+        byte[] reply = new byte[output.remaining()];
+        output.get(reply);
+        assertTrue(reply.length <= query.length);
+        assertTrue((reply[2] & 0x80) != 0, "QR set");
+        DNSMessage decoded = DNSMessage.decodeMessage(reply);
+        assertEquals(0x1234, decoded.getHeader().getId());
+        assertEquals(1, decoded.getHeader().getTc());
+        assertEquals(1, decoded.getHeader().getRd());
+        assertEquals(0, decoded.getHeader().getRCode());
+        assertEquals(1, decoded.getQuestions().length);
+        assertEquals("www.Example.com", decoded.getQuestions()[0].getqName().toString());
+        assertEquals(DNSRecord.TYPE_AAAA, decoded.getQuestions()[0].getqType());
+        assertEquals(0, decoded.getAnswers().length + decoded.getNSRecords().length + decoded.getAddRecords().length);
+        // The question section is the request's, byte for byte
+        assertArrayEquals(Arrays.copyOfRange(query, 12, reply.length), Arrays.copyOfRange(reply, 12, reply.length));
+    }
+
+    @Test
+    public void malformedRequestsGetNoTruncatedReply() throws Exception {
+        ByteBuffer output = ByteBuffer.allocate(512);
+        assertFalse(RateLimiter.writeTruncated(ByteBuffer.allocate(512).put(new byte[11]), output));
+
+        byte[] query = DNSMessage.buildQuery(new DNSQuestion(DomainName.parse("example.com"), 1, 1), 1, 512).getRawData();
+        // A response rather than a query
+        byte[] response = query.clone();
+        response[2] |= (byte) 0x80;
+        assertFalse(RateLimiter.writeTruncated(ByteBuffer.allocate(512).put(response), output));
+        // Cut off inside the question
+        assertFalse(RateLimiter.writeTruncated(ByteBuffer.allocate(512).put(query, 0, 16), output));
+    }
+
+    private static RateLimiter limiter(RateLimiter.Action action) {
+        return new RateLimiter(PER_SECOND, BURST, action, 2, 24, 56, 1024);
+    }
+
+    private static void exhaust(RateLimiter limiter, InetSocketAddress client) {
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(RateLimiter.ALLOW, limiter.check(client, START));
+        }
+    }
+
+    private static InetSocketAddress client(String address) {
+        return new InetSocketAddress(address, 5353);
+    }
+}
@@ -0,0 +1,78 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+// An expired entry answers a request when the upstream is too slow or fails (RFC 8767), with staleAnswerTtl as
+// its TTL, and the upstream's reply still refreshes the cache when it comes
+public class ServeStaleTest {
+    private static final int TTL = 2;
+    private static final long CLIENT_RESPONSE_MILLIS = 300;
+    private static final int STALE_ANSWER_TTL = 30;
+    private static final long STALL_MILLIS = 1500;
+
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void slowUpstreamIsAnsweredFromTheExpiredEntry(ServerConfig.Mode mode) throws Exception {
+        StubUpstream stub = startStub();
+        try (TestServer server = new TestServer(config(stub, mode))) {
+            assertEquals(TTL, server.ask("stale.example.com", DNSRecord.TYPE_A).getAnswers()[0].getTtl());
+            Thread.sleep(TTL * 1000 + 200);
+
+            stub.setDelayMillis(STALL_MILLIS);
+            long start = System.nanoTime();
+            DNSMessage response = server.ask("stale.example.com", DNSRecord.TYPE_A);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            assertEquals(0, response.getHeader().getRCode());
+            assertEquals(STALE_ANSWER_TTL, response.getAnswers()[0].getTtl());
+            assertTrue(elapsedMillis < CLIENT_RESPONSE_MILLIS + 500, "took " + elapsedMillis + " ms");
+            assertEquals(2, stub.getQueryCount());
+
+            // The late reply refreshes the entry, and the next request is answered from it without asking again
+            Thread.sleep(STALL_MILLIS);
+            response = server.ask("stale.example.com", DNSRecord.TYPE_A);
+            assertTrue(response.getAnswers()[0].getTtl() <= TTL, "TTL " + response.getAnswers()[0].getTtl());
+            assertEquals(2, stub.getQueryCount());
+        } finally {
+            stub.close();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void failingUpstreamIsAnsweredFromTheExpiredEntry(ServerConfig.Mode mode) throws Exception {
+        StubUpstream stub = startStub();
+        try (TestServer server = new TestServer(config(stub, mode))) {
+            server.ask("stale.example.com", DNSRecord.TYPE_A);
+            Thread.sleep(TTL * 1000 + 200);
+
+            stub.setFailRate(1.0);
+            long start = System.nanoTime();
+            DNSMessage response = server.ask("stale.example.com", DNSRecord.TYPE_A);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            assertEquals(0, response.getHeader().getRCode());
+            assertEquals(1, response.getAnswers().length);
+            assertEquals(STALE_ANSWER_TTL, response.getAnswers()[0].getTtl());
+            assertTrue(elapsedMillis < CLIENT_RESPONSE_MILLIS + 500, "took " + elapsedMillis + " ms");
+        } finally {
+            stub.close();
+        }
+    }
+
+    private static StubUpstream startStub() throws Exception {
+        StubUpstream stub = TestServer.startStub(0);
+        stub.setZone(List.of(DNSRecord.build(DomainName.parse("stale.example.com"), DNSRecord.TYPE_A, TTL,
+                new byte[] {10, 0, 0, 1})));
+        return stub;
+    }
+
+    private static ServerConfig config(StubUpstream stub, ServerConfig.Mode mode) {
+        return new ServerConfig().setUpstream(TestServer.addressOf(stub)).setMode(mode).setWorkerCount(1)
+                .setHedging(false).setAttemptTimeoutMillis(2 * STALL_MILLIS).setTimeoutMillis(2 * STALL_MILLIS)
+                .setClientResponseMillis(CLIENT_RESPONSE_MILLIS).setStaleAnswerTtl(STALE_ANSWER_TTL);
+    }
+}
@@ -0,0 +1,100 @@
+package DNSResolver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+// A DNSServer on a free loopback port, run on a thread of its own, for tests against StubUpstreams in the same
+// process. Questions are asked over UDP from a socket of their own, so many can be asked at once
+public class TestServer implements AutoCloseable {
+    private DNSServer server;
+    private Thread thread;
+    private int port;
+
+    // Start a server with the config, on a free port and with no query log
+    public TestServer(ServerConfig config) throws IOException {
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new DNSServer(config.setClientPort(port).setQueryLogLevel(QueryLog.Level.OFF));
+        thread = new Thread(server::run, "test-dns-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Start a stub on a free loopback port, receiving queries on a thread of its own
+    public static StubUpstream startStub(long delayMillis) throws IOException {
+        return startStub(new StubUpstream(new InetSocketAddress("127.0.0.1", 0), delayMillis));
+    }
+
+    public static StubUpstream startStub(StubUpstream stub) {
+        Thread thread = new Thread(stub, "test-stub-upstream");
+        thread.setDaemon(true);
+        thread.start();
+        return stub;
+    }
+
+    public static InetSocketAddress addressOf(StubUpstream stub) {
+        return new InetSocketAddress("127.0.0.1", stub.getPort());
+    }
+
+    public DNSServer getServer() {
+        return server;
+    }
+
+    // Ask the server a question and wait for the response, throwing if none comes within five seconds
+    public DNSMessage ask(String name, int type) throws IOException {
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        DNSQuestion question = new DNSQuestion(DomainName.parse(name), type, 1);
+        return send(DNSMessage.buildQuery(question, id, DNSMessage.MAX_UDP_SIZE).getRawData());
+    }
+
+    // Send the server a query as it is and wait for the response the same way
+    public DNSMessage send(byte[] query) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(5000);
+            socket.send(new DatagramPacket(query, query.length, new InetSocketAddress("127.0.0.1", port)));
+            byte[] buffer = new byte[4096];
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            socket.receive(reply);
+            return DNSMessage.decodeMessage(Arrays.copyOf(buffer, reply.getLength()));
+        }
+    }
+
+    // Ask every question at the same moment, each from a thread of its own, and return the responses in order
+    public List<DNSMessage> askAll(List<String> names, int type) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(names.size());
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            ArrayList<Future<DNSMessage>> futures = new ArrayList<>();
+            for (String name : names) {
+                futures.add(clients.submit(() -> {
+                    start.await();
+                    return ask(name, type);
+                }));
+            }
+            start.countDown();
+            ArrayList<DNSMessage> responses = new ArrayList<>();
+            for (Future<DNSMessage> future : futures) {
+                responses.add(future.get());
+            }
+            return responses;
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    public void close() throws InterruptedException {
+        server.stop();
+        thread.join(5000);
+    }
+}
@@ -0,0 +1,104 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// The wheel is driven by the times passed to advance, so each test moves time on itself rather than waiting. Each
+// entry is due in the first tick at or after its removeAt
+public class TimingWheelTest {
+    private TimingWheel wheel;
+    private List<CacheEntry> expired;
+
+    @BeforeEach
+    public void createWheel() {
+        wheel = new TimingWheel(Clock.millis());
+        expired = new ArrayList<>();
+    }
+
+    @Test
+    public void entryExpiresInItsTickAndNotBefore() throws IOException {
+        CacheEntry entry = entry("soon.example.com", 5);
+        wheel.add(entry);
+        assertExpiresAt(entry, dueMillis(entry));
+    }
+
+    // 100 seconds out starts on level 1, 5000 on level 2 and 300000 on level 3, and each falls down to level 0
+    @Test
+    public void entriesCascadeDownTheLevels() throws IOException {
+        CacheEntry level1 = entry("one.example.com", 100);
+        CacheEntry level2 = entry("two.example.com", 5000);
+        CacheEntry level3 = entry("three.example.com", 300_000);
+        wheel.add(level3);
+        wheel.add(level1);
+        wheel.add(level2);
+        assertExpiresAt(level1, dueMillis(level1));
+        assertExpiresAt(level2, dueMillis(level2));
+        assertExpiresAt(level3, dueMillis(level3));
+        assertEquals(List.of(level1, level2, level3), expired);
+    }
+
+    // 231 days is past the 194 days the four levels reach, so the entry is parked and goes around again
+    @Test
+    public void entryBeyondTheTopLevelStillExpiresOnTime() throws IOException {
+        CacheEntry entry = entry("far.example.com", 20_000_000);
+        wheel.add(entry);
+        assertExpiresAt(entry, dueMillis(entry));
+    }
+
+    @Test
+    public void removedEntryNeverExpires() throws IOException {
+        CacheEntry first = entry("a.example.com", 10);
+        CacheEntry middle = entry("b.example.com", 10);
+        CacheEntry last = entry("c.example.com", 10);
+        wheel.add(first);
+        wheel.add(middle);
+        wheel.add(last);
+        wheel.remove(middle);
+        // Removing twice does nothing
+        wheel.remove(middle);
+        wheel.advance(dueMillis(last) + 60_000, expired::add);
+        assertEquals(2, expired.size());
+        assertTrue(expired.contains(first) && expired.contains(last));
+        assertEquals(-1, middle.wheelSlot);
+    }
+
+    // An entry kept to be served stale moves to when its stale window ends
+    @Test
+    public void rescheduledEntryExpiresAtItsNewTime() throws IOException {
+        CacheEntry entry = entry("stale.example.com", 10);
+        wheel.add(entry);
+        long oldDue = dueMillis(entry);
+        wheel.remove(entry);
+        entry.keepStaleFor(200_000);
+        wheel.add(entry);
+        wheel.advance(oldDue, expired::add);
+        assertTrue(expired.isEmpty());
+        assertExpiresAt(entry, dueMillis(entry));
+    }
+
+    private void assertExpiresAt(CacheEntry entry, long dueMillis) {
+        wheel.advance(dueMillis - 1, expired::add);
+        assertTrue(!expired.contains(entry), "expired early");
+        wheel.advance(dueMillis, expired::add);
+        assertTrue(expired.contains(entry), "not expired when due");
+        assertEquals(-1, entry.wheelSlot);
+    }
+
+    // The start of the tick the entry is due in
+    private static long dueMillis(CacheEntry entry) {
+        long tick = (entry.getRemoveAt() + TimingWheel.TICK_MILLIS - 1) / TimingWheel.TICK_MILLIS;
+        return tick * TimingWheel.TICK_MILLIS;
+    }
+
+    private static CacheEntry entry(String name, int ttl) throws IOException {
+        DomainName owner = DomainName.parse(name);
+        DNSRecord record = DNSRecord.build(owner, DNSRecord.TYPE_A, ttl, new byte[] {10, 0, 0, 1});
+        return new CacheEntry(new DNSQuestion(owner, DNSRecord.TYPE_A, 1), 0, new DNSRecord[] {record}, new DNSRecord[0], ttl);
+    }
+}
@@ -0,0 +1,29 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+// A truncated UDP reply is followed up over TCP to the same upstream, and the TCP exchange gets a deadline of its own
+public class TruncationTest {
+    private static final long ATTEMPT_TIMEOUT_MILLIS = 300;
+
+    // The TCP reply comes after the UDP attempt's deadline would have passed, and isn't raced by a retry
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void truncatedReplyIsAskedAgainOverTcpWithoutARetry(ServerConfig.Mode mode) throws Exception {
+        StubUpstream stub = TestServer.startStub(2 * ATTEMPT_TIMEOUT_MILLIS / 3).setTruncateRate(1.0);
+        ServerConfig config = new ServerConfig().setUpstream(TestServer.addressOf(stub)).setMode(mode).setWorkerCount(1)
+                .setHedging(false).setAttemptTimeoutMillis(ATTEMPT_TIMEOUT_MILLIS).setTimeoutMillis(2000);
+        try (TestServer server = new TestServer(config)) {
+            DNSMessage response = server.ask("truncated.example.com", DNSRecord.TYPE_A);
+            assertEquals(0, response.getHeader().getRCode());
+            assertEquals(1, response.getAnswers().length);
+            assertEquals(1, stub.getTcpQueryCount());
+            assertEquals(2, stub.getQueryCount());
+        } finally {
+            stub.close();
+        }
+    }
+}
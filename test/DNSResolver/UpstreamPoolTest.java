@@ -0,0 +1,98 @@
+package DNSResolver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+// Retrying misses on another upstream when the first one fails or doesn't answer. Both upstreams start with the same
+// round trip time, and the pool never explores, so a query always goes to the first one listed
+public class UpstreamPoolTest {
+    private static final long ATTEMPT_TIMEOUT_MILLIS = 2000;
+    private static final int NAMES = 3;
+    private static final long SHORT_ATTEMPT_TIMEOUT_MILLIS = 300;
+
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void failureReplyIsRetriedOnAnotherUpstreamAtOnce(ServerConfig.Mode mode) throws Exception {
+        StubUpstream broken = TestServer.startStub(0).setFailRate(1.0);
+        StubUpstream healthy = TestServer.startStub(0);
+        try (TestServer server = new TestServer(config(mode, broken, healthy))) {
+            neverExplore(server);
+            for (int i = 0; i < NAMES; i++) {
+                long start = System.nanoTime();
+                DNSMessage response = server.ask("retried" + i + ".example.com", DNSRecord.TYPE_A);
+                long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+                assertEquals(0, response.getHeader().getRCode());
+                // Not held back until the failed attempt would have timed out
+                assertTrue(elapsedMillis < ATTEMPT_TIMEOUT_MILLIS / 2, "took " + elapsedMillis + " ms");
+            }
+            assertTrue(broken.getQueryCount() > 0);
+            assertEquals(NAMES, healthy.getQueryCount());
+        } finally {
+            broken.close();
+            healthy.close();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void lostQueryIsRetriedOnAnotherUpstreamAfterTheAttemptTimeout(ServerConfig.Mode mode) throws Exception {
+        StubUpstream silent = TestServer.startStub(0).setLossRate(1.0);
+        StubUpstream healthy = TestServer.startStub(0);
+        try (TestServer server = new TestServer(config(mode, silent, healthy))) {
+            neverExplore(server);
+            long start = System.nanoTime();
+            DNSMessage response = server.ask("lost.example.com", DNSRecord.TYPE_A);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            assertEquals(0, response.getHeader().getRCode());
+            assertEquals(1, healthy.getQueryCount());
+            // Answered by the retry well before the query as a whole times out
+            assertTrue(elapsedMillis < 2 * ATTEMPT_TIMEOUT_MILLIS, "took " + elapsedMillis + " ms");
+        } finally {
+            silent.close();
+            healthy.close();
+        }
+    }
+
+    // A failure reply counts against its upstream once, not again when its attempt times out while a slow retry is
+    // still out. Two failures would eject it
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Mode.class)
+    public void failureReplyIsCountedOnce(ServerConfig.Mode mode) throws Exception {
+        StubUpstream broken = TestServer.startStub(0).setFailRate(1.0);
+        StubUpstream slow = TestServer.startStub(3 * SHORT_ATTEMPT_TIMEOUT_MILLIS / 2);
+        ServerConfig config = config(mode, broken, slow).setAttemptTimeoutMillis(SHORT_ATTEMPT_TIMEOUT_MILLIS)
+                .setMaxAttempts(2).setEjectAfterFailures(2);
+        try (TestServer server = new TestServer(config)) {
+            neverExplore(server);
+            DNSMessage response = server.ask("counted.example.com", DNSRecord.TYPE_A);
+            assertEquals(0, response.getHeader().getRCode());
+            UpstreamPool.Upstream upstream = server.getServer().getUpstreams().getUpstreams()[0];
+            assertEquals(1, broken.getQueryCount());
+            assertEquals(1, upstream.getTotalFailures());
+            assertFalse(upstream.isEjected());
+        } finally {
+            broken.close();
+            slow.close();
+        }
+    }
+
+    private static void neverExplore(TestServer server) {
+        server.getServer().getUpstreams().setRandom(new Random() {
+            @Override
+            public int nextInt(int bound) {
+                return bound - 1;
+            }
+        });
+    }
+
+    private static ServerConfig config(ServerConfig.Mode mode, StubUpstream first, StubUpstream second) {
+        return new ServerConfig().setUpstreams(TestServer.addressOf(first), TestServer.addressOf(second)).setMode(mode)
+                .setWorkerCount(1).setHedging(false).setAttemptTimeoutMillis(ATTEMPT_TIMEOUT_MILLIS)
+                .setTimeoutMillis(2 * ATTEMPT_TIMEOUT_MILLIS + 1000);
+    }
+}